@@ -0,0 +1,191 @@
+package org.openmrs.module.databasebackup;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+/**
+ * Runs backup and restore jobs on a bounded pool, so a slow backup can never stack up with the
+ * next one and overload the database.
+ * <p>
+ * At most "databasebackup.maxConcurrentJobs" jobs run at a time and a few more wait in a queue;
+ * further jobs are rejected. A job is not started while another job of the same kind is queued or
+ * running: submitting it returns the name of the job already there, e.g. when the scheduler fires
+ * during a backup started from the Backup Database page. Jobs can be cancelled, and all jobs are
+ * stopped when the module stops.
+ */
+public class BackupJobExecutor {
+
+    protected final static Log log = LogFactory.getLog(BackupJobExecutor.class);
+
+    // jobs waiting for a free slot, beyond those running
+    private static final int QUEUE_CAPACITY = 4;
+
+    // seconds running jobs get to stop when the module stops
+    private static final int SHUTDOWN_TIMEOUT = 30;
+
+    private static BackupJobExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+
+    // queued and running jobs, by kind
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+    private BackupJobExecutor(int maxConcurrentJobs) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "databasebackup-job-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the executor, creating it with the limit of the databasebackup.maxConcurrentJobs
+     * global property on first use.
+     */
+    public static synchronized BackupJobExecutor getInstance() {
+        if (instance == null) {
+            int maxConcurrentJobs = Integer.parseInt(Context.getAdministrationService().getGlobalProperty(
+                "databasebackup.maxConcurrentJobs", "1"));
+            instance = new BackupJobExecutor(Math.max(1, maxConcurrentJobs));
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a job unless a job of the same kind is already queued or running.
+     *
+     * @param kind the kind of job, e.g. "backup" or "restore"
+     * @param name the name of the job, under which its progress is reported
+     * @param job the work to do
+     * @return the name of the job that will run: the given one, or the one already queued or running
+     * @throws RejectedExecutionException if the queue is full or the executor is shut down
+     */
+    public synchronized String submit(String kind, String name, Runnable job) {
+        Job existing = jobs.get(kind);
+        if (existing != null) {
+            log.info("Not starting " + kind + " " + name + ", " + existing.name + " is already queued or running");
+            return existing.name;
+        }
+        Job newJob = new Job(kind, name, job);
+        jobs.put(kind, newJob);
+        try {
+            executor.execute(newJob);
+        }
+        catch (RejectedExecutionException e) {
+            jobs.remove(kind);
+            throw e;
+        }
+        return name;
+    }
+
+    /**
+     * Cancels a queued or running job. A running job is interrupted and stops at the next table,
+     * chunk or batch.
+     *
+     * @param name the name of the job
+     * @return whether a job with that name was found
+     */
+    public boolean cancel(String name) {
+        for (Job job : jobs.values()) {
+            if (job.name.equals(name)) {
+                log.info("Cancelling " + job.kind + " " + name);
+                job.cancel(true);
+                // a queued job would only be skipped once its turn comes
+                executor.remove(job);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name of the queued or running job of a kind, or null if there is none.
+     */
+    public String getActiveJob(String kind) {
+        Job job = jobs.get(kind);
+        return job == null ? null : job.name;
+    }
+
+    /**
+     * Returns the name of the queued or running job of a kind, or null if there is none, without
+     * creating the executor. Safe to call from threads without an OpenMRS session, e.g. JMX.
+     */
+    public static synchronized String findActiveJob(String kind) {
+        return instance == null ? null : instance.getActiveJob(kind);
+    }
+
+    /**
+     * Stops all jobs, waiting a little for running ones to finish. Called when the module stops.
+     */
+    public static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        instance.executor.shutdownNow();
+        try {
+            if (!instance.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                log.warn("Backup jobs did not stop within " + SHUTDOWN_TIMEOUT + " seconds");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        instance = null;
+    }
+
+    /**
+     * A job, removed from the active jobs once it completes or is cancelled. A running job that is
+     * cancelled stays active until it has actually stopped, so no second job of its kind starts
+     * while it still writes.
+     */
+    private class Job extends FutureTask<Void> {
+
+        private final String kind;
+
+        private final String name;
+
+        private volatile boolean started;
+
+        Job(String kind, String name, Runnable job) {
+            super(job, null);
+            this.kind = kind;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            try {
+                super.run();
+            }
+            finally {
+                jobs.remove(kind, this);
+            }
+        }
+
+        @Override
+        protected void done() {
+            // cancelling a running job completes it at once, while its thread may still be running
+            if (!started) {
+                jobs.remove(kind, this);
+            }
+        }
+    }
+}
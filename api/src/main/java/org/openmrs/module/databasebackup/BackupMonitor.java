@@ -0,0 +1,144 @@
+package org.openmrs.module.databasebackup;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.databasebackup.util.BackupMetrics;
+import org.openmrs.module.databasebackup.util.BackupMetrics.TableStatistics;
+import org.openmrs.module.databasebackup.util.BackupProgress;
+import org.openmrs.module.databasebackup.util.ProgressRegistry;
+
+/**
+ * Publishes the progress and metrics of backup jobs to JMX, so a long nightly backup can be
+ * followed from JConsole or a monitoring agent. Registered while the module is started.
+ */
+public class BackupMonitor implements BackupMonitorMXBean {
+
+    protected final static Log log = LogFactory.getLog(BackupMonitor.class);
+
+    public static final String OBJECT_NAME = "org.openmrs.module.databasebackup:type=BackupMonitor";
+
+    /**
+     * Registers the monitor with the platform MBean server, replacing one left by an earlier start
+     * of the module.
+     */
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new BackupMonitor(), name);
+        }
+        catch (JMException e) {
+            log.warn("Unable to register the backup monitor with JMX", e);
+        }
+    }
+
+    /**
+     * Removes the monitor from the platform MBean server.
+     */
+    public static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            log.warn("Unable to unregister the backup monitor from JMX", e);
+        }
+    }
+
+    @Override
+    public String getActiveBackup() {
+        return BackupJobExecutor.findActiveJob("backup");
+    }
+
+    @Override
+    public String getActiveRestore() {
+        return BackupJobExecutor.findActiveJob("restore");
+    }
+
+    @Override
+    public String getActiveBackupProgress() {
+        BackupProgress progress = ProgressRegistry.get(getActiveBackup());
+        return progress == null ? null : progress.snapshot().getMessage();
+    }
+
+    @Override
+    public Map<String, Long> getActiveBackupPhaseMillis() {
+        BackupProgress progress = ProgressRegistry.get(getActiveBackup());
+        return progress == null ? Collections.<String, Long> emptyMap() : progress.getMetrics().getPhaseMillis();
+    }
+
+    @Override
+    public List<TableStatistics> getActiveBackupTables() {
+        BackupProgress progress = ProgressRegistry.get(getActiveBackup());
+        return progress == null ? Collections.<TableStatistics> emptyList() : progress.getMetrics().getTableStatistics();
+    }
+
+    @Override
+    public String getLastBackup() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? null : last.getName();
+    }
+
+    @Override
+    public boolean isLastBackupFailed() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last != null && last.isFailed();
+    }
+
+    @Override
+    public long getLastBackupMillis() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? 0 : last.getElapsedMillis();
+    }
+
+    @Override
+    public long getLastBackupRows() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? 0 : last.getRows();
+    }
+
+    @Override
+    public long getLastBackupBytes() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? 0 : last.getBytes();
+    }
+
+    @Override
+    public long getLastBackupRowsPerSecond() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? 0 : last.getRows() * 1000 / Math.max(1, last.getElapsedMillis());
+    }
+
+    @Override
+    public long getLastBackupBytesPerSecond() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? 0 : last.getBytes() * 1000 / Math.max(1, last.getElapsedMillis());
+    }
+
+    @Override
+    public Map<String, Long> getLastBackupPhaseMillis() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? Collections.<String, Long> emptyMap() : last.getPhaseMillis();
+    }
+
+    @Override
+    public List<TableStatistics> getLastBackupTables() {
+        BackupMetrics last = BackupMetrics.getLastRun();
+        return last == null ? Collections.<TableStatistics> emptyList() : last.getTableStatistics();
+    }
+}
@@ -0,0 +1,59 @@
+package org.openmrs.module.databasebackup;
+
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.module.databasebackup.util.BackupMetrics.TableStatistics;
+
+/**
+ * Backup and restore jobs as seen through JMX, registered as
+ * {@value BackupMonitor#OBJECT_NAME}. Times are in milliseconds, sizes in bytes of SQL.
+ */
+public interface BackupMonitorMXBean {
+
+    /**
+     * @return the name of the backup queued or running, or null
+     */
+    String getActiveBackup();
+
+    /**
+     * @return the name of the restore queued or running, or null
+     */
+    String getActiveRestore();
+
+    /**
+     * @return the progress message of the active backup, or null
+     */
+    String getActiveBackupProgress();
+
+    /**
+     * @return the phase times of the active backup so far
+     */
+    Map<String, Long> getActiveBackupPhaseMillis();
+
+    /**
+     * @return the table counters of the active backup so far
+     */
+    List<TableStatistics> getActiveBackupTables();
+
+    /**
+     * @return the name of the last backup that completed or failed, or null
+     */
+    String getLastBackup();
+
+    boolean isLastBackupFailed();
+
+    long getLastBackupMillis();
+
+    long getLastBackupRows();
+
+    long getLastBackupBytes();
+
+    long getLastBackupRowsPerSecond();
+
+    long getLastBackupBytesPerSecond();
+
+    Map<String, Long> getLastBackupPhaseMillis();
+
+    List<TableStatistics> getLastBackupTables();
+}
@@ -27,10 +27,14 @@ public class DatabaseBackupActivator extends BaseModuleActivator {
 	@Override
 	public void started() {
 		log.info("Starting Backup Module");
+		BackupMonitor.register();
 	}
 
 	@Override
 	public void stopped() {
 		log.info("Shutting down Backup Module");
+		// stop running and queued backup jobs rather than leaving them to a stopped module
+		BackupJobExecutor.shutdown();
+		BackupMonitor.unregister();
 	}
 }
\ No newline at end of file
@@ -2,24 +2,31 @@ package org.openmrs.module.databasebackup;
 
 import java.io.File;
 import java.util.Calendar;
-import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.UserContext;
+import org.openmrs.module.databasebackup.util.BackupPlan;
+import org.openmrs.module.databasebackup.util.BackupProgress;
+import org.openmrs.module.databasebackup.util.BackupRepository;
+import org.openmrs.module.databasebackup.util.BackupVerifier;
 import org.openmrs.module.databasebackup.util.DbDump;
+import org.openmrs.module.databasebackup.util.DbRestore;
+import org.openmrs.module.databasebackup.util.ProgressRegistry;
 import org.openmrs.module.databasebackup.util.Zip;
+import org.openmrs.module.databasebackup.util.compress.CompressionCodec;
 import org.openmrs.notification.Alert;
 import org.openmrs.scheduler.tasks.AbstractTask;
 import org.openmrs.util.OpenmrsUtil;
 
 public class DatabaseBackupTask extends AbstractTask {
 
-    private Properties props;
-    private String folder;
-    private UserContext ctx;
+    protected final static Log log = LogFactory.getLog(DatabaseBackupTask.class);
 
     public void execute() {
         Context.openSession();
@@ -32,30 +39,29 @@ public class DatabaseBackupTask extends AbstractTask {
                 + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss")) + ".sql";
 
         // Perform backup
-        handleBackup(facilityDatimCode, filename, false, null, taskDefinition.getProperty("tablesExcluded"), taskDefinition.getProperty("tablesIncluded"));
+        handleBackup(facilityDatimCode, filename, false, null, taskDefinition.getProperty("tablesExcluded"), taskDefinition.getProperty("tablesIncluded"), taskDefinition.getProperty("mode"));
 
         Context.closeSession();
     }
 
-    public void handleBackup(String facilityDatimCode, String filename, final boolean showProgress, final Class showProgressToClass, String overridenTablesExcluded, String overridenTablesIncluded) {
-        System.out.println("===== handleBackup(" + filename + "," + showProgress + "," + showProgressToClass + ") =====");
-
-        // Set JDBC connection properties
-        props = new Properties();
-        props.setProperty("driver.class", "com.mysql.jdbc.Driver");
-        props.setProperty("driver.url", Context.getRuntimeProperties().getProperty("connection.url"));
-        props.setProperty("user", Context.getRuntimeProperties().getProperty("connection.username"));
-        props.setProperty("password", Context.getRuntimeProperties().getProperty("connection.password"));
+    public String handleBackup(String facilityDatimCode, String filename, final boolean showProgress, final Class showProgressToClass, String overridenTablesExcluded, String overridenTablesIncluded) {
+        return handleBackup(facilityDatimCode, filename, showProgress, showProgressToClass, overridenTablesExcluded, overridenTablesIncluded, null);
+    }
 
-        // Get table inclusion/exclusion properties
-        String tablesIncluded = Context.getAdministrationService().getGlobalProperty("databasebackup.tablesIncluded", "all");
-        String tablesExcluded = Context.getAdministrationService().getGlobalProperty("databasebackup.tablesExcluded", "none");
+    /**
+     * Queues a backup on the {@link BackupJobExecutor}, unless a backup is already queued or running.
+     *
+     * @param overridenMode "full" or "incremental", overrides the databasebackup.mode global property if set
+     * @return the file name of the backup that will run, i.e. filename or that of the backup already queued or
+     *         running, or null if the backup folder cannot be created or the job queue is full
+     */
+    public String handleBackup(String facilityDatimCode, String filename, final boolean showProgress, final Class showProgressToClass, String overridenTablesExcluded, String overridenTablesIncluded, String overridenMode) {
+        System.out.println("===== handleBackup(" + filename + "," + showProgress + "," + showProgressToClass + ") =====");
 
-        props.setProperty("tables.excluded", (overridenTablesExcluded != null && !overridenTablesExcluded.isEmpty()) ? overridenTablesExcluded : tablesExcluded);
-        props.setProperty("tables.included", (overridenTablesIncluded != null && !overridenTablesIncluded.isEmpty()) ? overridenTablesIncluded : tablesIncluded);
+        final Properties props = getBackupProperties(overridenTablesExcluded, overridenTablesIncluded, overridenMode);
 
         // Get backup folder path
-        folder = getAbsoluteBackupFolderPath();
+        final String folder = getAbsoluteBackupFolderPath();
         boolean success = checkFolderPath(folder);
 
         if (success) {
@@ -63,53 +69,20 @@ public class DatabaseBackupTask extends AbstractTask {
             props.setProperty("filename", filename);
             props.setProperty("folder", folder);
 
-            // Store UserContext for the thread
-            ctx = Context.getUserContext();
+            // Store UserContext for the job thread
+            final UserContext ctx = Context.getUserContext();
 
-            new Thread(() -> {
+            final BackupProgress progress = new BackupProgress(filename);
+            return submitJob("backup", progress, () -> {
                 try {
-                    UserContext ctxInThread = ctx;
-
-                    // Perform database backup
-                    DbDump.dumpDB(props, showProgress, showProgressToClass);
-
-                    if (showProgress && showProgressToClass != null) {
-                        try {
-                            // Invoke static getProgressInfo method on the showProgressToClass
-                            Map<String, String> info = (Map<String, String>) showProgressToClass.getMethod("getProgressInfo").invoke(null);
-                            info.put(filename, "Zipping file...");
-                            showProgressToClass.getMethod("setProgressInfo", Map.class).invoke(null, info);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    // Zip the SQL file
-                    Zip.zip(folder, filename);
-
-                    // Remove raw SQL file
-                    try {
-                        File file = new File(folder + filename);
-                        file.delete();
-                    } catch (SecurityException e) {
-                        e.printStackTrace();
-                    }
-
-                    if (showProgress && showProgressToClass != null) {
-                        try {
-                            Map<String, String> info = (Map<String, String>) showProgressToClass.getMethod("getProgressInfo").invoke(null);
-                            info.put(filename, "Backup complete.");
-                            showProgressToClass.getMethod("setProgressInfo", Map.class).invoke(null, info);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
+                    // Perform database backup, compressed straight into the archive
+                    DbDump.dumpDB(props, progress);
 
                     // Send alert notification
-                    Context.setUserContext(ctxInThread);
-                    String baseFilename = filename.replace(".sql", ""); // Remove .sql before adding .zip
+                    Context.setUserContext(ctx);
+                    File archiveFile = Zip.findArchiveFile(folder, filename);
 
-                    Alert alert = new Alert("The backup file is ready at: " + folder + baseFilename + ".zip",
+                    Alert alert = new Alert("The backup file is ready at: " + archiveFile.getPath(),
                             Context.getUserContext().getAuthenticatedUser());
                     Context.getAlertService().saveAlert(alert);
 
@@ -117,8 +90,223 @@ public class DatabaseBackupTask extends AbstractTask {
                     System.err.println("Unable to backup database: " + e);
                     e.printStackTrace();
                 }
-            }).start();
+            });
         }
+        return null;
+    }
+
+    /**
+     * Queues restoring a backup into the OpenMRS database, unless a restore is already queued or running.
+     * Restoring an incremental backup restores the full backup and the incremental backups it builds on first.
+     *
+     * @param archiveName the name of the archive in the backup folder
+     * @return the name of the archive that will be restored, i.e. archiveName or that of the restore already
+     *         queued or running, or null if the job queue is full
+     */
+    public String handleRestore(final String archiveName, final boolean showProgress, final Class showProgressToClass) {
+        final Properties props = getConnectionProperties();
+        props.setProperty("folder", getAbsoluteBackupFolderPath());
+        props.setProperty("restore.file", archiveName);
+        // Number of connections loading table data
+        props.setProperty("restore.threads", Context.getAdministrationService().getGlobalProperty("databasebackup.restoreThreads", "4"));
+
+        final UserContext ctx = Context.getUserContext();
+
+        final BackupProgress progress = new BackupProgress(archiveName);
+        return submitJob("restore", progress, () -> {
+            try {
+                DbRestore.restoreDB(props, progress);
+
+                Context.setUserContext(ctx);
+                Alert alert = new Alert("The database has been restored from: " + archiveName,
+                        Context.getUserContext().getAuthenticatedUser());
+                Context.getAlertService().saveAlert(alert);
+            } catch (Exception e) {
+                log.error("Unable to restore database", e);
+            }
+        });
+    }
+
+    /**
+     * Queues verifying a backup of the backup folder against the manifest in its archive, without restoring it,
+     * unless the same verification is already queued or running. With the databasebackup.checksumTables global
+     * property, the table checksums recorded in the backup are also compared with the database.
+     *
+     * @param archiveName the name of the archive in the backup folder
+     * @return the name of the verification job, or null if the job queue is full
+     */
+    public String handleVerify(final String archiveName) {
+        final Properties props = getConnectionProperties();
+        props.setProperty("folder", getAbsoluteBackupFolderPath());
+        props.setProperty("verify.file", archiveName);
+        props.setProperty("verify.checksumTables", Context.getAdministrationService().getGlobalProperty("databasebackup.checksumTables", "false"));
+
+        final UserContext ctx = Context.getUserContext();
+
+        final BackupProgress progress = new BackupProgress(archiveName + ".verify");
+        return submitJob("verify", progress, () -> {
+            try {
+                BackupVerifier.Result result = BackupVerifier.verify(props, progress);
+
+                Context.setUserContext(ctx);
+                Alert alert = new Alert(archiveName + ": " + result, Context.getUserContext().getAuthenticatedUser());
+                Context.getAlertService().saveAlert(alert);
+            } catch (Exception e) {
+                log.error("Unable to verify backup", e);
+            }
+        });
+    }
+
+    /**
+     * Queues planning a backup with the current settings, unless a plan is already queued or running: the size and
+     * duration of the backup are estimated without dumping anything.
+     *
+     * @param filename the file name of the backup to plan
+     * @return the name of the planning job, or null if the job queue is full
+     */
+    public String handlePlan(final String filename) {
+        final Properties props = getBackupProperties(null, null, null);
+        props.setProperty("filename", filename);
+        props.setProperty("folder", getAbsoluteBackupFolderPath());
+
+        final UserContext ctx = Context.getUserContext();
+
+        final BackupProgress progress = new BackupProgress(filename + ".plan");
+        return submitJob("plan", progress, () -> {
+            try {
+                BackupPlan plan = DbDump.planDB(props, progress);
+
+                Context.setUserContext(ctx);
+                Alert alert = new Alert(plan.toString(), Context.getUserContext().getAuthenticatedUser());
+                Context.getAlertService().saveAlert(alert);
+            } catch (Exception e) {
+                log.error("Unable to plan backup", e);
+            }
+        });
+    }
+
+    /**
+     * Queues a job, with an OpenMRS session open while it runs. Its progress is registered with the
+     * {@link ProgressRegistry} once queued, for scheduled jobs too, so the Backup Database page can
+     * follow any job by name.
+     *
+     * @return the name of the job that will run, or null if the job queue is full
+     */
+    private static String submitJob(String kind, BackupProgress progress, final Runnable job) {
+        String name = progress.getName();
+        try {
+            String submitted = BackupJobExecutor.getInstance().submit(kind, name, () -> {
+                Context.openSession();
+                try {
+                    job.run();
+                } finally {
+                    Context.closeSession();
+                }
+            });
+            // keep the progress of the job already queued or running if this one was not started
+            if (submitted.equals(name)) {
+                ProgressRegistry.register(progress);
+            }
+            return submitted;
+        } catch (RejectedExecutionException e) {
+            log.warn("Unable to queue " + kind + " " + name + ": too many backup jobs waiting");
+            return null;
+        }
+    }
+
+    /**
+     * Get the properties a backup is taken with, from the databasebackup.* global properties.
+     */
+    private static Properties getBackupProperties(String overridenTablesExcluded, String overridenTablesIncluded, String overridenMode) {
+        // Set JDBC connection properties
+        Properties props = getConnectionProperties();
+
+        // Get table inclusion/exclusion properties
+        String tablesIncluded = Context.getAdministrationService().getGlobalProperty("databasebackup.tablesIncluded", "all");
+        String tablesExcluded = Context.getAdministrationService().getGlobalProperty("databasebackup.tablesExcluded", "none");
+
+        props.setProperty("tables.excluded", (overridenTablesExcluded != null && !overridenTablesExcluded.isEmpty()) ? overridenTablesExcluded : tablesExcluded);
+        props.setProperty("tables.included", (overridenTablesIncluded != null && !overridenTablesIncluded.isEmpty()) ? overridenTablesIncluded : tablesIncluded);
+        // Tables backed up without their data, and conditions on the rows backed up per table
+        props.setProperty("tables.schemaOnly", Context.getAdministrationService().getGlobalProperty("databasebackup.tablesSchemaOnly", "none"));
+        props.setProperty("tables.where", Context.getAdministrationService().getGlobalProperty("databasebackup.tablesWhere", ""));
+
+        // Number of worker connections dumping table data and output layout
+        props.setProperty("dump.threads", Context.getAdministrationService().getGlobalProperty("databasebackup.threads", "1"));
+        props.setProperty("dump.filePerTable", Context.getAdministrationService().getGlobalProperty("databasebackup.filePerTable", "false"));
+        // Rows per checkpointed chunk, how often a failed chunk is retried, and whether a backup may mix snapshots
+        props.setProperty("dump.chunkRows", Context.getAdministrationService().getGlobalProperty("databasebackup.chunkRows", "100000"));
+        props.setProperty("dump.chunkRetries", Context.getAdministrationService().getGlobalProperty("databasebackup.chunkRetries", "3"));
+        props.setProperty("dump.requireConsistent", Context.getAdministrationService().getGlobalProperty("databasebackup.requireConsistentSnapshot", "false"));
+        // Full backup, or only the rows changed since the previous backup
+        String mode = Context.getAdministrationService().getGlobalProperty("databasebackup.mode", "full");
+        props.setProperty("backup.mode", (overridenMode != null && !overridenMode.isEmpty()) ? overridenMode : mode);
+
+        // Limits that keep the dump from slowing down the database server, 0 meaning no limit
+        props.setProperty("throttle.rowsPerSecond", Context.getAdministrationService().getGlobalProperty("databasebackup.throttleRowsPerSecond", "0"));
+        props.setProperty("throttle.kilobytesPerSecond", Context.getAdministrationService().getGlobalProperty("databasebackup.throttleKilobytesPerSecond", "0"));
+        props.setProperty("throttle.maxThreadsRunning", Context.getAdministrationService().getGlobalProperty("databasebackup.throttleMaxThreadsRunning", "0"));
+        props.setProperty("throttle.maxReplicationLag", Context.getAdministrationService().getGlobalProperty("databasebackup.throttleMaxReplicationLag", "0"));
+        props.setProperty("export.columnar", Context.getAdministrationService().getGlobalProperty("databasebackup.exportColumnar", "false"));
+
+        // INSERT statement size and restore speed options
+        props.setProperty("insert.maxBytes", Context.getAdministrationService().getGlobalProperty("databasebackup.maxStatementBytes", "0"));
+        props.setProperty("insert.disableKeys", Context.getAdministrationService().getGlobalProperty("databasebackup.disableKeys", "false"));
+        props.setProperty("insert.commitEvery", Context.getAdministrationService().getGlobalProperty("databasebackup.commitEvery", "0"));
+
+        props.setProperty("compression.codec", getCompressionCodec().getName());
+        props.setProperty("compression.level", Context.getAdministrationService().getGlobalProperty("databasebackup.compressionLevel", "6"));
+
+        // Store table data chunks once in the deduplicating repository, keeping this many backups
+        props.setProperty("repository.enabled", String.valueOf(isRepositoryEnabled()));
+        props.setProperty("repository.keep", Context.getAdministrationService().getGlobalProperty("databasebackup.repositoryKeep", "14"));
+
+        // Backups kept after each successful backup, 0 meaning no limit
+        props.setProperty("retention.daily", Context.getAdministrationService().getGlobalProperty("databasebackup.retentionDaily", "0"));
+        props.setProperty("retention.weekly", Context.getAdministrationService().getGlobalProperty("databasebackup.retentionWeekly", "0"));
+        props.setProperty("retention.monthly", Context.getAdministrationService().getGlobalProperty("databasebackup.retentionMonthly", "0"));
+        props.setProperty("retention.maxMegabytes", Context.getAdministrationService().getGlobalProperty("databasebackup.retentionMaxMegabytes", "0"));
+
+        // Read the archive back and check it against its manifest, optionally with CHECKSUM TABLE results
+        props.setProperty("verify.afterBackup", Context.getAdministrationService().getGlobalProperty("databasebackup.verifyAfterBackup", "true"));
+        props.setProperty("verify.checksumTables", Context.getAdministrationService().getGlobalProperty("databasebackup.checksumTables", "false"));
+        return props;
+    }
+
+    /**
+     * Get the JDBC connection properties of the OpenMRS database.
+     */
+    private static Properties getConnectionProperties() {
+        Properties props = new Properties();
+        props.setProperty("driver.class", "com.mysql.jdbc.Driver");
+        props.setProperty("driver.url", Context.getRuntimeProperties().getProperty("connection.url"));
+        props.setProperty("user", Context.getRuntimeProperties().getProperty("connection.username"));
+        props.setProperty("password", Context.getRuntimeProperties().getProperty("connection.password"));
+        return props;
+    }
+
+    /**
+     * Get the codec backups are compressed with, from the databasebackup.compression global property.
+     */
+    public static CompressionCodec getCompressionCodec() {
+        return Zip.getCodec(Context.getAdministrationService().getGlobalProperty("databasebackup.compression", Zip.DEFAULT_CODEC));
+    }
+
+    /**
+     * Whether backups are stored in the deduplicating repository, from the
+     * databasebackup.repository global property.
+     */
+    public static boolean isRepositoryEnabled() {
+        return Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty("databasebackup.repository", "false"));
+    }
+
+    /**
+     * Get the archive a backup is written to: its manifest in repository mode, otherwise the archive
+     * of the configured codec.
+     */
+    public static File getArchiveFile(String folder, String filename) {
+        return isRepositoryEnabled() ? BackupRepository.getManifestFile(folder, filename)
+                : Zip.getArchiveFile(folder, filename, getCompressionCodec());
     }
 
     /**
@@ -0,0 +1,392 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.databasebackup.util.compress.CompressionCodec;
+
+/**
+ * The backups of a backup folder, kept in "backup-catalog.properties" in the folder: size,
+ * checksum, duration and table counts of each archive or repository manifest, recorded when the
+ * backup completes.
+ * <p>
+ * Listing the backups reads the catalog instead of scanning and sizing the folder. The catalog of
+ * each folder is cached together with the modification time of the folder; only when that changes,
+ * i.e. files were added or removed, is the folder listed again to pick up archives the catalog does
+ * not know, such as backups copied in by hand, and to drop entries whose archive is gone.
+ */
+public class BackupCatalog {
+
+    protected final static Log log = LogFactory.getLog(BackupCatalog.class);
+
+    public static final String CATALOG_FILE = "backup-catalog.properties";
+
+    private static final Map<String, BackupCatalog> catalogs = new HashMap<String, BackupCatalog>();
+
+    private final File folder;
+
+    private final File file;
+
+    // by archive name, which ends with the backup timestamp
+    private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    // modification time of the folder when the catalog was last reconciled with it
+    private long folderModified = -1;
+
+    private BackupCatalog(File folder) {
+        this.folder = folder;
+        this.file = new File(folder, CATALOG_FILE);
+    }
+
+    /**
+     * Returns the catalog of a backup folder, reconciled with the folder content if files were
+     * added or removed since it was last read.
+     *
+     * @param folder the backup folder
+     */
+    public static BackupCatalog get(String folder) throws IOException {
+        BackupCatalog catalog;
+        synchronized (catalogs) {
+            catalog = catalogs.get(folder);
+            if (catalog == null) {
+                catalog = new BackupCatalog(new File(folder));
+                catalog.load();
+                catalogs.put(folder, catalog);
+            }
+        }
+        catalog.reconcile();
+        return catalog;
+    }
+
+    /**
+     * Returns whether a file name is that of a backup: an archive of one of the codecs, or a
+     * repository manifest.
+     */
+    public static boolean isBackup(String name) {
+        if (name.endsWith(BackupRepository.MANIFEST_EXTENSION)) {
+            return true;
+        }
+        for (CompressionCodec codec : Zip.getCodecs()) {
+            if (name.endsWith(codec.getFileExtension())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the backups, newest first
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.descendingMap().values());
+    }
+
+    /**
+     * @return the backup with the given archive name, or null
+     */
+    public synchronized Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Records a completed backup, replacing any entry of the same archive, and saves the catalog.
+     */
+    public synchronized void record(Entry entry) throws IOException {
+        entries.put(entry.getName(), entry);
+        save();
+    }
+
+    /**
+     * Deletes a backup: its archive, run report, columnar export and catalog entry. Objects of a
+     * repository backup are left to {@link BackupRepository#collectGarbage(String, int, List)}.
+     *
+     * @return whether the archive is gone
+     */
+    public synchronized boolean delete(Entry entry) throws IOException {
+        File archiveFile = new File(folder, entry.getName());
+        if (archiveFile.exists() && !archiveFile.delete()) {
+            log.warn("Unable to delete backup " + archiveFile.getAbsolutePath());
+            return false;
+        }
+        BackupMetrics.getReportFile(folder.getPath(), entry.getFileId()).delete();
+        ColumnarWriter.deleteExport(ColumnarWriter.getExportFolder(folder.getPath(), entry.getFileId()));
+        entries.remove(entry.getName());
+        save();
+        return true;
+    }
+
+    /**
+     * Deletes the backups a retention policy does not keep.
+     *
+     * @param protectedNames names of backups that must be kept
+     * @return the backups deleted
+     */
+    public synchronized List<Entry> prune(RetentionPolicy policy, Collection<String> protectedNames) throws IOException {
+        List<Entry> deleted = new ArrayList<Entry>();
+        if (!policy.isEnabled()) {
+            return deleted;
+        }
+        for (Entry entry : policy.selectExpired(getEntries(), protectedNames)) {
+            log.info("Removing backup " + entry.getName() + " per retention policy: " + policy);
+            if (delete(entry)) {
+                deleted.add(entry);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Lists the folder if it changed since the catalog was last reconciled with it: adds the
+     * archives missing from the catalog, without checksum as that would mean reading them, and
+     * removes the entries whose archive is gone. Archives of backups still being written, i.e.
+     * with a job folder, are left out.
+     */
+    private synchronized void reconcile() throws IOException {
+        long modified = folder.lastModified();
+        if (modified == folderModified) {
+            return;
+        }
+        String[] names = folder.list();
+        if (names == null) {
+            return;
+        }
+        boolean changed = false;
+        List<String> found = new ArrayList<String>();
+        for (String name : names) {
+            if (!isBackup(name)) {
+                continue;
+            }
+            found.add(name);
+            if (!entries.containsKey(name)) {
+                Entry entry = new Entry(name);
+                if (new File(folder, "." + entry.getFileId() + ".parts").exists()) {
+                    continue;
+                }
+                File archiveFile = new File(folder, name);
+                entry.createdAt = archiveFile.lastModified();
+                try {
+                    entry.size = BackupRepository.getLength(archiveFile);
+                }
+                catch (IOException e) {
+                    log.warn("Unable to size backup " + name + ": " + e.getMessage());
+                    entry.size = archiveFile.length();
+                }
+                entry.storedBytes = BackupRepository.isManifest(archiveFile) ? archiveFile.length() : entry.size;
+                entries.put(name, entry);
+                changed = true;
+            }
+        }
+        if (entries.keySet().retainAll(found)) {
+            changed = true;
+        }
+        if (changed) {
+            save();
+        }
+        // saving changes the folder itself
+        folderModified = folder.lastModified();
+    }
+
+    private void load() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        Properties catalog = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            catalog.load(in);
+        }
+        finally {
+            in.close();
+        }
+        for (String key : catalog.stringPropertyNames()) {
+            if (key.startsWith("backup.") && key.endsWith(".createdAt")) {
+                String name = key.substring("backup.".length(), key.length() - ".createdAt".length());
+                entries.put(name, Entry.read(catalog, name));
+            }
+        }
+    }
+
+    /**
+     * Writes the catalog back to the backup folder, replacing the previous one atomically.
+     */
+    private void save() throws IOException {
+        Properties catalog = new Properties();
+        for (Entry entry : entries.values()) {
+            entry.write(catalog);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            catalog.store(out, "Backup catalog: one entry per archive, sizes in bytes, times in milliseconds");
+        }
+        finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file.getAbsolutePath());
+        }
+        folderModified = folder.lastModified();
+    }
+
+    /**
+     * A backup in the catalog. Backups found in the folder rather than recorded have no checksum,
+     * duration or counts.
+     */
+    public static class Entry {
+
+        private final String name;
+
+        private long createdAt;
+
+        private long size;
+
+        private long storedBytes;
+
+        private String checksum;
+
+        private String mode;
+
+        private long millis;
+
+        private int tables;
+
+        private long rows;
+
+        /**
+         * @param name the archive or manifest name
+         */
+        Entry(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Describes a completed backup.
+         *
+         * @param archiveFile the archive or manifest
+         * @param storedBytes bytes the backup added to the folder, less than its size for a
+         *            repository backup sharing objects with others
+         * @param mode full or incremental
+         * @param metrics the metrics of the run
+         * @param tables the number of tables in the backup
+         */
+        public static Entry of(File archiveFile, long storedBytes, String mode, BackupMetrics metrics, int tables)
+            throws IOException {
+            Entry entry = new Entry(archiveFile.getName());
+            entry.createdAt = metrics.getStartedAt();
+            entry.size = BackupRepository.getLength(archiveFile);
+            entry.storedBytes = storedBytes;
+            entry.checksum = BackupRepository.sha256(archiveFile);
+            entry.mode = mode;
+            entry.millis = metrics.getElapsedMillis();
+            entry.tables = tables;
+            entry.rows = metrics.getRows();
+            return entry;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name of the dump the archive holds, i.e. the archive name with its extension
+         *         replaced by .sql, as used to download it
+         */
+        public String getFileId() {
+            String extension = name.endsWith(BackupRepository.MANIFEST_EXTENSION) ? BackupRepository.MANIFEST_EXTENSION
+                    : Zip.getCodecOf(new File(name)).getFileExtension();
+            return name.substring(0, name.length() - extension.length()) + ".sql";
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public Date getCreatedDate() {
+            return new Date(createdAt);
+        }
+
+        /**
+         * @return the size of the backup as downloaded
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the bytes the backup added to the folder when it was written
+         */
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        /**
+         * @return the SHA-256 of the archive or manifest, or null if unknown
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return full or incremental, or null if unknown
+         */
+        public String getMode() {
+            return mode;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public int getTables() {
+            return tables;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        private void write(Properties catalog) {
+            String prefix = "backup." + name + ".";
+            catalog.setProperty(prefix + "createdAt", String.valueOf(createdAt));
+            catalog.setProperty(prefix + "size", String.valueOf(size));
+            catalog.setProperty(prefix + "storedBytes", String.valueOf(storedBytes));
+            if (checksum != null) {
+                catalog.setProperty(prefix + "sha256", checksum);
+            }
+            if (mode != null) {
+                catalog.setProperty(prefix + "mode", mode);
+            }
+            catalog.setProperty(prefix + "millis", String.valueOf(millis));
+            catalog.setProperty(prefix + "tables", String.valueOf(tables));
+            catalog.setProperty(prefix + "rows", String.valueOf(rows));
+        }
+
+        private static Entry read(Properties catalog, String name) {
+            String prefix = "backup." + name + ".";
+            Entry entry = new Entry(name);
+            entry.createdAt = Long.parseLong(catalog.getProperty(prefix + "createdAt"));
+            entry.size = Long.parseLong(catalog.getProperty(prefix + "size", "0"));
+            entry.storedBytes = Long.parseLong(catalog.getProperty(prefix + "storedBytes", String.valueOf(entry.size)));
+            entry.checksum = catalog.getProperty(prefix + "sha256");
+            entry.mode = catalog.getProperty(prefix + "mode");
+            entry.millis = Long.parseLong(catalog.getProperty(prefix + "millis", "0"));
+            entry.tables = Integer.parseInt(catalog.getProperty(prefix + "tables", "0"));
+            entry.rows = Long.parseLong(catalog.getProperty(prefix + "rows", "0"));
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The chain of backups that have to be restored in order: the last full backup followed by the
+ * incremental backups taken since. Kept in "backup-chain.properties" in the backup folder together
+ * with the high-water mark of every table, i.e. the database time at which its last successful
+ * backup started.
+ * <p>
+ * A new full backup starts a new chain, so the chain file only knows the current chain. Every
+ * incremental backup therefore also names the backup it builds on in its own header, see
+ * {@link #getHeader(List)}; {@link #resolve(String, String)} follows these back to the full backup
+ * for any incremental backup, current chain or not.
+ */
+public class BackupChain {
+
+    public static final String CHAIN_FILE = "backup-chain.properties";
+
+    private static final Pattern HEADER = Pattern.compile(
+        "^-- Incremental backup \\d+ of the chain started by (.+), restore after (.+)$");
+
+    // lines at the start of an archive searched for the header
+    private static final int HEADER_LINES = 16;
+
+    private final File file;
+
+    private final Properties chain = new Properties();
+
+    private BackupChain(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the chain of a backup folder, empty if no full backup has been recorded yet.
+     *
+     * @param folder the backup folder
+     */
+    public static BackupChain load(String folder) throws IOException {
+        BackupChain backupChain = new BackupChain(new File(folder, CHAIN_FILE));
+        if (backupChain.file.isFile()) {
+            InputStream in = new FileInputStream(backupChain.file);
+            try {
+                backupChain.chain.load(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        return backupChain;
+    }
+
+    /**
+     * @return whether the chain starts with a full backup incrementals can build on
+     */
+    public boolean hasFullBackup() {
+        return getSize() > 0;
+    }
+
+    /**
+     * @return the number of backups in the chain
+     */
+    public int getSize() {
+        return Integer.parseInt(chain.getProperty("chain.size", "0"));
+    }
+
+    /**
+     * @return the archive names of the chain, in restore order
+     */
+    public List<String> getArchives() {
+        List<String> archives = new ArrayList<String>();
+        for (int i = 1; i <= getSize(); i++) {
+            archives.add(chain.getProperty("chain." + i + ".file"));
+        }
+        return archives;
+    }
+
+    /**
+     * Returns the high-water mark of a table, or null if the chain holds no data of the table.
+     */
+    public String getWatermark(String tableName) {
+        return chain.getProperty("watermark." + tableName);
+    }
+
+    /**
+     * Records a successful backup. A full backup starts a new chain.
+     *
+     * @param archiveName the archive file name
+     * @param full whether this was a full backup
+     * @param startedAt database time the backup started at, becomes the high-water mark of the
+     *            given tables
+     * @param tables the tables whose data is in the backup
+     */
+    public void record(String archiveName, boolean full, String startedAt, List<String> tables) {
+        if (full) {
+            chain.clear();
+        }
+        int index = getSize() + 1;
+        chain.setProperty("chain.size", String.valueOf(index));
+        chain.setProperty("chain." + index + ".file", archiveName);
+        chain.setProperty("chain." + index + ".mode", full ? "full" : "incremental");
+        chain.setProperty("chain." + index + ".startedAt", startedAt);
+        for (String tableName : tables) {
+            chain.setProperty("watermark." + tableName, startedAt);
+        }
+    }
+
+    /**
+     * Returns the header line of an incremental backup taken on top of the given chain, naming the
+     * full backup of the chain and the backup to restore before it.
+     *
+     * @param archives the archive names of the chain, in restore order
+     */
+    static String getHeader(List<String> archives) {
+        return "-- Incremental backup " + (archives.size() + 1) + " of the chain started by " + archives.get(0)
+                + ", restore after " + archives.get(archives.size() - 1) + "\n";
+    }
+
+    /**
+     * Returns the backups to restore, in order, to restore a backup of the folder: the backup
+     * alone if it is a full one, else the full backup it builds on followed by every incremental
+     * backup up to it, as named by their headers.
+     *
+     * @param folder the backup folder
+     * @param archiveName the archive name of the backup
+     * @throws IOException if a backup of the chain is missing or its header cannot be read, as an
+     *             incremental backup restored without the backups it builds on leaves rows behind
+     *             at old values
+     */
+    public static List<String> resolve(String folder, String archiveName) throws IOException {
+        LinkedList<String> archives = new LinkedList<String>();
+        Set<String> seen = new HashSet<String>();
+        String start = null;
+        for (String name = archiveName; name != null;) {
+            File archiveFile = new File(folder, name);
+            if (!archiveFile.isFile() || !seen.add(name)) {
+                throw new FileNotFoundException("Backup " + name + " of the chain of " + archiveName
+                        + " is missing, the incremental backup cannot be restored without it");
+            }
+            archives.addFirst(name);
+            String[] header = readHeader(archiveFile);
+            if (header != null && start == null) {
+                start = header[0];
+            }
+            name = header == null ? null : header[1];
+        }
+        if (start != null && !start.equals(archives.getFirst())) {
+            throw new IOException("The chain of " + archiveName + " starts with " + archives.getFirst()
+                    + " instead of the full backup " + start);
+        }
+        return archives;
+    }
+
+    /**
+     * Reads the header of an incremental backup.
+     *
+     * @return the full backup of its chain and the backup to restore before it, or null for a
+     *         full backup
+     */
+    private static String[] readHeader(File archiveFile) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(Zip.getCodecOf(archiveFile).openArchive(
+            BackupRepository.openBackup(archiveFile)), "UTF8"));
+        try {
+            String line;
+            for (int i = 0; i < HEADER_LINES && (line = in.readLine()) != null; i++) {
+                Matcher matcher = HEADER.matcher(line);
+                if (matcher.matches()) {
+                    return new String[] { matcher.group(1), matcher.group(2) };
+                }
+                if (line.startsWith("SET ")) {
+                    break;
+                }
+            }
+            return null;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the chain back to the backup folder, replacing the previous manifest atomically.
+     */
+    public void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            chain.store(out, "Backup chain: restore the listed archives in order");
+        }
+        finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file.getAbsolutePath());
+        }
+    }
+}
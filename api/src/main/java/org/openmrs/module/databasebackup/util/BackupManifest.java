@@ -0,0 +1,283 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The row count and checksum of the data of each table of a backup, written as the last entry of
+ * its archive and checked by {@link BackupVerifier}.
+ * <p>
+ * The data of a table starts with the two new lines and the "-- Data for table `t`" comment of its
+ * first chunk and ends right before its "-- End of data for table `t`" comment. Its checksum is the
+ * CRC-32 of those bytes, UTF-8 encoded, and its row count the number of VALUES tuples. Both are
+ * taken per chunk while the chunks are dumped, recorded in the {@link DumpCheckpoint} and combined
+ * per table, so a resumed backup needs no second pass over its data. The manifest consists of SQL
+ * comments, skipped by a restore:
+ *
+ * <pre>
+ * -- manifest version=1
+ * -- manifest consistent=true
+ * -- manifest table.person.rows=1200
+ * -- manifest table.person.bytes=345678
+ * -- manifest table.person.crc32=89abcdef
+ * -- manifest table.person.checksumTable=1234567
+ * -- manifest end
+ * </pre>
+ *
+ * "checksumTable" is the result of <code>CHECKSUM TABLE</code> right after the dump, for tables
+ * backed up in full when "verify.checksumTables" is set. "consistent" is false if not all data was
+ * read from one snapshot, e.g. a chunk was retried or the backup was resumed; archives written before
+ * it was recorded are taken for consistent.
+ */
+public class BackupManifest {
+
+    static final int VERSION = 1;
+
+    static final String LINE_PREFIX = "-- manifest ";
+
+    static final String DATA_START = "-- Data for table `";
+
+    static final String DATA_END = "-- End of data for table `";
+
+    private final Map<String, TableChecksum> tables = new LinkedHashMap<String, TableChecksum>();
+
+    private final Map<String, Long> checksumTables = new LinkedHashMap<String, Long>();
+
+    private boolean consistent = true;
+
+    private boolean complete;
+
+    /**
+     * Returns the name of the manifest entry of an archive, e.g. "x.manifest.sql" for "x.sql".
+     */
+    static String getEntryName(String filename) {
+        String baseFilename = filename.endsWith(".sql") ? filename.substring(0, filename.length() - 4) : filename;
+        return baseFilename + ".manifest.sql";
+    }
+
+    /**
+     * @return the comment ending the data of a table
+     */
+    static String getDataEndComment(String tableName) {
+        return DATA_END + tableName + "`\n";
+    }
+
+    void addTable(String tableName, TableChecksum checksum) {
+        tables.put(tableName, checksum);
+    }
+
+    void setChecksumTable(String tableName, long checksum) {
+        checksumTables.put(tableName, checksum);
+    }
+
+    /**
+     * @return the checksums of the tables, in dump order
+     */
+    public Map<String, TableChecksum> getTables() {
+        return Collections.unmodifiableMap(tables);
+    }
+
+    /**
+     * @return the <code>CHECKSUM TABLE</code> result of each table it was taken of
+     */
+    public Map<String, Long> getChecksumTables() {
+        return Collections.unmodifiableMap(checksumTables);
+    }
+
+    void setConsistent(boolean consistent) {
+        this.consistent = consistent;
+    }
+
+    /**
+     * @return whether all data of the backup was read from one snapshot, i.e. is consistent as of a
+     *         point in time
+     */
+    public boolean isConsistent() {
+        return consistent;
+    }
+
+    /**
+     * @return whether the end of the manifest was read, i.e. the archive is not truncated
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    void write(Writer out) throws IOException {
+        out.write("\n" + LINE_PREFIX + "version=" + VERSION + "\n");
+        out.write(LINE_PREFIX + "consistent=" + consistent + "\n");
+        for (Map.Entry<String, TableChecksum> table : tables.entrySet()) {
+            String key = LINE_PREFIX + "table." + table.getKey();
+            out.write(key + ".rows=" + table.getValue().getRows() + "\n");
+            out.write(key + ".bytes=" + table.getValue().getBytes() + "\n");
+            out.write(key + ".crc32=" + Long.toHexString(table.getValue().getCrc()) + "\n");
+            Long checksum = checksumTables.get(table.getKey());
+            if (checksum != null) {
+                out.write(key + ".checksumTable=" + checksum + "\n");
+            }
+        }
+        out.write(LINE_PREFIX + "end\n");
+    }
+
+    /**
+     * Reads a line of the manifest, as written by {@link #write(Writer)}.
+     */
+    void readLine(String line) {
+        String entry = line.substring(LINE_PREFIX.length()).trim();
+        if ("end".equals(entry)) {
+            complete = true;
+            return;
+        }
+        if (entry.startsWith("consistent=")) {
+            consistent = Boolean.parseBoolean(entry.substring("consistent=".length()));
+            return;
+        }
+        int equals = entry.lastIndexOf('=');
+        int dot = equals == -1 ? -1 : entry.lastIndexOf('.', equals);
+        if (!entry.startsWith("table.") || dot <= "table.".length()) {
+            return;
+        }
+        String tableName = entry.substring("table.".length(), dot);
+        String field = entry.substring(dot + 1, equals);
+        String value = entry.substring(equals + 1);
+        if ("checksumTable".equals(field)) {
+            checksumTables.put(tableName, Long.parseLong(value));
+            return;
+        }
+        TableChecksum table = tables.get(tableName);
+        if (table == null) {
+            table = new TableChecksum(0, 0, 0);
+            tables.put(tableName, table);
+        }
+        if ("rows".equals(field)) {
+            table.rows = Long.parseLong(value);
+        } else if ("bytes".equals(field)) {
+            table.bytes = Long.parseLong(value);
+        } else if ("crc32".equals(field)) {
+            table.crc = Long.parseLong(value, 16);
+        }
+    }
+
+    /**
+     * The row count, length and CRC-32 of a chunk or of the whole data of a table.
+     */
+    public static class TableChecksum {
+
+        private long rows;
+
+        private long bytes;
+
+        private long crc;
+
+        TableChecksum(long rows, long bytes, long crc) {
+            this.rows = rows;
+            this.bytes = bytes;
+            this.crc = crc;
+        }
+
+        /**
+         * Parses the checksum of a chunk as recorded in the checkpoint, see {@link #toString()}.
+         */
+        static TableChecksum parse(String s) {
+            String[] fields = s.split(":");
+            return new TableChecksum(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2], 16));
+        }
+
+        /**
+         * @return the checksum of this data followed by the given data
+         */
+        TableChecksum append(TableChecksum next) {
+            return new TableChecksum(rows + next.rows, bytes + next.bytes, combineCrc(crc, next.crc, next.bytes));
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TableChecksum)) {
+                return false;
+            }
+            TableChecksum other = (TableChecksum) o;
+            return rows == other.rows && bytes == other.bytes && crc == other.crc;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (crc ^ rows);
+        }
+
+        @Override
+        public String toString() {
+            return rows + ":" + bytes + ":" + Long.toHexString(crc);
+        }
+    }
+
+    /**
+     * Returns the CRC-32 of two byte sequences one after the other from the CRC-32 of each, as
+     * zlib's crc32_combine does: the first CRC is advanced over len2 zero bytes by squaring the
+     * matrix of the one-bit CRC step, then the second CRC is added.
+     */
+    static long combineCrc(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // the operator for one zero bit
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+        do {
+            // one zero byte, then two, four...
+            square(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.beans.ConstructorProperties;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of a backup, per phase and per table, so a slow run can be traced to the table, phase or
+ * resource behind it: JDBC fetch time against the time spent encoding and compressing rows.
+ * <p>
+ * Counters are updated without locking by the worker connections, once per page of rows. The
+ * metrics of the last completed backup are kept for {@link #getLastRun()} and the JMX monitor,
+ * and written as a run report next to the archive.
+ */
+public class BackupMetrics {
+
+    // phases of a backup, in the order they run
+    public static final String PHASE_PREPARE = "prepare";
+
+    public static final String PHASE_SCHEMA = "schema";
+
+    public static final String PHASE_DATA = "data";
+
+    public static final String PHASE_VIEWS = "views";
+
+    public static final String PHASE_ROUTINES = "routines";
+
+    public static final String PHASE_FINALIZE = "finalize";
+
+    private static volatile BackupMetrics lastRun;
+
+    private final String name;
+
+    private final long startedAt = System.currentTimeMillis();
+
+    private volatile long finishedAt;
+
+    private volatile boolean failed;
+
+    // insertion ordered, phases are only timed by the job thread
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+
+    private final Map<String, TableCounters> tables = new ConcurrentHashMap<String, TableCounters>();
+
+    private final LongAdder throttleNanos = new LongAdder();
+
+    private final LongAdder spoolWaitNanos = new LongAdder();
+
+    // the size and duration the BackupPlan estimated, -1 if not planned
+    private volatile long estimatedBytes = -1;
+
+    private volatile long estimatedMillis = -1;
+
+    // why the backup is not consistent as of a point in time, null if it is
+    private volatile String inconsistency;
+
+    /**
+     * @param name the name of the job, e.g. the backup file name
+     */
+    public BackupMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the metrics of the last backup that completed or failed, or null if there was none
+     *         since the module started
+     */
+    public static BackupMetrics getLastRun() {
+        return lastRun;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the wall time of the run so far, or of the whole run once it is finished
+     */
+    public long getElapsedMillis() {
+        long finished = finishedAt;
+        return (finished == 0 ? System.currentTimeMillis() : finished) - startedAt;
+    }
+
+    /**
+     * Adds time spent in a phase, see the PHASE_ constants.
+     */
+    public synchronized void addPhaseTime(String phase, long nanos) {
+        Long total = phaseNanos.get(phase);
+        phaseNanos.put(phase, (total == null ? 0 : total) + nanos);
+    }
+
+    /**
+     * @return the milliseconds spent in each phase so far, in the order the phases ran
+     */
+    public synchronized Map<String, Long> getPhaseMillis() {
+        Map<String, Long> millis = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            millis.put(phase.getKey(), TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+        }
+        return millis;
+    }
+
+    /**
+     * Adds one page of rows of a table.
+     *
+     * @param fetchNanos time spent executing the query and reading rows from the result set
+     * @param writeNanos time spent encoding the rows and writing them to the compressed chunk file
+     */
+    public void addPage(String tableName, long rows, long bytes, long fetchNanos, long writeNanos) {
+        TableCounters table = table(tableName);
+        table.rows.add(rows);
+        table.bytes.add(bytes);
+        table.fetchNanos.add(fetchNanos);
+        table.writeNanos.add(writeNanos);
+    }
+
+    /**
+     * Adds the wall time of a chunk of a table, from connection to the last row written.
+     */
+    public void addChunkTime(String tableName, long nanos) {
+        TableCounters table = table(tableName);
+        table.chunks.increment();
+        table.wallNanos.add(nanos);
+    }
+
+    /**
+     * Adds time spent copying the chunks of a table into the archive.
+     */
+    public void addArchiveTime(String tableName, long nanos) {
+        table(tableName).archiveNanos.add(nanos);
+    }
+
+    /**
+     * Adds time the worker connections waited for the {@link DumpThrottle}.
+     */
+    public void addThrottleTime(long nanos) {
+        throttleNanos.add(nanos);
+    }
+
+    /**
+     * @return the time worker connections waited for the throttle, summed over the connections
+     */
+    public long getThrottleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttleNanos.sum());
+    }
+
+    /**
+     * Adds time a worker waited for its chunk file to be compressed and written, see
+     * {@link PipelinedOutputStream}.
+     */
+    public void addSpoolWaitTime(long nanos) {
+        spoolWaitNanos.add(nanos);
+    }
+
+    /**
+     * @return the time worker connections waited for their chunk files to be written, summed over
+     *         the connections; high when compression or the disk is slower than the database
+     */
+    public long getSpoolWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(spoolWaitNanos.sum());
+    }
+
+    /**
+     * @return the statistics of every table dumped so far, by table name
+     */
+    public List<TableStatistics> getTableStatistics() {
+        List<TableStatistics> statistics = new ArrayList<TableStatistics>();
+        for (Map.Entry<String, TableCounters> table : tables.entrySet()) {
+            statistics.add(table.getValue().snapshot(table.getKey()));
+        }
+        return statistics;
+    }
+
+    public long getRows() {
+        long rows = 0;
+        for (TableCounters table : tables.values()) {
+            rows += table.rows.sum();
+        }
+        return rows;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (TableCounters table : tables.values()) {
+            bytes += table.bytes.sum();
+        }
+        return bytes;
+    }
+
+    /**
+     * Records the estimates of the plan of the run, reported next to the actual figures.
+     *
+     * @param bytes the estimated bytes of SQL of the table data
+     * @param millis the estimated duration of the run
+     */
+    public void setEstimate(long bytes, long millis) {
+        estimatedBytes = bytes;
+        estimatedMillis = millis;
+    }
+
+    /**
+     * Records that the data of the run was not all read from one snapshot.
+     *
+     * @param reason why, e.g. a chunk was retried on a new snapshot
+     */
+    public void setInconsistent(String reason) {
+        inconsistency = reason;
+    }
+
+    /**
+     * @return why the data of the run was not all read from one snapshot, or null if it was
+     */
+    public String getInconsistency() {
+        return inconsistency;
+    }
+
+    /**
+     * Marks the run as finished and makes it the last run.
+     */
+    public void finish(boolean failed) {
+        this.failed = failed;
+        finishedAt = System.currentTimeMillis();
+        lastRun = this;
+    }
+
+    /**
+     * Returns the file the run report of a backup is written to, next to its archive:
+     * "&lt;folder&gt;/&lt;filename without .sql&gt;.report.properties".
+     */
+    public static File getReportFile(String folder, String filename) {
+        String baseFilename = filename.endsWith(".sql") ? filename.substring(0, filename.length() - 4) : filename;
+        return new File(folder, baseFilename + ".report.properties");
+    }
+
+    /**
+     * Writes the run report: the totals of the run and the estimates of its plan, if any, then the
+     * time of each phase and the counters of each table, all times in milliseconds.
+     */
+    public void writeReport(File reportFile) throws IOException {
+        Properties report = new Properties();
+        report.setProperty("run.name", name);
+        report.setProperty("run.startedAt", String.valueOf(startedAt));
+        report.setProperty("run.millis", String.valueOf(getElapsedMillis()));
+        report.setProperty("run.failed", String.valueOf(failed));
+        report.setProperty("run.consistent", String.valueOf(inconsistency == null));
+        if (inconsistency != null) {
+            report.setProperty("run.inconsistency", inconsistency);
+        }
+        report.setProperty("run.rows", String.valueOf(getRows()));
+        report.setProperty("run.bytes", String.valueOf(getBytes()));
+        report.setProperty("run.throttledMillis", String.valueOf(getThrottleMillis()));
+        report.setProperty("run.spoolWaitMillis", String.valueOf(getSpoolWaitMillis()));
+        if (estimatedBytes >= 0) {
+            report.setProperty("plan.bytes", String.valueOf(estimatedBytes));
+            report.setProperty("plan.millis", String.valueOf(estimatedMillis));
+        }
+        for (Map.Entry<String, Long> phase : getPhaseMillis().entrySet()) {
+            report.setProperty("phase." + phase.getKey() + ".millis", String.valueOf(phase.getValue()));
+        }
+        for (TableStatistics table : getTableStatistics()) {
+            String prefix = "table." + table.getTable() + ".";
+            report.setProperty(prefix + "chunks", String.valueOf(table.getChunks()));
+            report.setProperty(prefix + "rows", String.valueOf(table.getRows()));
+            report.setProperty(prefix + "bytes", String.valueOf(table.getBytes()));
+            report.setProperty(prefix + "millis", String.valueOf(table.getWallMillis()));
+            report.setProperty(prefix + "fetchMillis", String.valueOf(table.getFetchMillis()));
+            report.setProperty(prefix + "writeMillis", String.valueOf(table.getWriteMillis()));
+            report.setProperty(prefix + "archiveMillis", String.valueOf(table.getArchiveMillis()));
+        }
+        OutputStream out = new FileOutputStream(reportFile);
+        try {
+            report.store(out, "Backup run report: times in milliseconds, sizes in bytes of SQL");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private TableCounters table(String tableName) {
+        TableCounters table = tables.get(tableName);
+        if (table == null) {
+            table = tables.computeIfAbsent(tableName, t -> new TableCounters());
+        }
+        return table;
+    }
+
+    private static class TableCounters {
+
+        final LongAdder chunks = new LongAdder();
+
+        final LongAdder rows = new LongAdder();
+
+        final LongAdder bytes = new LongAdder();
+
+        final LongAdder wallNanos = new LongAdder();
+
+        final LongAdder fetchNanos = new LongAdder();
+
+        final LongAdder writeNanos = new LongAdder();
+
+        final LongAdder archiveNanos = new LongAdder();
+
+        TableStatistics snapshot(String tableName) {
+            return new TableStatistics(tableName, chunks.sum(), rows.sum(), bytes.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(wallNanos.sum()), TimeUnit.NANOSECONDS.toMillis(fetchNanos.sum()),
+                    TimeUnit.NANOSECONDS.toMillis(writeNanos.sum()), TimeUnit.NANOSECONDS.toMillis(archiveNanos.sum()));
+        }
+    }
+
+    /**
+     * The counters of one table at one point in time. Wall time is summed over the chunks of the
+     * table, which may have been dumped in parallel.
+     */
+    public static class TableStatistics {
+
+        private final String table;
+
+        private final long chunks;
+
+        private final long rows;
+
+        private final long bytes;
+
+        private final long wallMillis;
+
+        private final long fetchMillis;
+
+        private final long writeMillis;
+
+        private final long archiveMillis;
+
+        @ConstructorProperties({ "table", "chunks", "rows", "bytes", "wallMillis", "fetchMillis", "writeMillis",
+                "archiveMillis" })
+        public TableStatistics(String table, long chunks, long rows, long bytes, long wallMillis, long fetchMillis,
+            long writeMillis, long archiveMillis) {
+            this.table = table;
+            this.chunks = chunks;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.wallMillis = wallMillis;
+            this.fetchMillis = fetchMillis;
+            this.writeMillis = writeMillis;
+            this.archiveMillis = archiveMillis;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public long getChunks() {
+            return chunks;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getWallMillis() {
+            return wallMillis;
+        }
+
+        public long getFetchMillis() {
+            return fetchMillis;
+        }
+
+        public long getWriteMillis() {
+            return writeMillis;
+        }
+
+        public long getArchiveMillis() {
+            return archiveMillis;
+        }
+    }
+}
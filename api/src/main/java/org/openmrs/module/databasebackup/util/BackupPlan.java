@@ -0,0 +1,412 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The plan of a backup, made before any data is dumped: how much SQL each table will produce, how
+ * long it will take, in which order the workers take the tables up and which tables are split
+ * into key ranges.
+ * <p>
+ * The estimates of a table come from the run report of the last completed backup of the same
+ * mode, see {@link BackupMetrics#writeReport(File)}. Tables that backup did not hold are estimated
+ * from <code>information_schema.TABLES</code>: their SQL is taken to be as large as their data on
+ * disk and to be dumped at the rate of that backup, or at {@link #DEFAULT_BYTES_PER_SECOND} per
+ * worker without one.
+ * <p>
+ * The tables are dumped most expensive first, so the workers do not end up waiting for one large
+ * table taken up last. With more than one worker, a table that would take longer than its share
+ * of the work is split into up to one key range per worker, provided its key is a single integer
+ * column, all its rows are backed up and the backup does not go to the {@link BackupRepository}.
+ * The ranges divide the span between the lowest and the highest key evenly, so they are only
+ * balanced for evenly spread keys, as auto-increment keys are. The duration is that of the
+ * workers taking up the tables in this order, bounded by the "throttle.*" rates, plus the time the
+ * other phases took in the previous backup.
+ */
+public class BackupPlan {
+
+    protected final static Log log = LogFactory.getLog(BackupPlan.class);
+
+    // bytes of SQL a worker dumps per second, when no previous backup tells
+    static final long DEFAULT_BYTES_PER_SECOND = 8 * 1024 * 1024;
+
+    private final List<TablePlan> tables = new ArrayList<TablePlan>();
+
+    private final int threads;
+
+    // the backup the estimates are based on, or null
+    private String basedOn;
+
+    private long dataMillis;
+
+    private long otherMillis;
+
+    private long archiveBytes = -1;
+
+    private BackupPlan(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Plans the dump of the data of the given tables.
+     *
+     * @param dbConn reads the key span of the tables to split
+     * @param schema the schema of the database
+     * @param dataTables the tables whose data is backed up
+     * @param props the dump properties, including "folder", "dump.threads", "dump.chunkRows",
+     *            "repository.enabled", "throttle.*" and the "table.where.&lt;tableName&gt;" conditions
+     * @param mode full or incremental, the estimates are taken from a backup of the same mode
+     */
+    static BackupPlan create(Connection dbConn, SchemaCatalog schema, List<String> dataTables, Properties props,
+            String mode) throws SQLException {
+        BackupPlan plan = new BackupPlan(Math.max(1, Integer.parseInt(props.getProperty("dump.threads", "1"))));
+        Properties report = plan.loadPreviousReport(props.getProperty("folder"), mode);
+
+        // the rate of the previous backup, for the tables it did not hold
+        long bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+        long previousBytes = 0;
+        long previousMillis = 0;
+        for (String key : report.stringPropertyNames()) {
+            if (key.startsWith("table.") && key.endsWith(".bytes")) {
+                previousBytes += getLong(report, key);
+                previousMillis += getLong(report, key.substring(0, key.length() - "bytes".length()) + "millis");
+            }
+        }
+        if (previousBytes > 0 && previousMillis > 0) {
+            bytesPerSecond = Math.max(1, previousBytes * 1000 / previousMillis);
+        }
+
+        for (String tableName : dataTables) {
+            TablePlan table = new TablePlan(tableName);
+            String prefix = "table." + tableName + ".";
+            if (report.getProperty(prefix + "bytes") != null) {
+                table.rows = getLong(report, prefix + "rows");
+                table.bytes = getLong(report, prefix + "bytes");
+                table.millis = getLong(report, prefix + "millis");
+            } else {
+                SchemaCatalog.Table schemaTable = schema.getTable(tableName);
+                table.rows = schemaTable == null ? 0 : schemaTable.getRowEstimate();
+                table.bytes = schemaTable == null ? 0 : schemaTable.getDataBytes();
+                table.millis = table.bytes * 1000 / bytesPerSecond;
+            }
+            plan.tables.add(table);
+        }
+        Collections.sort(plan.tables, (a, b) -> a.millis != b.millis ? Long.compare(b.millis, a.millis)
+                : a.bytes != b.bytes ? Long.compare(b.bytes, a.bytes) : a.name.compareTo(b.name));
+
+        // the bounds move as a table grows, while repository chunks are only shared if they stay the same
+        if (plan.threads > 1 && !Boolean.parseBoolean(props.getProperty("repository.enabled", "false"))) {
+            plan.splitLargeTables(dbConn, schema, props);
+        }
+        plan.estimateMillis(props, report);
+
+        long reportBytes = getLong(report, "run.bytes");
+        long archiveSize = getLong(report, "archive.size");
+        if (reportBytes > 0 && archiveSize > 0) {
+            plan.archiveBytes = (long) ((double) plan.getEstimatedBytes() * archiveSize / reportBytes);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the run report of the last completed backup of the given mode, with the size of its
+     * archive as "archive.size", or an empty report if there is none.
+     */
+    private Properties loadPreviousReport(String folder, String mode) {
+        Properties report = new Properties();
+        try {
+            for (BackupCatalog.Entry entry : BackupCatalog.get(folder).getEntries()) {
+                File reportFile = BackupMetrics.getReportFile(folder, entry.getFileId());
+                if (!mode.equals(entry.getMode()) || !reportFile.isFile()) {
+                    continue;
+                }
+                InputStream in = new FileInputStream(reportFile);
+                try {
+                    report.load(in);
+                }
+                finally {
+                    in.close();
+                }
+                if (Boolean.parseBoolean(report.getProperty("run.failed"))) {
+                    report.clear();
+                    continue;
+                }
+                report.setProperty("archive.size", String.valueOf(entry.getSize()));
+                basedOn = entry.getName();
+                break;
+            }
+        }
+        catch (IOException e) {
+            log.warn("Unable to read the reports of previous backups, estimating from the schema only", e);
+            report.clear();
+        }
+        return report;
+    }
+
+    /**
+     * Splits the tables that would take longer than a worker's share of the work into key ranges.
+     */
+    private void splitLargeTables(Connection dbConn, SchemaCatalog schema, Properties props) throws SQLException {
+        long share = Math.max(1, getWorkMillis() / threads);
+        long chunkRows = Math.max(1, Long.parseLong(props.getProperty("dump.chunkRows", String.valueOf(
+            DbDump.CHUNK_ROWS))));
+        for (TablePlan table : tables) {
+            SchemaCatalog.Table schemaTable = schema.getTable(table.name);
+            if (table.millis <= share || schemaTable == null || !schemaTable.hasIntegralKey()
+                    || props.getProperty("table.where." + table.name) != null) {
+                continue;
+            }
+            // every range holds a chunk at least
+            long ranges = Math.min(Math.min(threads, (table.millis + share - 1) / share), table.rows / chunkRows);
+            if (ranges > 1) {
+                table.bounds = getKeyBounds(dbConn, table.name, schemaTable.getKeysetColumn(), (int) ranges);
+            }
+        }
+    }
+
+    /**
+     * Divides the span of the keys of a table into ranges of equal span.
+     *
+     * @return the upper bound of every range but the last one
+     */
+    private static List<String> getKeyBounds(Connection dbConn, String tableName, String keyColumn, int ranges)
+            throws SQLException {
+        List<String> bounds = new ArrayList<String>();
+        Statement stmt = dbConn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT MIN(`" + keyColumn + "`), MAX(`" + keyColumn + "`) FROM `"
+                    + tableName + "`");
+            if (rs.next() && rs.getString(1) != null) {
+                BigInteger min = new BigInteger(rs.getString(1));
+                BigInteger max = new BigInteger(rs.getString(2));
+                BigInteger span = max.subtract(min);
+                BigInteger previous = min.subtract(BigInteger.ONE);
+                for (int i = 1; i < ranges; i++) {
+                    BigInteger bound = min.add(span.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(ranges)));
+                    // a narrow span has fewer ranges
+                    if (bound.compareTo(previous) > 0 && bound.compareTo(max) < 0) {
+                        bounds.add(bound.toString());
+                        previous = bound;
+                    }
+                }
+            }
+            rs.close();
+        }
+        finally {
+            stmt.close();
+        }
+        return bounds;
+    }
+
+    /**
+     * Estimates the duration of the data phase by handing the key ranges out to the workers in
+     * plan order, each to the worker free first, as the worker pool does, and adds that of the
+     * other phases of the previous backup.
+     */
+    private void estimateMillis(Properties props, Properties report) {
+        long[] workers = new long[threads];
+        long rows = 0;
+        for (TablePlan table : tables) {
+            int ranges = table.getRanges();
+            for (int range = 0; range < ranges; range++) {
+                int free = 0;
+                for (int i = 1; i < threads; i++) {
+                    if (workers[i] < workers[free]) {
+                        free = i;
+                    }
+                }
+                workers[free] += table.millis / ranges;
+            }
+            rows += table.rows;
+        }
+        for (long worker : workers) {
+            dataMillis = Math.max(dataMillis, worker);
+        }
+        // the throttle may not let the workers go any faster
+        long rowsPerSecond = Long.parseLong(props.getProperty("throttle.rowsPerSecond", "0"));
+        long bytesPerSecond = Long.parseLong(props.getProperty("throttle.kilobytesPerSecond", "0")) * 1024;
+        if (rowsPerSecond > 0) {
+            dataMillis = Math.max(dataMillis, rows * 1000 / rowsPerSecond);
+        }
+        if (bytesPerSecond > 0) {
+            dataMillis = Math.max(dataMillis, getEstimatedBytes() * 1000 / bytesPerSecond);
+        }
+        for (String key : report.stringPropertyNames()) {
+            if (key.startsWith("phase.") && !key.equals("phase." + BackupMetrics.PHASE_DATA + ".millis")) {
+                otherMillis += getLong(report, key);
+            }
+        }
+    }
+
+    private long getWorkMillis() {
+        long millis = 0;
+        for (TablePlan table : tables) {
+            millis += table.millis;
+        }
+        return millis;
+    }
+
+    private static long getLong(Properties report, String key) {
+        try {
+            return Long.parseLong(report.getProperty(key, "0"));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the tables whose data is backed up, in the order the workers take them up
+     */
+    public List<String> getTables() {
+        List<String> names = new ArrayList<String>();
+        for (TablePlan table : tables) {
+            names.add(table.name);
+        }
+        return names;
+    }
+
+    /**
+     * @return the upper bound of every key range of a table but the last one, empty if the table
+     *         is not split
+     */
+    List<String> getKeyBounds(String tableName) {
+        for (TablePlan table : tables) {
+            if (table.name.equals(tableName)) {
+                return Collections.unmodifiableList(table.bounds);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the estimated number of rows backed up
+     */
+    public long getEstimatedRows() {
+        long rows = 0;
+        for (TablePlan table : tables) {
+            rows += table.rows;
+        }
+        return rows;
+    }
+
+    /**
+     * @return the estimated size of the SQL of the table data, in bytes
+     */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (TablePlan table : tables) {
+            bytes += table.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the estimated size of the archive, or -1 without a previous backup to estimate the
+     *         compression from
+     */
+    public long getEstimatedArchiveBytes() {
+        return archiveBytes;
+    }
+
+    /**
+     * @return the estimated duration of the backup, in milliseconds
+     */
+    public long getEstimatedMillis() {
+        return dataMillis + otherMillis;
+    }
+
+    /**
+     * @return the name of the backup the estimates are based on, or null if they are based on the
+     *         schema only
+     */
+    public String getBasedOn() {
+        return basedOn;
+    }
+
+    /**
+     * @return one line per table: its estimates and key ranges, in plan order
+     */
+    public String getDetails() {
+        StringBuilder details = new StringBuilder();
+        for (TablePlan table : tables) {
+            details.append("  ").append(table.name).append(": ").append(table.rows).append(" rows, ").append(
+                table.bytes / 1024).append(" KB, ").append(table.millis / 1000).append(" s");
+            if (!table.bounds.isEmpty()) {
+                details.append(", ").append(table.getRanges()).append(" key ranges split at ").append(
+                    String.join(", ", table.bounds));
+            }
+            details.append('\n');
+        }
+        return details.toString();
+    }
+
+    /**
+     * @return the summary of the plan, as shown on the Backup Database page
+     */
+    @Override
+    public String toString() {
+        int splitTables = 0;
+        int ranges = 0;
+        for (TablePlan table : tables) {
+            if (!table.bounds.isEmpty()) {
+                splitTables++;
+                ranges += table.getRanges();
+            }
+        }
+        long seconds = getEstimatedMillis() / 1000;
+        StringBuilder summary = new StringBuilder("Backup plan: ").append(tables.size()).append(" tables");
+        if (splitTables > 0) {
+            summary.append(" (").append(splitTables).append(" split into ").append(ranges).append(" key ranges)");
+        }
+        summary.append(", about ").append(getEstimatedRows()).append(" rows and ").append(
+            getEstimatedBytes() / (1024 * 1024)).append(" MB of SQL");
+        if (archiveBytes >= 0) {
+            summary.append(", a ").append(archiveBytes / (1024 * 1024)).append(" MB archive");
+        }
+        summary.append(", taking about ").append(seconds / 60).append(" min ").append(seconds % 60).append(" s with ")
+                .append(threads).append(threads == 1 ? " thread" : " threads");
+        summary.append(basedOn == null ? ", estimated from the schema" : ", estimated from backup " + basedOn);
+        return summary.toString();
+    }
+
+    /**
+     * The estimates and key ranges of one table.
+     */
+    private static class TablePlan {
+
+        final String name;
+
+        long rows;
+
+        // bytes of SQL
+        long bytes;
+
+        // worker time
+        long millis;
+
+        List<String> bounds = Collections.emptyList();
+
+        TablePlan(String name) {
+            this.name = name;
+        }
+
+        int getRanges() {
+            return bounds.size() + 1;
+        }
+    }
+}
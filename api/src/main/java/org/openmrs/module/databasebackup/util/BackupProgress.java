@@ -0,0 +1,244 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Progress of a backup or restore job, see {@link ProgressRegistry}.
+ * <p>
+ * Worker threads update counters without locking; readers take a {@link Snapshot}, which never
+ * blocks the job and is consistent enough for display.
+ */
+public class BackupProgress {
+
+    protected final static Log log = LogFactory.getLog(BackupProgress.class);
+
+    private final String name;
+
+    private final long startedAt = System.currentTimeMillis();
+
+    private volatile String phase = "Queued...";
+
+    private volatile int tablesTotal;
+
+    private final AtomicInteger tablesDone = new AtomicInteger();
+
+    private final LongAdder rows = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private volatile long bytesTotal;
+
+    // 0 while the job runs
+    private volatile long finishedAt;
+
+    private volatile boolean failed;
+
+    private final BackupMetrics metrics;
+
+    /**
+     * @param name the name of the job, e.g. the backup file name
+     */
+    public BackupProgress(String name) {
+        this.name = name;
+        this.metrics = new BackupMetrics(name);
+    }
+
+    /**
+     * @return the name of the job, e.g. the backup file name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the detailed timings of the job, recorded by backups
+     */
+    public BackupMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets what the job is doing, shown as the progress message.
+     */
+    public void setPhase(String phase) {
+        this.phase = phase;
+        log.info(name + ": " + phase);
+    }
+
+    public void setTablesTotal(int tablesTotal) {
+        this.tablesTotal = tablesTotal;
+    }
+
+    public void tableDone() {
+        tablesDone.incrementAndGet();
+    }
+
+    public void addRows(long count) {
+        rows.add(count);
+    }
+
+    public void addBytes(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * Sets the number of bytes the job will process when it is known up front, e.g. the size of
+     * the archive being restored; the ETA is then based on bytes instead of tables.
+     */
+    public void setBytesTotal(long bytesTotal) {
+        this.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * Marks the job as finished. Finished jobs expire from the registry after a while.
+     *
+     * @param phase the final message
+     * @param failed whether the job failed or was cancelled
+     */
+    public void finish(String phase, boolean failed) {
+        this.failed = failed;
+        setPhase(phase);
+        finishedAt = System.currentTimeMillis();
+    }
+
+    boolean isExpired(long now, long ttl) {
+        long finished = finishedAt;
+        return finished != 0 && now - finished > ttl;
+    }
+
+    /**
+     * @return the current state of the job
+     */
+    public Snapshot snapshot() {
+        long finished = finishedAt;
+        long elapsed = Math.max(1, (finished == 0 ? System.currentTimeMillis() : finished) - startedAt);
+        return new Snapshot(phase, tablesDone.get(), tablesTotal, rows.sum(), bytes.sum(), bytesTotal, elapsed,
+                finished != 0, failed);
+    }
+
+    /**
+     * An immutable view of the progress of a job at one point in time.
+     */
+    public static class Snapshot {
+
+        private final String phase;
+
+        private final int tablesDone;
+
+        private final int tablesTotal;
+
+        private final long rows;
+
+        private final long bytes;
+
+        private final long bytesTotal;
+
+        private final long elapsedMillis;
+
+        private final boolean finished;
+
+        private final boolean failed;
+
+        Snapshot(String phase, int tablesDone, int tablesTotal, long rows, long bytes, long bytesTotal,
+            long elapsedMillis, boolean finished, boolean failed) {
+            this.phase = phase;
+            this.tablesDone = tablesDone;
+            this.tablesTotal = tablesTotal;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.bytesTotal = bytesTotal;
+            this.elapsedMillis = elapsedMillis;
+            this.finished = finished;
+            this.failed = failed;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public int getTablesDone() {
+            return tablesDone;
+        }
+
+        public int getTablesTotal() {
+            return tablesTotal;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public long getRowsPerSecond() {
+            return rows * 1000 / elapsedMillis;
+        }
+
+        public long getBytesPerSecond() {
+            return bytes * 1000 / elapsedMillis;
+        }
+
+        /**
+         * Returns the estimated number of seconds until the job completes, extrapolated from the
+         * bytes or tables done so far, or -1 if there is no estimate yet.
+         */
+        public long getEtaSeconds() {
+            if (finished) {
+                return 0;
+            }
+            double done;
+            if (bytesTotal > 0) {
+                done = (double) bytes / bytesTotal;
+            } else if (tablesTotal > 0) {
+                done = (double) tablesDone / tablesTotal;
+            } else {
+                return -1;
+            }
+            if (done <= 0) {
+                return -1;
+            }
+            return (long) (elapsedMillis * (1 - Math.min(1, done)) / done / 1000);
+        }
+
+        /**
+         * @return the phase followed by the counters, as shown on the Backup Database page
+         */
+        public String getMessage() {
+            StringBuilder message = new StringBuilder(phase);
+            if (finished && rows == 0 && bytes == 0) {
+                return message.toString();
+            }
+            message.append(" (");
+            if (tablesTotal > 0) {
+                message.append(tablesDone).append('/').append(tablesTotal).append(" tables, ");
+            }
+            if (rows > 0) {
+                message.append(rows).append(" rows, ");
+            }
+            message.append(bytes / (1024 * 1024)).append(" MB, ").append(getBytesPerSecond() / 1024).append(" KB/s");
+            long eta = getEtaSeconds();
+            if (!finished && eta >= 0) {
+                message.append(", about ").append(eta / 60).append(" min ").append(eta % 60).append(" s left");
+            }
+            return message.append(')').toString();
+        }
+    }
+}
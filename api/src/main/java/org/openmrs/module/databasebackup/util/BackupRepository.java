@@ -0,0 +1,418 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.databasebackup.util.compress.BackupArchive;
+
+/**
+ * Content-addressed store of backup data, kept in the "repository" folder of the backup folder.
+ * <p>
+ * A backup in the repository is a manifest, "&lt;filename without .sql&gt;.manifest", listing the
+ * objects that make up its dump in order. Each object is a gzip member stored under the SHA-256
+ * of its bytes, so the table data chunks of unchanged tables are stored once no matter how many
+ * backups hold them: a backup only writes the chunks that changed and its manifest. Concatenated,
+ * the objects of a manifest form a regular .sql.gz dump, which is what download and restore read.
+ * <p>
+ * Old manifests are removed beyond a number of backups to keep, and objects no longer listed by any
+ * manifest are then deleted.
+ */
+public class BackupRepository {
+
+    protected final static Log log = LogFactory.getLog(BackupRepository.class);
+
+    public static final String MANIFEST_EXTENSION = ".manifest";
+
+    static final String REPOSITORY_FOLDER = "repository";
+
+    private static final int BUFFER = 65536;
+
+    private final File objects;
+
+    private final File tmp;
+
+    /**
+     * @param folder the backup folder
+     */
+    public BackupRepository(String folder) throws IOException {
+        File root = new File(folder, REPOSITORY_FOLDER);
+        objects = new File(root, "objects");
+        tmp = new File(root, "tmp");
+        if (!objects.isDirectory() && !objects.mkdirs() || !tmp.isDirectory() && !tmp.mkdirs()) {
+            throw new IOException("Unable to create the backup repository in " + root.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the manifest of a dump file.
+     *
+     * @param folder Folder where the manifest resides
+     * @param filename File name of the dump (should include .sql)
+     */
+    public static File getManifestFile(String folder, String filename) {
+        String baseFilename = filename.endsWith(".sql") ? filename.substring(0, filename.length() - 4) : filename;
+        return new File(folder + baseFilename + MANIFEST_EXTENSION);
+    }
+
+    public static boolean isManifest(File file) {
+        return file.getName().endsWith(MANIFEST_EXTENSION);
+    }
+
+    /**
+     * Returns the files whose concatenated bytes make up a backup: the objects listed by a
+     * manifest, or the archive itself.
+     */
+    public static List<File> getParts(File backupFile) throws IOException {
+        if (!isManifest(backupFile)) {
+            return Collections.singletonList(backupFile);
+        }
+        File objects = new File(new File(backupFile.getParentFile(), REPOSITORY_FOLDER), "objects");
+        List<File> parts = new ArrayList<File>();
+        for (String hash : readManifest(backupFile)) {
+            File object = getObjectFile(objects, hash);
+            if (!object.isFile()) {
+                throw new IOException("Object " + hash + " of " + backupFile.getName() + " is missing from the repository");
+            }
+            parts.add(object);
+        }
+        return parts;
+    }
+
+    /**
+     * Opens the bytes of a backup, see {@link #getParts(File)}.
+     */
+    public static InputStream openBackup(File backupFile) throws IOException {
+        final List<File> parts = getParts(backupFile);
+        if (parts.size() == 1) {
+            return new FileInputStream(parts.get(0));
+        }
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+
+            private int next;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < parts.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return new FileInputStream(parts.get(next++));
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException("Unable to open part of the backup: " + e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the size of a backup, see {@link #getParts(File)}.
+     */
+    public static long getLength(File backupFile) throws IOException {
+        long length = 0;
+        for (File part : getParts(backupFile)) {
+            length += part.length();
+        }
+        return length;
+    }
+
+    /**
+     * Creates a new backup in the repository. Data written to the archive is gzipped into objects,
+     * and gzipped chunk files are added as objects of their own with
+     * {@link RepositoryArchive#appendChunk(File, String)}. The manifest is only written when the archive is
+     * closed.
+     *
+     * @param manifestFile the manifest to write
+     * @param level the gzip compression level of written data
+     */
+    public RepositoryArchive createArchive(File manifestFile, int level) throws IOException {
+        return new RepositoryArchive(manifestFile, level);
+    }
+
+    /**
+     * Adds a gzipped file to the repository unless an object with the same content is already
+     * there. The file itself is left in place.
+     *
+     * @param hash the hash of the file
+     * @return whether a new object was added
+     */
+    private boolean store(File file, String hash) throws IOException {
+        File object = getObjectFile(objects, hash);
+        if (object.isFile()) {
+            return false;
+        }
+        File dir = object.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
+        try {
+            // a hard link costs no copy when the chunk spool is on the same file system
+            Files.createLink(object.toPath(), file.toPath());
+        }
+        catch (FileAlreadyExistsException e) {
+            // stored by another backup meanwhile
+            return false;
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            File copy = File.createTempFile("object", ".gz", tmp);
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(copy.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the oldest manifests of the backup folder beyond the given number, except those of
+     * the incremental backup chain, then the objects no manifest lists any more.
+     *
+     * @param folder the backup folder
+     * @param keep the number of repository backups to keep
+     * @param protectedNames names of manifests that must not be deleted
+     */
+    public void collectGarbage(String folder, int keep, List<String> protectedNames) throws IOException {
+        List<File> manifests = new ArrayList<File>();
+        File[] files = new File(folder).listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isFile() && isManifest(file)) {
+                manifests.add(file);
+            }
+        }
+        // names end with the backup timestamp, newest first
+        Collections.sort(manifests, Collections.reverseOrder());
+
+        Set<String> live = new HashSet<String>();
+        for (int i = 0; i < manifests.size(); i++) {
+            File manifest = manifests.get(i);
+            if (i >= keep && !protectedNames.contains(manifest.getName())) {
+                log.info("Removing repository backup " + manifest.getName());
+                manifest.delete();
+            } else {
+                live.addAll(readManifest(manifest));
+            }
+        }
+
+        long freed = 0;
+        int deleted = 0;
+        File[] dirs = objects.listFiles();
+        for (File dir : dirs == null ? new File[0] : dirs) {
+            File[] objectFiles = dir.listFiles();
+            for (File object : objectFiles == null ? new File[0] : objectFiles) {
+                String name = object.getName();
+                if (!live.contains(name.substring(0, name.indexOf('.')))) {
+                    freed += object.length();
+                    if (object.delete()) {
+                        deleted++;
+                    }
+                }
+            }
+            dir.delete(); // only succeeds once empty
+        }
+        // left behind by backups that failed while storing
+        File[] tmpFiles = tmp.listFiles();
+        for (File file : tmpFiles == null ? new File[0] : tmpFiles) {
+            file.delete();
+        }
+        log.info("Backup repository: " + live.size() + " objects in use, " + deleted + " unused objects deleted ("
+                + freed / (1024 * 1024) + " MB)");
+    }
+
+    /**
+     * Returns the hashes listed by a manifest, in order.
+     */
+    static List<String> readManifest(File manifestFile) throws IOException {
+        List<String> hashes = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    int space = line.indexOf(' ');
+                    hashes.add(space == -1 ? line : line.substring(0, space));
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return hashes;
+    }
+
+    private static File getObjectFile(File objects, String hash) {
+        return new File(new File(objects, hash.substring(0, 2)), hash + ".gz");
+    }
+
+    /**
+     * Returns the SHA-256 of a file, in hex.
+     */
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A backup being written to the repository. Data written between chunks is gzipped into a
+     * segment file, stored as an object when the next chunk is appended or the archive is closed.
+     */
+    public class RepositoryArchive extends BackupArchive {
+
+        private final File manifestFile;
+
+        private final int level;
+
+        private final List<String> lines = new ArrayList<String>();
+
+        private File segmentFile;
+
+        private int segments;
+
+        private int newObjects;
+
+        private long newBytes;
+
+        RepositoryArchive(File manifestFile, int level) {
+            super(null);
+            this.manifestFile = manifestFile;
+            this.level = level;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            segment().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            segment().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        /**
+         * Adds a gzipped chunk file as the next object of the backup, after the data written so far.
+         *
+         * @param chunkFile the chunk file, left in place
+         * @param label what the chunk holds, recorded in the manifest for readers
+         */
+        public void appendChunk(File chunkFile, String label) throws IOException {
+            endSegment();
+            add(chunkFile, label);
+        }
+
+        /**
+         * Stores the last segment and writes the manifest.
+         */
+        @Override
+        public void close() throws IOException {
+            endSegment();
+            File tmpManifest = new File(manifestFile.getPath() + ".tmp");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpManifest), "UTF-8");
+            try {
+                writer.write("# Backup repository manifest: SHA-256 of each gzip object of the dump, in order\n");
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+            finally {
+                writer.close();
+            }
+            Files.move(tmpManifest.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.info("Backup " + manifestFile.getName() + ": " + lines.size() + " objects, " + newObjects + " new");
+        }
+
+        /**
+         * @return the bytes the backup added to the repository: its new objects and its manifest
+         */
+        public long getStoredBytes() {
+            return newBytes + manifestFile.length();
+        }
+
+        private OutputStream segment() throws IOException {
+            if (out == null) {
+                segmentFile = File.createTempFile("segment", ".gz", tmp);
+                out = new GZIPOutputStream(new FileOutputStream(segmentFile), BUFFER) {
+
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+            return out;
+        }
+
+        private void endSegment() throws IOException {
+            if (out == null) {
+                return;
+            }
+            out.close();
+            out = null;
+            try {
+                add(segmentFile, "segment " + ++segments);
+            }
+            finally {
+                segmentFile.delete();
+            }
+        }
+
+        private void add(File file, String label) throws IOException {
+            String hash = sha256(file);
+            if (store(file, hash)) {
+                newObjects++;
+                newBytes += file.length();
+            }
+            lines.add(hash + " " + file.length() + " " + label);
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Checks a backup without restoring it: the archive is decompressed and read once, the data of each
+ * table counted and checksummed as described in {@link BackupManifest}, and the result compared
+ * with the manifest at the end of the archive. A truncated archive, which lacks the end of its
+ * manifest, or a corrupt one fails; so does a table whose rows or checksum differ, or that is
+ * missing.
+ * <p>
+ * With "verify.checksumTables", the <code>CHECKSUM TABLE</code> results recorded in the manifest
+ * are compared with those of the live database. A difference means the table changed since the
+ * backup, so it is only reported.
+ */
+public class BackupVerifier {
+
+    protected final static Log log = LogFactory.getLog(BackupVerifier.class);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    // a comment line longer than this is no marker of the data or manifest
+    private static final int MAX_MARKER_LENGTH = 4096;
+
+    private static final byte[] NEW_LINES = { '\n', '\n' };
+
+    /**
+     * Verifies a backup of the backup folder.
+     *
+     * @param props Properties including "folder", "verify.file" (the archive name) and, to compare
+     *            <code>CHECKSUM TABLE</code> results with the database, "verify.checksumTables",
+     *            "driver.class", "driver.url", "user" and "password"
+     * @param progress Receives the progress of the verification, see {@link ProgressRegistry}.
+     * @return the result, also reported through the progress
+     */
+    public static Result verify(Properties props, BackupProgress progress) throws Exception {
+        String verifyFile = props.getProperty("verify.file");
+        try {
+            File archiveFile = new File(props.getProperty("folder"), verifyFile);
+            if (!archiveFile.isFile()) {
+                throw new FileNotFoundException("Backup not found: " + archiveFile.getAbsolutePath());
+            }
+            progress.setBytesTotal(BackupRepository.getLength(archiveFile));
+            progress.setPhase("Verifying " + verifyFile + "...");
+            Result result = verifyArchive(archiveFile, progress);
+            if (result.isValid() && Boolean.parseBoolean(props.getProperty("verify.checksumTables", "false"))) {
+                progress.setPhase("Comparing table checksums with the database...");
+                compareChecksumTables(result, props);
+            }
+            log.info("Verified " + verifyFile + ": " + result);
+            progress.finish(result.toString(), !result.isValid());
+            return result;
+        } catch (Exception ex) {
+            log.error("Exception during backup verification", ex);
+            progress.finish("Verification failed: " + ex.getMessage(), true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads an archive and checks it against its manifest.
+     *
+     * @param progress Receives the compressed bytes read, or null
+     */
+    static Result verifyArchive(File archiveFile, BackupProgress progress) throws IOException {
+        Result result = new Result();
+        InputStream compressed = BackupRepository.openBackup(archiveFile);
+        if (progress != null) {
+            compressed = new DbRestore.CountingInputStream(compressed, progress);
+        }
+        try {
+            InputStream in = Zip.getCodecOf(archiveFile).openArchive(compressed);
+            new Scanner(result).scan(in);
+        }
+        catch (IOException e) {
+            // a damaged compressed stream fails to decompress
+            result.problems.add("The archive cannot be read: " + e.getMessage());
+            return result;
+        }
+        finally {
+            compressed.close();
+        }
+        result.compare();
+        return result;
+    }
+
+    /**
+     * Adds a warning for each table whose current <code>CHECKSUM TABLE</code> result differs from
+     * the one in the manifest.
+     */
+    private static void compareChecksumTables(Result result, Properties props) throws Exception {
+        Map<String, Long> recorded = result.manifest.getChecksumTables();
+        if (recorded.isEmpty()) {
+            result.warnings.add("The backup holds no table checksums to compare with the database");
+            return;
+        }
+        Class.forName(props.getProperty("driver.class"));
+        Connection conn = DriverManager.getConnection(props.getProperty("driver.url"), props);
+        try {
+            Statement stmt = conn.createStatement();
+            for (Map.Entry<String, Long> table : recorded.entrySet()) {
+                try {
+                    ResultSet rs = stmt.executeQuery("CHECKSUM TABLE `" + table.getKey() + "`");
+                    Long live = null;
+                    if (rs.next()) {
+                        live = rs.getLong(2);
+                        if (rs.wasNull()) {
+                            live = null;
+                        }
+                    }
+                    rs.close();
+                    if (!table.getValue().equals(live)) {
+                        result.warnings.add("Table " + table.getKey() + " changed since the backup");
+                    }
+                }
+                catch (SQLException e) {
+                    result.warnings.add("Table " + table.getKey() + " cannot be checksummed: " + e.getMessage());
+                }
+            }
+            stmt.close();
+        }
+        finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * The outcome of a verification.
+     */
+    public static class Result {
+
+        private final BackupManifest manifest = new BackupManifest();
+
+        // the checksums computed from the archive, in archive order
+        private final Map<String, BackupManifest.TableChecksum> tables = new LinkedHashMap<String, BackupManifest.TableChecksum>();
+
+        private final List<String> problems = new ArrayList<String>();
+
+        private final List<String> warnings = new ArrayList<String>();
+
+        /**
+         * @return whether the archive is complete and matches its manifest
+         */
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+
+        /**
+         * @return what makes the archive invalid
+         */
+        public List<String> getProblems() {
+            return problems;
+        }
+
+        /**
+         * @return differences that do not make the archive invalid
+         */
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        public BackupManifest getManifest() {
+            return manifest;
+        }
+
+        /**
+         * @return the rows of all tables read from the archive
+         */
+        public long getRows() {
+            long rows = 0;
+            for (BackupManifest.TableChecksum table : tables.values()) {
+                rows += table.getRows();
+            }
+            return rows;
+        }
+
+        private void compare() {
+            if (!manifest.isComplete()) {
+                problems.add("The archive is truncated, its manifest is missing or incomplete");
+                return;
+            }
+            for (Map.Entry<String, BackupManifest.TableChecksum> expected : manifest.getTables().entrySet()) {
+                String tableName = expected.getKey();
+                BackupManifest.TableChecksum actual = tables.get(tableName);
+                if (actual == null) {
+                    problems.add("Table " + tableName + " is missing");
+                } else if (actual.getRows() != expected.getValue().getRows()) {
+                    problems.add("Table " + tableName + " holds " + actual.getRows() + " rows instead of "
+                            + expected.getValue().getRows());
+                } else if (!actual.equals(expected.getValue())) {
+                    problems.add("The data of table " + tableName + " is corrupt, its checksum differs");
+                }
+            }
+            for (String tableName : tables.keySet()) {
+                if (!manifest.getTables().containsKey(tableName)) {
+                    warnings.add("Table " + tableName + " has no checksum in the manifest");
+                }
+            }
+            if (!manifest.isConsistent()) {
+                warnings.add("The backup is not point-in-time consistent, its data was read from different "
+                        + "snapshots");
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(isValid() ? "Backup is valid: " + tables.size() + " tables, "
+                    + getRows() + " rows" : "Backup is invalid");
+            for (String problem : problems) {
+                s.append(". ").append(problem);
+            }
+            for (String warning : warnings) {
+                s.append(". ").append(warning);
+            }
+            return s.append('.').toString();
+        }
+    }
+
+    /**
+     * Reads the decompressed archive, checksumming the data of each table and counting its rows.
+     * Comment lines that may be markers of the data or the manifest are held back until their end;
+     * all other bytes of a table's data go straight into its checksum.
+     */
+    private static class Scanner {
+
+        private final Result result;
+
+        private final CRC32 crc = new CRC32();
+
+        private final RowCounter rows = new RowCounter();
+
+        private final ByteArrayOutputStream marker = new ByteArrayOutputStream(256);
+
+        // the table whose data is being read, if any
+        private String tableName;
+
+        private long bytes;
+
+        private boolean lineStart = true;
+
+        private boolean inMarker;
+
+        Scanner(Result result) {
+            this.result = result;
+        }
+
+        void scan(InputStream in) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                // start of the bytes not yet added to the checksum
+                int pending = 0;
+                for (int i = 0; i < count; i++) {
+                    byte b = buffer[i];
+                    if (lineStart && b == '-') {
+                        update(buffer, pending, i - pending);
+                        pending = i;
+                        inMarker = true;
+                        marker.reset();
+                    }
+                    lineStart = b == '\n';
+                    if (inMarker) {
+                        marker.write(b);
+                        pending = i + 1;
+                        if (lineStart) {
+                            endMarker();
+                        } else if (marker.size() > MAX_MARKER_LENGTH) {
+                            releaseMarker();
+                        }
+                    }
+                }
+                update(buffer, pending, count - pending);
+            }
+            if (inMarker) {
+                endMarker();
+            }
+            if (tableName != null) {
+                result.problems.add("The data of table " + tableName + " is incomplete");
+            }
+        }
+
+        /**
+         * Handles a complete comment line.
+         */
+        private void endMarker() {
+            inMarker = false;
+            String line = new String(marker.toByteArray(), StandardCharsets.UTF_8);
+            if (line.startsWith(BackupManifest.DATA_START) && tableName == null) {
+                tableName = getTableName(line, BackupManifest.DATA_START);
+                crc.reset();
+                rows.reset();
+                bytes = 0;
+                // the new lines before the comment belong to the data too
+                update(NEW_LINES, 0, NEW_LINES.length);
+                releaseMarker();
+            } else if (line.startsWith(BackupManifest.DATA_END) && tableName != null
+                    && tableName.equals(getTableName(line, BackupManifest.DATA_END))) {
+                result.tables.put(tableName, new BackupManifest.TableChecksum(rows.getRows(), bytes, crc.getValue()));
+                tableName = null;
+            } else if (line.startsWith(BackupManifest.LINE_PREFIX) && tableName == null) {
+                try {
+                    result.manifest.readLine(line);
+                }
+                catch (RuntimeException e) {
+                    result.problems.add("The manifest is corrupt: " + line.trim());
+                }
+            } else {
+                releaseMarker();
+            }
+        }
+
+        /**
+         * Adds the held back line to the checksum, it is data after all.
+         */
+        private void releaseMarker() {
+            inMarker = false;
+            byte[] line = marker.toByteArray();
+            update(line, 0, line.length);
+        }
+
+        private void update(byte[] b, int off, int len) {
+            if (tableName != null && len > 0) {
+                crc.update(b, off, len);
+                rows.update(b, off, len);
+                bytes += len;
+            }
+        }
+
+        private static String getTableName(String line, String prefix) {
+            int end = line.lastIndexOf('`');
+            return end > prefix.length() ? line.substring(prefix.length(), end) : "";
+        }
+    }
+
+    /**
+     * Counts the VALUES tuples of the INSERT statements written by {@link InsertStatementWriter},
+     * one statement per line: after ") VALUES " outside quoted identifiers, every parenthesis
+     * opened outside a string between the tuples starts a row.
+     */
+    private static class RowCounter {
+
+        private static final byte[] VALUES = ") VALUES ".getBytes(StandardCharsets.US_ASCII);
+
+        private static final int SCAN = 0, LIST = 1, TUPLE = 2, STRING = 3, ESCAPE = 4, IDENTIFIER = 5, DONE = 6;
+
+        private int state;
+
+        // characters of ") VALUES " matched so far
+        private int matched;
+
+        private int depth;
+
+        private long rows;
+
+        void reset() {
+            state = SCAN;
+            matched = 0;
+            rows = 0;
+        }
+
+        long getRows() {
+            return rows;
+        }
+
+        void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                byte c = b[i];
+                if (c == '\n') {
+                    state = SCAN;
+                    matched = 0;
+                    continue;
+                }
+                switch (state) {
+                    case SCAN:
+                        if (c == '`') {
+                            state = IDENTIFIER;
+                        } else if (c == VALUES[matched]) {
+                            if (++matched == VALUES.length) {
+                                state = LIST;
+                            }
+                        } else {
+                            matched = c == VALUES[0] ? 1 : 0;
+                        }
+                        break;
+                    case IDENTIFIER:
+                        if (c == '`') {
+                            state = SCAN;
+                            matched = 0;
+                        }
+                        break;
+                    case LIST:
+                        if (c == '(') {
+                            rows++;
+                            depth = 1;
+                            state = TUPLE;
+                        } else if (c != ',' && c != ' ') {
+                            // the ON DUPLICATE KEY UPDATE clause or the end of the statement
+                            state = DONE;
+                        }
+                        break;
+                    case TUPLE:
+                        if (c == '\'') {
+                            state = STRING;
+                        } else if (c == '(') {
+                            depth++;
+                        } else if (c == ')' && --depth == 0) {
+                            state = LIST;
+                        }
+                        break;
+                    case STRING:
+                        if (c == '\\') {
+                            state = ESCAPE;
+                        } else if (c == '\'') {
+                            state = TUPLE;
+                        }
+                        break;
+                    case ESCAPE:
+                        state = STRING;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+}
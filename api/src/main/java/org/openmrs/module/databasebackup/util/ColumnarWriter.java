@@ -0,0 +1,384 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes rows of a table as a binary, typed, column-oriented "ncol" file for analytics tools,
+ * which load it much faster than they parse INSERT statements.
+ * <p>
+ * Rows are buffered in row groups of at most {@link #ROW_GROUP_ROWS} rows or about
+ * {@link #ROW_GROUP_BYTES} bytes and written column by column, so memory use does not depend on
+ * the size of the table. The file layout, with integers big-endian and strings as written by
+ * {@link DataOutputStream#writeUTF(String)}:
+ *
+ * <pre>
+ * file        := "NCOL" version:u8 table:utf columns:u16 column* rowGroup* 'E' rows:i64
+ * column      := name:utf type:u8 sqlType:utf
+ * rowGroup    := 'G' rows:i32 columnChunk*          (one chunk per column, in column order)
+ * columnChunk := encoding:u8 length:i32 deflate(nulls values)
+ * nulls       := ceil(rows / 8) bytes, bit (i % 8) of byte i / 8 set if the value of row i is null
+ * </pre>
+ *
+ * Types: 1 INT64, 2 FLOAT64, 3 DECIMAL, 4 STRING, 5 BINARY, 6 DATE, 7 TIME, 8 TIMESTAMP. DECIMAL
+ * values are plain decimal text and temporal values the server's own text, zero dates included;
+ * text is UTF-8. Values are only stored for rows that are not null, encoded as:
+ * <ul>
+ * <li>0 PLAIN: FLOAT64 as 8 byte IEEE 754, text and BINARY as varint length and bytes;</li>
+ * <li>1 DELTA: INT64 as the zigzag varint of the difference to the previous value, the first one
+ * to 0, so ascending keys take one or two bytes;</li>
+ * <li>2 DICTIONARY: text as a varint count of distinct values and each value as in PLAIN,
+ * followed by the varint index into them of each value; used when smaller than PLAIN.</li>
+ * </ul>
+ * Varints are unsigned LEB128, 7 bits per byte with the high bit set on all but the last byte.
+ */
+class ColumnarWriter {
+
+    static final String FILE_EXTENSION = ".ncol";
+
+    static final int VERSION = 1;
+
+    static final int ROW_GROUP_ROWS = 65536;
+
+    static final int ROW_GROUP_BYTES = 8 * 1024 * 1024;
+
+    // distinct values of a row group beyond which a text column is not dictionary encoded
+    private static final int MAX_DICTIONARY = 16384;
+
+    static final byte INT64 = 1, FLOAT64 = 2, DECIMAL = 3, STRING = 4, BINARY = 5, DATE = 6, TIME = 7, TIMESTAMP = 8;
+
+    static final byte PLAIN = 0, DELTA = 1, DICTIONARY = 2;
+
+    private final DataOutputStream out;
+
+    private final Column[] columns;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final Buffer chunk = new Buffer();
+
+    private int rows;
+
+    private long totalRows;
+
+    /**
+     * Returns the folder the columnar export of a backup is kept in, next to its archive: a
+     * "schema.sql" file and a sub-folder per table with its "part-00001.ncol" files in key order.
+     */
+    static File getExportFolder(String folder, String filename) {
+        String baseFilename = filename.endsWith(".sql") ? filename.substring(0, filename.length() - 4) : filename;
+        return new File(folder, baseFilename + "-columnar");
+    }
+
+    /**
+     * Deletes the columnar export of a backup, if it has one.
+     */
+    static void deleteExport(File exportFolder) {
+        File[] files = exportFolder.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory()) {
+                deleteExport(file);
+            } else {
+                file.delete();
+            }
+        }
+        exportFolder.delete();
+    }
+
+    /**
+     * Creates the file and writes its header.
+     *
+     * @param metaData metadata of a <code>SELECT *</code> on the table
+     */
+    ColumnarWriter(File file, String tableName, ResultSetMetaData metaData) throws SQLException, IOException {
+        columns = new Column[metaData.getColumnCount()];
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        out.writeBytes("NCOL");
+        out.writeByte(VERSION);
+        out.writeUTF(tableName);
+        out.writeShort(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column(typeOf(metaData, i + 1));
+            out.writeUTF(metaData.getColumnName(i + 1));
+            out.writeByte(columns[i].type);
+            out.writeUTF(metaData.getColumnTypeName(i + 1));
+        }
+    }
+
+    /**
+     * Adds the current row of the result set.
+     */
+    void writeRow(ResultSet rs) throws SQLException, IOException {
+        int bytes = 0;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].add(rs, i + 1, rows);
+            bytes += columns[i].size();
+        }
+        if (++rows == ROW_GROUP_ROWS || bytes >= ROW_GROUP_BYTES) {
+            writeRowGroup();
+        }
+    }
+
+    /**
+     * Writes the last row group and the footer.
+     */
+    void close() throws IOException {
+        try {
+            if (rows > 0) {
+                writeRowGroup();
+            }
+            out.writeByte('E');
+            out.writeLong(totalRows);
+        }
+        finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Closes and deletes an incomplete file, after the rows could not all be read.
+     */
+    void abort(File file) {
+        deflater.end();
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            // the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    private void writeRowGroup() throws IOException {
+        out.writeByte('G');
+        out.writeInt(rows);
+        for (Column column : columns) {
+            chunk.reset();
+            deflater.reset();
+            DeflaterOutputStream compressed = new DeflaterOutputStream(chunk, deflater, 8192);
+            byte encoding = column.writeTo(compressed, rows);
+            compressed.finish();
+            out.writeByte(encoding);
+            out.writeInt(chunk.size());
+            chunk.writeTo(out);
+            column.reset();
+        }
+        totalRows += rows;
+        rows = 0;
+    }
+
+    /**
+     * Returns the ncol type of a column, following the choices of {@link TableDumpPlan}.
+     */
+    private static byte typeOf(ResultSetMetaData metaData, int column) throws SQLException {
+        if (TableDumpPlan.isIntegral(metaData, column)) {
+            return INT64;
+        }
+        switch (metaData.getColumnType(column)) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                // TINYINT(1) and BIT(n) alike, the driver may give either the type name BIT
+                return INT64;
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return FLOAT64;
+            case Types.DATE:
+                return "YEAR".equalsIgnoreCase(metaData.getColumnTypeName(column)) ? INT64 : DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BINARY;
+            default:
+                return STRING;
+        }
+    }
+
+    /**
+     * The values of one column in the current row group.
+     */
+    private static class Column {
+
+        final byte type;
+
+        byte[] nulls = new byte[ROW_GROUP_ROWS / 8];
+
+        final Buffer values = new Buffer();
+
+        // text columns: the distinct values and the index of each value, null once too many
+        Map<String, Integer> dictionary;
+
+        final Buffer dictionaryValues = new Buffer();
+
+        final Buffer indexes = new Buffer();
+
+        long previous;
+
+        Column(byte type) {
+            this.type = type;
+            if (isText()) {
+                dictionary = new HashMap<String, Integer>();
+            }
+        }
+
+        boolean isText() {
+            return type == DECIMAL || type == STRING || type == DATE || type == TIME || type == TIMESTAMP;
+        }
+
+        void add(ResultSet rs, int column, int row) throws SQLException {
+            switch (type) {
+                case INT64:
+                    long value = rs.getLong(column);
+                    if (rs.wasNull()) {
+                        setNull(row);
+                    } else {
+                        values.writeVarLong(((value - previous) << 1) ^ ((value - previous) >> 63));
+                        previous = value;
+                    }
+                    break;
+                case FLOAT64:
+                    double number = rs.getDouble(column);
+                    if (rs.wasNull()) {
+                        setNull(row);
+                    } else {
+                        values.writeLong(Double.doubleToLongBits(number));
+                    }
+                    break;
+                case BINARY:
+                    byte[] bytes = rs.getBytes(column);
+                    if (bytes == null) {
+                        setNull(row);
+                    } else {
+                        values.writeBytes(bytes, bytes.length);
+                    }
+                    break;
+                default:
+                    String text;
+                    if (type == DECIMAL) {
+                        BigDecimal decimal = rs.getBigDecimal(column);
+                        text = decimal == null ? null : decimal.toPlainString();
+                    } else {
+                        text = rs.getString(column);
+                    }
+                    if (text == null) {
+                        setNull(row);
+                    } else {
+                        addText(text);
+                    }
+            }
+        }
+
+        private void addText(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            values.writeBytes(bytes, bytes.length);
+            if (dictionary != null) {
+                Integer index = dictionary.get(text);
+                if (index == null) {
+                    if (dictionary.size() == MAX_DICTIONARY) {
+                        dictionary = null;
+                        return;
+                    }
+                    index = dictionary.size();
+                    dictionary.put(text, index);
+                    dictionaryValues.writeBytes(bytes, bytes.length);
+                }
+                indexes.writeVarLong(index);
+            }
+        }
+
+        private void setNull(int row) {
+            nulls[row >> 3] |= 1 << (row & 7);
+        }
+
+        int size() {
+            return values.size() + dictionaryValues.size() + indexes.size();
+        }
+
+        /**
+         * Writes the null bitmap and the values of the row group.
+         *
+         * @return the encoding of the values
+         */
+        byte writeTo(OutputStream out, int rows) throws IOException {
+            out.write(nulls, 0, (rows + 7) / 8);
+            if (dictionary != null) {
+                Buffer count = new Buffer();
+                count.writeVarLong(dictionary.size());
+                if (count.size() + dictionaryValues.size() + indexes.size() < values.size()) {
+                    count.writeTo(out);
+                    dictionaryValues.writeTo(out);
+                    indexes.writeTo(out);
+                    return DICTIONARY;
+                }
+            }
+            values.writeTo(out);
+            return type == INT64 ? DELTA : PLAIN;
+        }
+
+        void reset() {
+            Arrays.fill(nulls, (byte) 0);
+            values.reset();
+            dictionaryValues.reset();
+            indexes.reset();
+            previous = 0;
+            if (isText()) {
+                dictionary = new HashMap<String, Integer>();
+            }
+        }
+    }
+
+    /**
+     * A growable byte buffer with the encodings of the format.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(8192);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        void writeBytes(byte[] bytes, int length) {
+            writeVarLong(length);
+            write(bytes, 0, length);
+        }
+    }
+}
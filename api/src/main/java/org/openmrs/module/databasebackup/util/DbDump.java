@@ -1,17 +1,19 @@
 package org.openmrs.module.databasebackup.util;
 
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.databasebackup.util.compress.BackupArchive;
+import org.openmrs.module.databasebackup.util.compress.CompressionCodec;
 
 public class DbDump {
 
@@ -19,324 +21,942 @@ public class DbDump {
     
     private static final String fileEncoding = "UTF8";
     
-    private static final HashMap<String, String> sqlTokens;
-    private static Pattern sqlTokenPattern;
-    
-    static {
-        // Define MySQL escape sequences
-        String[][] search_regex_replacement = new String[][] {
-            { "\u0000", "\\x00", "\\\\0" },
-            { "'",       "'",      "\\\\'" },
-            { "\"",      "\"",     "\\\\\"" },
-            { "\b",      "\\x08",   "\\\\b" },
-            { "\n",      "\\n",     "\\\\n" },
-            { "\r",      "\\r",     "\\\\r" },
-            { "\t",      "\\t",     "\\\\t" },
-            { "\u001A",  "\\x1A",   "\\\\Z" },
-            { "\\",      "\\\\",    "\\\\\\\\" }
-        };
-
-        sqlTokens = new HashMap<String, String>();
-        String patternStr = "";
-        for (String[] srr : search_regex_replacement) {
-            sqlTokens.put(srr[0], srr[2]);
-            patternStr += (patternStr.isEmpty() ? "" : "|") + srr[1];
-        }
-        sqlTokenPattern = Pattern.compile('(' + patternStr + ')');
-    }
-    
-    /**
-     * Escapes a given string for use in SQL.
-     */
-    private static String escape(String s) {
-        Matcher matcher = sqlTokenPattern.matcher(s);
-        StringBuffer sb = new StringBuffer();
-        while (matcher.find()) {
-            matcher.appendReplacement(sb, sqlTokens.get(matcher.group(1)));
-        }
-        matcher.appendTail(sb);
-        return sb.toString();
-    }
+    // number of rows fetched per page in keyset pagination
+    private static final int PAGE_SIZE = 10000;
 
-    /**
-     * Helper to update the progress map on the provided class (static methods).
-     */
-    @SuppressWarnings("unchecked")
-    private static void updateProgress(boolean showProgress, Class showProgressToClass, String filename, String message) {
-        if (!showProgress || showProgressToClass == null || filename == null) return;
-        try {
-            Map<String, String> info = (Map<String, String>) showProgressToClass.getMethod("getProgressInfo").invoke(null);
-            if (info == null) {
-                info = new HashMap<String, String>();
-            }
-            info.put(filename, message);
-            showProgressToClass.getMethod("setProgressInfo", Map.class).invoke(null, info);
-            log.info("Updated progress for " + filename + ": " + message);
-        } catch (Exception e) {
-            // Log but don't fail the dump because progress update failed
-            log.error("Unable to update progress for " + filename, e);
-        }
-    }
+    // rows per page of a table with BLOB or TEXT columns when the driver cannot stream them
+    private static final int LOB_PAGE_SIZE = 1000;
+
+    // default number of rows per chunk file, rounded up to whole pages
+    static final int CHUNK_ROWS = 100000;
+
+    private static final int WRITE_BUFFER = 65536;
     
     /**
      * Dumps the entire database including table structures, data, views, and stored routines.
+     * <p>
+     * The dump is written in a single pass through a compressing stream into
+     * "&lt;folder&gt;/&lt;filename without .sql&gt;&lt;codec extension&gt;", so the uncompressed SQL
+     * never touches the disk. Zip archives hold the dump under its original .sql name.
+     * <p>
+     * Table data is dumped in compressed chunks recorded in a {@link DumpCheckpoint}, which are
+     * copied into the archive and removed once the backup is complete. If the backup fails, the
+     * chunks are kept and the next backup of the same mode resumes after the last completed chunk.
+     * <p>
+     * The data is dumped in the order of the {@link BackupPlan}, largest tables first, and with
+     * several "dump.threads" the largest tables are split into key ranges dumped side by side. The
+     * size the plan estimates drives the ETA of the progress.
+     * <p>
+     * With "repository.enabled", the backup is stored in the {@link BackupRepository} of the
+     * folder instead: each table data chunk becomes an object shared by every backup holding the
+     * same chunk, and the backup itself is a manifest listing its objects. Old repository backups
+     * beyond "repository.keep" are then removed, along with the objects only they used.
+     * <p>
+     * The archive ends with a {@link BackupManifest} of the row count and checksum of each table.
+     * Unless "verify.afterBackup" is false, the archive is read back and checked against it by the
+     * {@link BackupVerifier}; a corrupt archive fails the backup.
+     * <p>
+     * A completed backup is recorded in the {@link BackupCatalog} of the folder, and the backups the
+     * {@link RetentionPolicy} of the "retention.*" properties does not keep are removed.
+     * <p>
+     * The time spent in each phase and on each table is recorded in the {@link BackupMetrics} of
+     * the progress and written to a run report next to the archive, see
+     * {@link BackupMetrics#getReportFile(String, String)}.
      *
-     * @param props Properties including "filename", "folder", "driver.class", "driver.url", etc.
-     * @param showProgress If true, progress updates can be shown.
-     * @param showProgressToClass A reference to a class for progress reporting (if needed).
+     * @param props Properties including "filename", "folder", "driver.class", "driver.url",
+     *            "compression.codec", "compression.level", "backup.mode" (full or incremental),
+     *            etc.
+     * @param progress Receives the progress of the dump, see {@link ProgressRegistry}.
      */
-    public static void dumpDB(Properties props, boolean showProgress, Class showProgressToClass) throws Exception {
+    public static void dumpDB(Properties props, final BackupProgress progress) throws Exception {
         String filename = props.getProperty("filename");
         String folder = props.getProperty("folder");
         String driverClassName = props.getProperty("driver.class");
         String driverURL = props.getProperty("driver.url");
         DatabaseMetaData dbMetaData = null;
         Connection dbConn = null;
+        CompressionCodec codec = Zip.getCodec(props.getProperty("compression.codec"));
+        boolean repositoryMode = Boolean.parseBoolean(props.getProperty("repository.enabled", "false"));
+        File archiveFile = repositoryMode ? BackupRepository.getManifestFile(folder, filename)
+                : Zip.getArchiveFile(folder, filename, codec);
+        BackupArchive archive = null;
+        final Map<String, List<File>> tableChunks = new HashMap<String, List<File>>();
+        final BackupMetrics metrics = progress.getMetrics();
 
         // Update progress: starting
-        updateProgress(showProgress, showProgressToClass, filename, "Starting database dump...");
+        progress.setPhase("Starting database dump...");
 
         try {
+            long phaseStarted = System.nanoTime();
             Class.forName(driverClassName);
             dbConn = DriverManager.getConnection(driverURL, props);
             dbMetaData = dbConn.getMetaData();
+
+            // Incremental backups need a full backup to build on
+            BackupChain chain = BackupChain.load(folder);
+            IncrementalBackup incremental = null;
+            if ("incremental".equals(props.getProperty("backup.mode"))) {
+                if (chain.hasFullBackup()) {
+                    incremental = IncrementalBackup.prepare(dbConn, chain);
+                    props.setProperty("insert.upsert", "true");
+                } else {
+                    log.info("No full backup to build on, taking a full backup instead of an incremental one");
+                    progress.setPhase("No previous full backup found, taking a full backup...");
+                }
+            }
+            // Completed chunks of an interrupted backup are not dumped again, unless the backup must be read
+            // from one snapshot
+            boolean requireConsistent = Boolean.parseBoolean(props.getProperty("dump.requireConsistent", "false"));
+            DumpCheckpoint checkpoint = DumpCheckpoint.open(folder, filename, incremental == null ? "full" : "incremental",
+                IncrementalBackup.getDatabaseTime(dbConn), !requireConsistent);
+            String startedAt = checkpoint.getStartedAt();
+            if (checkpoint.isResumed()) {
+                progress.setPhase("Resuming interrupted backup started at " + startedAt + "...");
+            }
             
-            FileOutputStream fos = new FileOutputStream(folder + filename);
-            OutputStreamWriter result = new OutputStreamWriter(fos, fileEncoding);
+            // The dump is compressed as it is written, the plain SQL never touches the disk
+            int level = Integer.parseInt(props.getProperty("compression.level", "6"));
+            final BackupRepository repository = repositoryMode ? new BackupRepository(folder) : null;
+            final BackupRepository.RepositoryArchive repositoryArchive = repositoryMode ? repository.createArchive(
+                archiveFile, level) : null;
+            archive = repositoryMode ? repositoryArchive : codec.createArchive(archiveFile, level);
+            archive.putNextEntry(filename);
+            SqlValueEncoder result = new SqlValueEncoder(new OutputStreamWriter(archive, fileEncoding), WRITE_BUFFER);
             
             // Write header information
             result.write("/*\n" +
                          " * DB jdbc url: " + driverURL + "\n" +
                          " * Database product & version: " + dbMetaData.getDatabaseProductName() + " " + dbMetaData.getDatabaseProductVersion() + "\n" +
                          " */\n");
+            if (incremental != null) {
+                // names the backups to restore first, also once a new chain has started
+                result.write(BackupChain.getHeader(chain.getArchives()));
+            }
                          
             result.write("SET FOREIGN_KEY_CHECKS=0;\n");
 
+            // Cut INSERT statements so they fit the server's max_allowed_packet unless configured otherwise
+            if (Long.parseLong(props.getProperty("insert.maxBytes", "0")) <= 0) {
+                props.setProperty("insert.maxBytes", String.valueOf(getMaxStatementBytes(dbConn)));
+            }
+
             // --- Gather Tables ---
-            updateProgress(showProgress, showProgressToClass, filename, "Gathering list of tables...");
-            List<String> tableVector = new Vector<String>();
-            ResultSet rs = dbMetaData.getTables(null, null, null, new String[] { "TABLE" });
-            while (rs.next()) {
-                String tableName = rs.getString("TABLE_NAME");
-                // (Optionally add filtering logic based on backup settings here)
-                tableVector.add(tableName);
+            progress.setPhase("Reading the schema of the database...");
+            final SchemaCatalog schema = SchemaCatalog.load(dbConn, folder, driverURL);
+            TableFilter filter = TableFilter.fromProperties(props);
+            // the tables whose data is backed up, i.e. all but the schema only ones
+            final List<String> dataTables = new ArrayList<String>();
+            List<String> tableVector = selectTables(schema, filter, incremental, props, dataTables);
+
+            // The largest tables are dumped first, and split into key ranges with several threads
+            progress.setPhase("Planning the backup...");
+            BackupPlan plan = BackupPlan.create(dbConn, schema, dataTables, props, incremental == null ? "full"
+                    : "incremental");
+            log.info(plan + "\n" + plan.getDetails());
+            for (String tableName : dataTables) {
+                checkpoint.setKeyRanges(tableName, plan.getKeyBounds(tableName));
+            }
+            metrics.setEstimate(plan.getEstimatedBytes(), plan.getEstimatedMillis());
+            if (!checkpoint.isResumed()) {
+                // a resumed backup only counts the bytes it dumps itself
+                progress.setBytesTotal(plan.getEstimatedBytes());
             }
 
             int tableCount = tableVector.size();
-            rs.beforeFirst();
-            int tableIndex = 0;
-            while (rs.next()) {
-                String tableName = rs.getString("TABLE_NAME");
-                if (tableVector.contains(tableName)) {
-                    tableIndex++;
-                    updateProgress(showProgress, showProgressToClass, filename,
-                            "Dumping table " + tableIndex + " of " + tableCount + ": " + tableName);
-
-                    result.write("\n\n-- Structure for table `" + tableName + "`\n");
-                    result.write("DROP TABLE IF EXISTS `" + tableName + "`;\n");
-                    PreparedStatement tableStmt = dbConn.prepareStatement("SHOW CREATE TABLE " + tableName);
-                    ResultSet tablesRs = tableStmt.executeQuery();
-                    while (tablesRs.next()) {
-                        result.write(tablesRs.getString("Create Table") + ";\n\n");
+            final int dataTableCount = dataTables.size();
+            progress.setTablesTotal(dataTableCount);
+            int threads = Integer.parseInt(props.getProperty("dump.threads", "1"));
+            // repository objects are already one per chunk
+            boolean filePerTable = !repositoryMode && Boolean.parseBoolean(props.getProperty("dump.filePerTable", "false"));
+
+            phaseStarted = endPhase(metrics, BackupMetrics.PHASE_PREPARE, phaseStarted);
+
+            // write all structures first, the data is dumped by the worker connections
+            for (int tableIndex = 1; tableIndex <= tableCount; tableIndex++) {
+                String tableName = tableVector.get(tableIndex - 1);
+                progress.setPhase("Dumping structure of table " + tableIndex + " of " + tableCount + ": " + tableName);
+                dumpTableStructure(dbConn, schema, result, tableName, incremental, !filter.isSchemaOnly(tableName));
+            }
+            phaseStarted = endPhase(metrics, BackupMetrics.PHASE_SCHEMA, phaseStarted);
+
+            new ParallelDump(props, threads, progress).dumpTables(plan.getTables(), checkpoint,
+                (tableIndex, tableName, chunkFiles) -> {
+                    if (filePerTable) {
+                        // added as separate archive entries once the main entry is complete
+                        tableChunks.put(tableName, chunkFiles);
+                    } else {
+                        long archiveStarted = System.nanoTime();
+                        for (File chunkFile : chunkFiles) {
+                            if (repositoryMode) {
+                                // stored as is, unless the repository holds it already
+                                result.flush();
+                                repositoryArchive.appendChunk(chunkFile, tableName);
+                            } else {
+                                append(chunkFile, result);
+                            }
+                        }
+                        result.write(BackupManifest.getDataEndComment(tableName));
+                        metrics.addArchiveTime(tableName, System.nanoTime() - archiveStarted);
                     }
-                    tablesRs.close();
-                    tableStmt.close();
-                    
-                    // Dump table data
-                    dumpTable(dbConn, result, tableName);
-
-                    updateProgress(showProgress, showProgressToClass, filename,
-                            "Finished table " + tableIndex + " of " + tableCount + ": " + tableName);
+                    progress.tableDone();
+                    progress.setPhase("Dumped table " + tableIndex + " of " + dataTableCount + ": " + tableName);
+                });
+            phaseStarted = endPhase(metrics, BackupMetrics.PHASE_DATA, phaseStarted);
+
+            // Views and routines are part of the full backup an incremental one builds on
+            if (incremental == null) {
+                // --- Dump Views ---
+                progress.setPhase("Dumping views...");
+                try {
+                    dumpViews(dbConn, schema, result);
+                } catch (Exception e) {
+                    log.error("Error dumping views: " + e);
+                    progress.setPhase("Error dumping views: " + e.getMessage());
                 }
-            }
-            rs.close();
-            
-            // --- Dump Views ---
-            updateProgress(showProgress, showProgressToClass, filename, "Dumping views...");
-            try {
-                dumpViews(dbConn, result);
-            } catch (Exception e) {
-                log.error("Error dumping views: " + e);
-                updateProgress(showProgress, showProgressToClass, filename, "Error dumping views: " + e.getMessage());
-            }
-            updateProgress(showProgress, showProgressToClass, filename, "Finished dumping views.");
+                progress.setPhase("Finished dumping views.");
+                phaseStarted = endPhase(metrics, BackupMetrics.PHASE_VIEWS, phaseStarted);
 
-            // --- Dump Stored Procedures and Functions ---
-            updateProgress(showProgress, showProgressToClass, filename, "Dumping stored routines (procedures & functions)...");
-            try {
-                dumpRoutines(dbConn, result);
-            } catch (Exception e) {
-                log.error("Error dumping routines: " + e);
-                updateProgress(showProgress, showProgressToClass, filename, "Error dumping routines: " + e.getMessage());
+                // --- Dump Stored Procedures, Functions and Triggers ---
+                progress.setPhase("Dumping stored routines (procedures & functions) and triggers...");
+                try {
+                    dumpRoutines(dbConn, schema, result);
+                } catch (Exception e) {
+                    log.error("Error dumping routines: " + e);
+                    progress.setPhase("Error dumping routines: " + e.getMessage());
+                }
+                progress.setPhase("Finished dumping stored routines.");
+                phaseStarted = endPhase(metrics, BackupMetrics.PHASE_ROUTINES, phaseStarted);
             }
-            updateProgress(showProgress, showProgressToClass, filename, "Finished dumping stored routines.");
 
             // Finalize the backup file
-            updateProgress(showProgress, showProgressToClass, filename, "Finalizing backup file...");
+            progress.setPhase("Finalizing backup file...");
             result.write("\nSET FOREIGN_KEY_CHECKS=1;\n");
             result.flush();
+            archive.closeEntry();
+
+            // In file per table mode, each table's data follows as its own entry (single stream
+            // codecs simply append it), restorable on its own
+            String tableFolder = getTableFolderName(filename);
+            for (int tableIndex = 1; tableIndex <= tableCount; tableIndex++) {
+                String tableName = tableVector.get(tableIndex - 1);
+                List<File> chunkFiles = tableChunks.get(tableName);
+                if (chunkFiles == null) {
+                    continue;
+                }
+                long archiveStarted = System.nanoTime();
+                archive.putNextEntry(tableFolder + "/" + String.format("%04d_%s.sql", tableIndex, tableName));
+                result.write("SET FOREIGN_KEY_CHECKS=0;\n");
+                for (File chunkFile : chunkFiles) {
+                    append(chunkFile, result);
+                }
+                result.write(BackupManifest.getDataEndComment(tableName));
+                result.write("\nSET FOREIGN_KEY_CHECKS=1;\n");
+                result.flush();
+                archive.closeEntry();
+                metrics.addArchiveTime(tableName, System.nanoTime() - archiveStarted);
+            }
+
+            // The manifest comes last, so a truncated archive lacks it
+            String inconsistency = checkpoint.getInconsistency();
+            if (inconsistency != null) {
+                log.warn("Backup " + filename + " is not point-in-time consistent: " + inconsistency);
+                metrics.setInconsistent(inconsistency);
+            }
+            archive.putNextEntry(BackupManifest.getEntryName(filename));
+            createManifest(dbConn, checkpoint, plan.getTables(), props).write(result);
+            result.flush();
+            archive.closeEntry();
+
             result.close();
+            archive = null;
+            if (Boolean.parseBoolean(props.getProperty("verify.afterBackup", "true"))) {
+                progress.setPhase("Verifying backup file...");
+                BackupVerifier.Result verification = BackupVerifier.verifyArchive(archiveFile, null);
+                if (!verification.isValid()) {
+                    // the chunks are kept, the next backup writes the archive again
+                    archiveFile.delete();
+                    throw new IOException("The backup file is corrupt: " + verification.getProblems());
+                }
+            }
+            if (Boolean.parseBoolean(props.getProperty("export.columnar", "false"))) {
+                progress.setPhase("Writing columnar export...");
+                exportColumnar(dbConn, schema, checkpoint, ColumnarWriter.getExportFolder(folder, filename),
+                    tableVector, dataTables);
+            }
             dbConn.close();
+            log.info("CREATE statements of the schema: " + schema.getCacheStatistics());
+            try {
+                schema.saveCache();
+            } catch (IOException e) {
+                log.warn("Unable to save the schema cache", e);
+            }
+            checkpoint.delete();
+
+            // The backup is complete, it becomes part of the chain
+            chain.record(archiveFile.getName(), incremental == null, startedAt, dataTables);
+            chain.save();
+
+            // Catalog the backup, then remove those the retention policy does not keep
+            progress.setPhase("Removing old backups...");
+            try {
+                BackupCatalog catalog = BackupCatalog.get(folder);
+                catalog.record(BackupCatalog.Entry.of(archiveFile, repositoryMode ? repositoryArchive.getStoredBytes()
+                        : archiveFile.length(), incremental == null ? "full" : "incremental", metrics, tableCount));
+                List<String> protectedNames = new ArrayList<String>(chain.getArchives());
+                protectedNames.add(archiveFile.getName());
+                catalog.prune(RetentionPolicy.fromProperties(props), protectedNames);
+            } catch (IOException e) {
+                log.warn("Unable to catalog the backup or apply the retention policy", e);
+            }
+
+            if (repositoryMode) {
+                progress.setPhase("Removing old backups from the repository...");
+                try {
+                    repository.collectGarbage(folder, Integer.parseInt(props.getProperty("repository.keep", "14")),
+                        chain.getArchives());
+                } catch (IOException e) {
+                    log.warn("Unable to remove old backups from the repository", e);
+                }
+            }
+            endPhase(metrics, BackupMetrics.PHASE_FINALIZE, phaseStarted);
+            metrics.finish(false);
+            writeReport(metrics, folder, filename);
 
             // Completed
-            updateProgress(showProgress, showProgressToClass, filename, "Backup complete.");
+            progress.finish(inconsistency == null ? "Backup complete." : "Backup complete, but not point-in-time "
+                    + "consistent: " + inconsistency + ".", false);
         } catch (Exception ex) {
             log.error("Exception during database dump", ex);
-            // Update progress map with failure
-            updateProgress(showProgress, showProgressToClass, filename, "Backup failed: " + ex.getMessage());
+            if (archive != null) {
+                // never leave a truncated archive behind that looks like a complete backup
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close archive " + archiveFile, e);
+                }
+                archiveFile.delete();
+            }
+            metrics.finish(true);
+            writeReport(metrics, folder, filename);
+            // Report the failure, the completed chunks are kept for the next backup unless it must start over
+            boolean startOver = Boolean.parseBoolean(props.getProperty("dump.requireConsistent", "false"));
+            progress.finish((ex instanceof InterruptedException ? "Backup cancelled"
+                    : "Backup failed: " + ex.getMessage()) + (startOver ? ". The next backup starts over."
+                    : ". The next backup resumes from the last completed chunk."), true);
             // rethrow so caller can still handle (and outer thread's catch will also set progress / alert)
             throw ex;
         }
     }
     
     /**
-     * Dumps data for a specific table.
+     * Plans a backup without dumping anything: reads the schema of the database and estimates the
+     * size and duration of the backup the given properties would take, see {@link BackupPlan}.
+     * Nothing is written to the backup folder.
+     *
+     * @param props the properties a backup would be taken with, see
+     *            {@link #dumpDB(Properties, BackupProgress)}
+     * @param progress receives the progress, and the summary of the plan as its final message
+     * @return the plan
+     */
+    public static BackupPlan planDB(Properties props, BackupProgress progress) throws Exception {
+        String folder = props.getProperty("folder");
+        String driverURL = props.getProperty("driver.url");
+        progress.setPhase("Starting backup plan...");
+        try {
+            Class.forName(props.getProperty("driver.class"));
+            Connection dbConn = DriverManager.getConnection(driverURL, props);
+            try {
+                IncrementalBackup incremental = null;
+                BackupChain chain = BackupChain.load(folder);
+                if ("incremental".equals(props.getProperty("backup.mode")) && chain.hasFullBackup()) {
+                    incremental = IncrementalBackup.prepare(dbConn, chain);
+                }
+                progress.setPhase("Reading the schema of the database...");
+                SchemaCatalog schema = SchemaCatalog.load(dbConn, folder, driverURL);
+                List<String> dataTables = new ArrayList<String>();
+                selectTables(schema, TableFilter.fromProperties(props), incremental, props, dataTables);
+                progress.setPhase("Planning the backup...");
+                BackupPlan plan = BackupPlan.create(dbConn, schema, dataTables, props, incremental == null ? "full"
+                        : "incremental");
+                log.info(plan + "\n" + plan.getDetails());
+                progress.finish(plan.toString(), false);
+                return plan;
+            }
+            finally {
+                dbConn.close();
+            }
+        } catch (Exception ex) {
+            log.error("Exception while planning the database backup", ex);
+            progress.finish("Backup plan failed: " + ex.getMessage(), true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Selects the tables of the backup and sets the dump properties of the tables whose data is
+     * backed up: their key column, whether they have BLOB or TEXT columns and the condition on
+     * their rows.
+     *
+     * @param dataTables receives the tables whose data is backed up
+     * @return the tables of the backup, by name
+     */
+    private static List<String> selectTables(SchemaCatalog schema, TableFilter filter, IncrementalBackup incremental,
+            Properties props, List<String> dataTables) throws SQLException {
+        List<String> tableVector = new ArrayList<String>();
+        for (SchemaCatalog.Table table : schema.getTables()) {
+            String tableName = table.getName();
+            if (!filter.isIncluded(tableName)) {
+                continue;
+            }
+            tableVector.add(tableName);
+            if (!filter.isSchemaOnly(tableName)) {
+                dataTables.add(tableName);
+                // spares the workers a metadata query per chunk
+                String keyColumn = table.getKeysetColumn();
+                props.setProperty("table.keyColumn." + tableName, keyColumn == null ? "" : keyColumn);
+                props.setProperty("table.largeObjects." + tableName, String.valueOf(table.hasLargeObjects()));
+            }
+        }
+        if (tableVector.isEmpty()) {
+            throw new SQLException("No tables match the included and excluded tables of the backup settings");
+        }
+
+        // Only rows meeting the configured condition, and in an incremental backup only changed rows
+        for (String tableName : dataTables) {
+            String condition = filter.getCondition(tableName);
+            String changed = incremental == null ? null : incremental.getChangedRowsCondition(tableName);
+            if (condition != null && changed != null) {
+                condition = "(" + condition + ") AND (" + changed + ")";
+            } else if (changed != null) {
+                condition = changed;
+            }
+            if (condition != null) {
+                props.setProperty("table.where." + tableName, condition);
+            }
+        }
+        return tableVector;
+    }
+
+    /**
+     * Adds the time since a phase started to the metrics.
+     *
+     * @return the start of the next phase
+     */
+    private static long endPhase(BackupMetrics metrics, String phase, long phaseStarted) {
+        long now = System.nanoTime();
+        metrics.addPhaseTime(phase, now - phaseStarted);
+        return now;
+    }
+
+    /**
+     * Writes the run report of a backup next to its archive. A backup is not failed for want of its
+     * report.
+     */
+    private static void writeReport(BackupMetrics metrics, String folder, String filename) {
+        File reportFile = BackupMetrics.getReportFile(folder, filename);
+        try {
+            metrics.writeReport(reportFile);
+        } catch (IOException e) {
+            log.warn("Unable to write the run report " + reportFile, e);
+        }
+        log.info("Backup " + filename + " took " + metrics.getElapsedMillis() + " ms, " + metrics.getPhaseMillis()
+                + " ms per phase, " + metrics.getRows() + " rows, " + metrics.getBytes() + " bytes");
+    }
+
+    /**
+     * Copies a chunk file spooled by the worker connections to the dump.
+     */
+    private static void append(File chunkFile, Writer result) throws IOException {
+        Reader in = ParallelDump.openChunkFile(chunkFile);
+        try {
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                result.write(buffer, 0, count);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the name of the archive folder holding one data file per table when the dump is
+     * written in file per table mode, i.e. "&lt;filename without .sql&gt;-tables".
+     *
+     * @param filename the name of the main dump file
+     */
+    public static String getTableFolderName(String filename) {
+        String baseFilename = filename.endsWith(".sql") ? filename.substring(0, filename.length() - 4) : filename;
+        return baseFilename + "-tables";
+    }
+
+    /**
+     * Collects the row counts and checksums of the tables from the checkpoint and, with
+     * "verify.checksumTables", the <code>CHECKSUM TABLE</code> results of the tables backed up in
+     * full. These are taken after the dump, outside its snapshot, so they only match the backup if
+     * the table has not been written to since.
+     */
+    private static BackupManifest createManifest(Connection dbConn, DumpCheckpoint checkpoint, List<String> dataTables,
+            Properties props) throws SQLException {
+        BackupManifest manifest = new BackupManifest();
+        manifest.setConsistent(checkpoint.getInconsistency() == null);
+        for (String tableName : dataTables) {
+            BackupManifest.TableChecksum checksum = checkpoint.getTableChecksum(tableName);
+            if (checksum != null) {
+                manifest.addTable(tableName, checksum);
+            }
+        }
+        if (Boolean.parseBoolean(props.getProperty("verify.checksumTables", "false"))) {
+            Statement stmt = dbConn.createStatement();
+            try {
+                for (String tableName : dataTables) {
+                    if (props.getProperty("table.where." + tableName) != null) {
+                        continue;
+                    }
+                    ResultSet rs = stmt.executeQuery("CHECKSUM TABLE `" + tableName + "`");
+                    if (rs.next()) {
+                        long checksum = rs.getLong(2);
+                        if (!rs.wasNull()) {
+                            manifest.setChecksumTable(tableName, checksum);
+                        }
+                    }
+                    rs.close();
+                }
+            }
+            finally {
+                stmt.close();
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Moves the columnar files of the chunks to the export folder of the backup, and writes the
+     * CREATE statements of its tables to "schema.sql" there. The export of an incremental backup
+     * only holds the rows changed since the previous backup.
+     */
+    private static void exportColumnar(Connection dbConn, SchemaCatalog schema, DumpCheckpoint checkpoint,
+            File exportFolder, List<String> tableVector, List<String> dataTables) throws SQLException, IOException {
+        ColumnarWriter.deleteExport(exportFolder);
+        if (!exportFolder.mkdirs()) {
+            throw new IOException("Unable to create folder " + exportFolder.getAbsolutePath());
+        }
+        Writer schemaFile = new OutputStreamWriter(new FileOutputStream(new File(exportFolder, "schema.sql")), "UTF-8");
+        try {
+            for (String tableName : tableVector) {
+                String createTable = schema.getCreateStatement(dbConn, schema.getTable(tableName));
+                if (createTable != null) {
+                    schemaFile.write(createTable + ";\n\n");
+                }
+            }
+        }
+        finally {
+            schemaFile.close();
+        }
+        for (String tableName : dataTables) {
+            File tableFolder = new File(exportFolder, tableName);
+            tableFolder.mkdir();
+            int part = 0;
+            for (File columnarFile : checkpoint.getColumnarFiles(tableName)) {
+                // chunks dumped before a resume without the export enabled have no columnar file
+                if (!columnarFile.exists()) {
+                    log.warn("Columnar export of table " + tableName + " is incomplete, " + columnarFile.getName()
+                            + " is missing");
+                    continue;
+                }
+                File target = new File(tableFolder, String.format("part-%05d%s", ++part, ColumnarWriter.FILE_EXTENSION));
+                if (!columnarFile.renameTo(target)) {
+                    throw new IOException("Unable to move " + columnarFile.getAbsolutePath() + " to "
+                            + target.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the DROP and CREATE statements for a table. Incremental backups only create tables
+     * that are new since the previous backup, and clear the tables they copy in full.
+     *
+     * @param withData false if the data of the table is left out of the backup
+     */
+    private static void dumpTableStructure(Connection dbConn, SchemaCatalog schema, Writer result, String tableName,
+            IncrementalBackup incremental, boolean withData) throws SQLException, IOException {
+        if (incremental != null && !incremental.isNewTable(tableName)) {
+            if (withData && incremental.isFullCopy(tableName)) {
+                result.write("\n\n-- Table `" + tableName + "` has no audit columns and is copied in full\n");
+                result.write("DELETE FROM `" + tableName + "`;\n");
+            }
+            return;
+        }
+        result.write("\n\n-- Structure for table `" + tableName + "`\n");
+        if (incremental == null) {
+            result.write("DROP TABLE IF EXISTS `" + tableName + "`;\n");
+        }
+        String createTable = schema.getCreateStatement(dbConn, schema.getTable(tableName));
+        if (createTable != null) {
+            if (incremental != null) {
+                createTable = createTable.replaceFirst("^CREATE TABLE", "CREATE TABLE IF NOT EXISTS");
+            }
+            result.write(createTable + ";\n\n");
+        }
+        if (!withData) {
+            result.write("-- Data of table `" + tableName + "` is not backed up (schema only)\n");
+        }
+    }
+
+    /**
+     * Dumps one chunk of the data of a table.
+     * <p>
+     * Tables with a single-column primary key are walked in key order with keyset pagination
+     * (<code>WHERE pk &gt; last ORDER BY pk LIMIT n</code>), so every page is an index range scan
+     * instead of an offset scan that re-reads and discards all previous rows. A chunk holds the
+     * rows following its start key, up to "dump.chunkRows" rows and to the end of its key range if
+     * the table is split; its last key and whether the range is complete are set on the chunk.
+     * Tables without a usable key are dumped in a single chunk, read through a forward-only
+     * streaming result set.
+     * <p>
+     * Only the rows matching the "table.where.&lt;tableName&gt;" property are dumped, if it is set.
+     * The key column and whether the table has BLOB or TEXT columns are taken from the
+     * "table.keyColumn.&lt;tableName&gt;" and "table.largeObjects.&lt;tableName&gt;" properties, set
+     * from the {@link SchemaCatalog}, else read from the database metadata.
+     * With "export.columnar", the rows are also written to the chunk's {@link ColumnarWriter} file.
+     * The time spent fetching rows and writing them is recorded in the metrics of the progress.
      *
      * @param dbConn The active database connection.
-     * @param result The writer to the backup file.
-     * @param tableName The name of the table to dump.
+     * @param result The writer to the chunk file.
+     * @param chunk The chunk of the table to dump.
+     * @param props The dump properties, see {@link InsertStatementWriter}.
+     * @param progress Receives the rows and bytes written, page by page.
+     * @param throttle Told about every page, waits while the dump has to slow down.
+     * @throws SQLException If the data cannot be read; the chunk is incomplete and must be retried.
+     * @throws IOException If the chunk cannot be written.
+     */
+    static void dumpTable(Connection dbConn, SqlValueEncoder result, DumpCheckpoint.Chunk chunk, Properties props,
+            BackupProgress progress, DumpThrottle throttle) throws SQLException, IOException {
+        long started = System.nanoTime();
+        String tableName = chunk.tableName;
+        if (chunk.index == 0 && chunk.range == 0) {
+            result.write("\n\n-- Data for table `" + tableName + "`\n");
+        }
+
+        String where = props.getProperty("table.where." + tableName);
+        // the same rows go to the columnar export, if any
+        File columnarFile = Boolean.parseBoolean(props.getProperty("export.columnar", "false")) ? chunk
+                .getColumnarFile() : null;
+        String keyColumn = props.containsKey("table.keyColumn." + tableName) ? props.getProperty("table.keyColumn."
+                + tableName) : getKeysetColumn(dbConn, tableName);
+        if (keyColumn != null && !keyColumn.isEmpty()) {
+            dumpTableByKey(dbConn, result, chunk, keyColumn, where, props, progress, throttle, columnarFile);
+        } else {
+            chunk.rows = dumpTableStreaming(dbConn, result, tableName, where, props, progress, throttle, columnarFile);
+            chunk.complete = true;
+        }
+        progress.getMetrics().addChunkTime(tableName, System.nanoTime() - started);
+    }
+
+    /**
+     * Dumps one chunk of the data of a table, unthrottled.
+     *
+     * @see #dumpTable(Connection, SqlValueEncoder, DumpCheckpoint.Chunk, Properties, BackupProgress,
+     *      DumpThrottle)
+     */
+    static void dumpTable(Connection dbConn, SqlValueEncoder result, DumpCheckpoint.Chunk chunk, Properties props,
+            BackupProgress progress) throws SQLException, IOException {
+        dumpTable(dbConn, result, chunk, props, progress, DumpThrottle.NONE);
+    }
+
+    /**
+     * Returns the largest INSERT statement the server accepts, derived from its max_allowed_packet.
+     */
+    private static long getMaxStatementBytes(Connection dbConn) {
+        long maxAllowedPacket = 1024 * 1024;
+        try {
+            Statement stmt = dbConn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT @@max_allowed_packet");
+            if (rs.next()) {
+                maxAllowedPacket = rs.getLong(1);
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            log.warn("Unable to read max_allowed_packet, using " + maxAllowedPacket + " bytes. " + e);
+        }
+        return Math.max(InsertStatementWriter.PACKET_MARGIN * 2, maxAllowedPacket - InsertStatementWriter.PACKET_MARGIN);
+    }
+
+    /**
+     * Returns the name of the column to paginate on, or null if the table has no single-column
+     * primary key.
      */
-    // Dump table data
- private static void dumpTable(Connection dbConn, OutputStreamWriter result, String tableName) {
-     try {
-         int max = 10000;
-         Statement s = dbConn.createStatement();
-         ResultSet r = s.executeQuery("SELECT COUNT(*) AS rowcount FROM " + tableName);
-         r.next();
-         int count = r.getInt("rowcount");
-         r.close();
-
-         int offset = 0;
-         result.write("\n\n-- Data for table `" + tableName + "`\n");
-
-         while (offset < count) {
-             PreparedStatement stmt = dbConn.prepareStatement("SELECT * FROM " + tableName + " LIMIT " + offset + ", " + max);
-             ResultSet rs = stmt.executeQuery();
-             ResultSetMetaData metaData = rs.getMetaData();
-             int columnCount = metaData.getColumnCount();
-
-             // Build column header string
-             StringBuilder dataHeaders = new StringBuilder("(" + metaData.getColumnName(1));
-             for (int i = 2; i <= columnCount; i++) {
-                 dataHeaders.append(", ").append(metaData.getColumnName(i));
-             }
-             dataHeaders.append(")");
-
-             boolean firstRow = true;
-             while (rs.next()) {
-                 if (firstRow) {
-                     result.write("INSERT INTO `" + tableName + "` " + dataHeaders.toString() + " VALUES ");
-                     firstRow = false;
-                 } else {
-                     result.write(", ");
-                 }
-
-                 result.write("(");
-                 for (int i = 1; i <= columnCount; i++) {
-                     if (i > 1) {
-                         result.write(", ");
-                     }
-                     Object value = rs.getObject(i);
-                     int columnType = metaData.getColumnType(i);  // Get column data type
-
-                     if (value == null) {
-                         result.write("NULL");
-                     } else if (columnType == Types.BIT || columnType == Types.TINYINT) {
-                         // Ensure boolean and tinyint values are inserted correctly
-                         result.write(value.toString().equals("true") ? "1" : "0");
-                     } else {
-                         String outputValue = value.toString();
-                         outputValue = escape(outputValue);  // Escape special characters
-                         result.write("'" + outputValue + "'");
-                     }
-                 }
-                 result.write(")");
-             }
-             if (!firstRow) {
-                 result.write(";\n");
-             }
-             rs.close();
-             stmt.close();
-             offset += max;
-         }
-     } catch (SQLException | IOException e) {
-         log.error("Unable to dump table " + tableName + ". " + e);
-     }
- }
+    private static String getKeysetColumn(Connection dbConn, String tableName) throws SQLException {
+        String keyColumn = null;
+        int keyColumns = 0;
+        ResultSet rs = dbConn.getMetaData().getPrimaryKeys(dbConn.getCatalog(), null, tableName);
+        while (rs.next()) {
+            keyColumn = rs.getString("COLUMN_NAME");
+            keyColumns++;
+        }
+        rs.close();
+        return keyColumns == 1 ? keyColumn : null;
+    }
+
+    /**
+     * Returns whether the table has BLOB or TEXT columns.
+     */
+    private static boolean hasLargeObjects(Connection dbConn, String tableName) throws SQLException {
+        boolean largeObjects = false;
+        ResultSet rs = dbConn.getMetaData().getColumns(dbConn.getCatalog(), null, tableName, null);
+        while (rs.next()) {
+            largeObjects |= TableDumpPlan.isLargeObject(rs.getInt("DATA_TYPE"));
+        }
+        rs.close();
+        return largeObjects;
+    }
+
+    /**
+     * Asks the driver to stream the rows of the statement's result sets one by one, as the MySQL
+     * driver does when the fetch size is Integer.MIN_VALUE, instead of reading them all first.
+     *
+     * @return false if the driver does not support it
+     */
+    private static boolean streamRows(PreparedStatement stmt) {
+        try {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Dumps a chunk of a table page by page, each page starting right after the last key of the
+     * previous one. The rows of a table with BLOB or TEXT columns are streamed, or else read in
+     * smaller pages, so a page of large values is never held in memory at once.
+     */
+    private static void dumpTableByKey(Connection dbConn, SqlValueEncoder result, DumpCheckpoint.Chunk chunk,
+            String keyColumn, String where, Properties props, BackupProgress progress, DumpThrottle throttle,
+            File columnarFile) throws SQLException, IOException {
+        String tableName = chunk.tableName;
+        boolean largeObjects = props.containsKey("table.largeObjects." + tableName) ? Boolean.parseBoolean(props
+                .getProperty("table.largeObjects." + tableName)) : hasLargeObjects(dbConn, tableName);
+        boolean upsert = Boolean.parseBoolean(props.getProperty("insert.upsert", "false"));
+        if (chunk.untilKey != null) {
+            // the bound of a key range is an integer, see BackupPlan
+            String until = "`" + keyColumn + "` <= " + new BigInteger(chunk.untilKey);
+            where = where == null ? until : "(" + where + ") AND " + until;
+        }
+        String filter = where == null ? "" : "(" + where + ") AND ";
+        String firstPageSql = "SELECT * FROM `" + tableName + "`" + (where == null ? "" : " WHERE " + where)
+                + " ORDER BY `" + keyColumn + "` LIMIT ";
+        String nextPageSql = "SELECT * FROM `" + tableName + "` WHERE " + filter + "`" + keyColumn + "` > ? ORDER BY `"
+                + keyColumn + "` LIMIT ";
+        int pageSize = PAGE_SIZE;
+        PreparedStatement firstPage = dbConn.prepareStatement(firstPageSql + pageSize);
+        PreparedStatement nextPage = dbConn.prepareStatement(nextPageSql + pageSize);
+        if (largeObjects && !(streamRows(firstPage) && streamRows(nextPage))) {
+            firstPage.close();
+            nextPage.close();
+            pageSize = LOB_PAGE_SIZE;
+            firstPage = dbConn.prepareStatement(firstPageSql + pageSize);
+            nextPage = dbConn.prepareStatement(nextPageSql + pageSize);
+        }
+        int chunkPages = Math.max(1, (Integer.parseInt(props.getProperty("dump.chunkRows", String.valueOf(CHUNK_ROWS)))
+                + pageSize - 1) / pageSize);
+        ColumnarWriter columnar = null;
+        try {
+            InsertStatementWriter inserts = null;
+            boolean integralKey = false;
+            int keyIndex = 0;
+            long lastLongKey = 0;
+            Object lastKey = chunk.afterKey;
+            int rows = pageSize;
+            // only integral and character keys can be recorded to resume from, others end the chunk
+            boolean splittable = true;
+            for (int pages = 0; rows == pageSize && (pages < chunkPages || !splittable); pages++) {
+                PreparedStatement stmt = firstPage;
+                if (pages > 0 || chunk.afterKey != null) {
+                    stmt = nextPage;
+                    if (pages == 0) {
+                        // the key of the previous chunk, as recorded in the checkpoint
+                        stmt.setString(1, chunk.afterKey);
+                    } else if (integralKey) {
+                        stmt.setLong(1, lastLongKey);
+                    } else {
+                        stmt.setObject(1, lastKey);
+                    }
+                }
+                long pageStarted = System.nanoTime();
+                ResultSet rs = stmt.executeQuery();
+                if (inserts == null) {
+                    // the column writers are resolved once and reused for every page
+                    ResultSetMetaData metaData = rs.getMetaData();
+                    inserts = new InsertStatementWriter(result, tableName, TableDumpPlan.create(tableName, metaData, upsert), props);
+                    keyIndex = rs.findColumn(keyColumn);
+                    integralKey = TableDumpPlan.isIntegral(metaData, keyIndex);
+                    if (columnarFile != null) {
+                        columnar = new ColumnarWriter(columnarFile, tableName, metaData);
+                    }
+                }
+                rows = 0;
+                long bytesBefore = result.getByteCount();
+                long writeNanos = 0;
+                while (rs.next()) {
+                    long writeStarted = System.nanoTime();
+                    inserts.writeRow(rs);
+                    if (columnar != null) {
+                        columnar.writeRow(rs);
+                    }
+                    writeNanos += System.nanoTime() - writeStarted;
+                    if (integralKey) {
+                        lastLongKey = rs.getLong(keyIndex);
+                    } else {
+                        lastKey = rs.getObject(keyIndex);
+                    }
+                    rows++;
+                }
+                rs.close();
+                long bytes = result.getByteCount() - bytesBefore;
+                chunk.rows += rows;
+                progress.addRows(rows);
+                progress.addBytes(bytes);
+                progress.getMetrics().addPage(tableName, rows, bytes, System.nanoTime() - pageStarted - writeNanos,
+                    writeNanos);
+                throttle.pageDumped(rows, bytes);
+                if (rows > 0) {
+                    splittable = integralKey || lastKey instanceof String;
+                    chunk.lastKey = integralKey ? String.valueOf(lastLongKey) : String.valueOf(lastKey);
+                }
+            }
+            inserts.finish();
+            if (columnar != null) {
+                columnar.close();
+                columnar = null;
+            }
+            chunk.complete = rows < pageSize;
+        }
+        finally {
+            if (columnar != null) {
+                columnar.abort(columnarFile);
+            }
+            firstPage.close();
+            nextPage.close();
+        }
+    }
+
+    /**
+     * Dumps a table through a single forward-only result set. The MySQL driver streams rows one by
+     * one instead of buffering the whole table when the fetch size is Integer.MIN_VALUE.
+     *
+     * @return the number of rows dumped
+     */
+    private static long dumpTableStreaming(Connection dbConn, SqlValueEncoder result, String tableName, String where,
+            Properties props, BackupProgress progress, DumpThrottle throttle, File columnarFile) throws SQLException,
+            IOException {
+        boolean upsert = Boolean.parseBoolean(props.getProperty("insert.upsert", "false"));
+        BackupMetrics metrics = progress.getMetrics();
+        Statement stmt = dbConn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ColumnarWriter columnar = null;
+        try {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            long pageStarted = System.nanoTime();
+            ResultSet rs = stmt.executeQuery("SELECT * FROM `" + tableName + "`" + (where == null ? "" : " WHERE " + where));
+            InsertStatementWriter inserts = new InsertStatementWriter(result, tableName, TableDumpPlan.create(tableName,
+                rs.getMetaData(), upsert), props);
+            if (columnarFile != null) {
+                columnar = new ColumnarWriter(columnarFile, tableName, rs.getMetaData());
+            }
+            int rows = 0;
+            long totalRows = 0;
+            long bytesBefore = result.getByteCount();
+            long writeNanos = 0;
+            while (rs.next()) {
+                long writeStarted = System.nanoTime();
+                inserts.writeRow(rs);
+                if (columnar != null) {
+                    columnar.writeRow(rs);
+                }
+                writeNanos += System.nanoTime() - writeStarted;
+                if (++rows == PAGE_SIZE) {
+                    long bytes = result.getByteCount() - bytesBefore;
+                    long now = System.nanoTime();
+                    totalRows += rows;
+                    progress.addRows(rows);
+                    progress.addBytes(bytes);
+                    metrics.addPage(tableName, rows, bytes, now - pageStarted - writeNanos, writeNanos);
+                    // the server aborts the result set if it is not read for net_write_timeout
+                    throttle.pageStreamed(rows, bytes);
+                    rows = 0;
+                    bytesBefore = result.getByteCount();
+                    writeNanos = 0;
+                    pageStarted = System.nanoTime();
+                }
+            }
+            rs.close();
+            inserts.finish();
+            if (columnar != null) {
+                columnar.close();
+                columnar = null;
+            }
+            long bytes = result.getByteCount() - bytesBefore;
+            progress.addRows(rows);
+            progress.addBytes(bytes);
+            metrics.addPage(tableName, rows, bytes, System.nanoTime() - pageStarted - writeNanos, writeNanos);
+            return totalRows + rows;
+        }
+        finally {
+            if (columnar != null) {
+                columnar.abort(columnarFile);
+            }
+            stmt.close();
+        }
+    }
     
     /**
      * Dumps view definitions from the database.
      *
      * @param dbConn The active database connection.
+     * @param schema The schema of the database.
      * @param result The writer to the backup file.
      * @throws SQLException If a SQL error occurs.
      * @throws IOException  If an I/O error occurs.
      */
-    private static void dumpViews(Connection dbConn, OutputStreamWriter result) throws SQLException, IOException {
-        // Use DatabaseMetaData to retrieve views
-        DatabaseMetaData dbMetaData = dbConn.getMetaData();
-        ResultSet rsViews = dbMetaData.getTables(null, null, null, new String[] { "VIEW" });
-        while (rsViews.next()) {
-            String viewName = rsViews.getString("TABLE_NAME");
-            result.write("\n\n-- Definition for view `" + viewName + "`\n");
-            PreparedStatement ps = dbConn.prepareStatement("SHOW CREATE VIEW " + viewName);
-            ResultSet rsCreateView = ps.executeQuery();
-            if (rsCreateView.next()) {
-                String createView = rsCreateView.getString("Create View");
+    private static void dumpViews(Connection dbConn, SchemaCatalog schema, Writer result) throws SQLException,
+            IOException {
+        for (SchemaCatalog.SchemaObject view : schema.getViews()) {
+            result.write("\n\n-- Definition for view `" + view.getName() + "`\n");
+            String createView = schema.getCreateStatement(dbConn, view);
+            if (createView != null) {
                 result.write(createView + ";\n");
             }
-            rsCreateView.close();
-            ps.close();
         }
-        rsViews.close();
     }
     
     /**
-     * Dumps stored procedures and functions from the database.
+     * Dumps stored procedures and functions from the database, followed by the triggers, which
+     * come after all data so restoring it does not fire them.
      *
      * @param dbConn The active database connection.
+     * @param schema The schema of the database.
      * @param result The writer to the backup file.
      * @throws SQLException If a SQL error occurs.
      * @throws IOException  If an I/O error occurs.
      */
-    private static void dumpRoutines(Connection dbConn, OutputStreamWriter result) throws SQLException, IOException {
-        Statement stmt = dbConn.createStatement();
-
-        // Dump stored procedures
-        ResultSet procedures = stmt.executeQuery("SHOW PROCEDURE STATUS WHERE Db = DATABASE()");
-        while (procedures.next()) {
-            String procName = procedures.getString("Name");
-            PreparedStatement ps = dbConn.prepareStatement("SHOW CREATE PROCEDURE " + procName);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                String createProcedure = rs.getString("Create Procedure");
-                result.write("\n\n-- Stored Procedure: " + procName + "\n");
-                result.write("DELIMITER $$\n");
-                result.write(createProcedure + " $$\n");
-                result.write("DELIMITER ;\n");
+    private static void dumpRoutines(Connection dbConn, SchemaCatalog schema, Writer result) throws SQLException,
+            IOException {
+        List<SchemaCatalog.SchemaObject> objects = new ArrayList<SchemaCatalog.SchemaObject>(schema.getRoutines());
+        objects.addAll(schema.getTriggers());
+        for (SchemaCatalog.SchemaObject object : objects) {
+            String createStatement = schema.getCreateStatement(dbConn, object);
+            if (createStatement == null) {
+                continue;
             }
-            rs.close();
-            ps.close();
-        }
-        procedures.close();
-
-        // Dump stored functions
-        ResultSet functions = stmt.executeQuery("SHOW FUNCTION STATUS WHERE Db = DATABASE()");
-        while (functions.next()) {
-            String funcName = functions.getString("Name");
-            PreparedStatement ps = dbConn.prepareStatement("SHOW CREATE FUNCTION " + funcName);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                String createFunction = rs.getString("Create Function");
-                result.write("\n\n-- Stored Function: " + funcName + "\n");
-                result.write("DELIMITER $$\n");
-                result.write(createFunction + " $$\n");
-                result.write("DELIMITER ;\n");
-            }
-            rs.close();
-            ps.close();
+            String kind = "PROCEDURE".equals(object.type) ? "Stored Procedure" : "FUNCTION".equals(object.type)
+                    ? "Stored Function" : "Trigger";
+            result.write("\n\n-- " + kind + ": " + object.getName() + "\n");
+            result.write("DELIMITER $$\n");
+            result.write(createStatement + " $$\n");
+            result.write("DELIMITER ;\n");
         }
-        functions.close();
-        stmt.close();
     }
 }
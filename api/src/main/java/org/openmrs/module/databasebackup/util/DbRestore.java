@@ -0,0 +1,379 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Restores backups written by {@link DbDump}, without the <code>mysql</code> client.
+ * <p>
+ * The archive is decompressed and split into statements as it is read, so neither the plain SQL
+ * nor the whole script is ever held on disk or in memory. Schema statements run in script order on
+ * a coordinator connection; the INSERT statements of each table are grouped into batches that a
+ * pool of loader connections executes in parallel, each batch in its own transaction with foreign
+ * key and unique checks disabled. Views and routines are created last, once all data is loaded.
+ * <p>
+ * Restoring an incremental backup restores its whole chain: the full backup it builds on and every
+ * incremental backup up to it, in order, as named by the header of each incremental backup. An
+ * incremental backup whose chain is incomplete is not restored.
+ */
+public class DbRestore {
+
+    protected final static Log log = LogFactory.getLog(DbRestore.class);
+
+    private static final String fileEncoding = "UTF8";
+
+    // INSERT statements handed to a loader connection at once, committed together
+    private static final int BATCH_CHARS = 8 * 1024 * 1024;
+
+    private static final Pattern CREATE_VIEW = Pattern.compile("^CREATE\\s+(ALGORITHM\\s*=\\s*\\w+\\s+)?"
+            + "(DEFINER\\s*=\\s*\\S+\\s+)?(SQL\\s+SECURITY\\s+\\w+\\s+)?VIEW\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Restores a backup into the database.
+     *
+     * @param props Properties including "folder", "restore.file" (the archive name),
+     *            "restore.threads" (number of loader connections), "driver.class", "driver.url",
+     *            "user" and "password"
+     * @param progress Receives the progress of the restore, see {@link ProgressRegistry}.
+     */
+    public static void restoreDB(Properties props, BackupProgress progress) throws Exception {
+        String folder = props.getProperty("folder");
+        String restoreFile = props.getProperty("restore.file");
+        int threads = Math.max(1, Integer.parseInt(props.getProperty("restore.threads", "4")));
+
+        try {
+            File archiveFile = new File(folder, restoreFile);
+            if (!archiveFile.isFile()) {
+                throw new FileNotFoundException("Backup not found: " + archiveFile.getAbsolutePath());
+            }
+
+            // An incremental backup only holds changes, the backups it builds on come first; it is
+            // not restored at all if one of them is missing
+            List<String> archives = BackupChain.resolve(folder, restoreFile);
+
+            long bytesTotal = 0;
+            for (String archive : archives) {
+                bytesTotal += BackupRepository.getLength(new File(folder, archive));
+            }
+            progress.setBytesTotal(bytesTotal);
+
+            Class.forName(props.getProperty("driver.class"));
+            for (int i = 0; i < archives.size(); i++) {
+                String prefix = archives.size() > 1 ? "Backup " + (i + 1) + " of " + archives.size() + ": " : "";
+                restoreArchive(new File(folder, archives.get(i)), props, threads, prefix, progress);
+            }
+
+            progress.finish("Restore complete.", false);
+        } catch (Exception ex) {
+            log.error("Exception during database restore", ex);
+            progress.finish(ex instanceof InterruptedException ? "Restore cancelled." : "Restore failed: " + ex.getMessage(), true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Restores a single archive.
+     */
+    private static void restoreArchive(File archiveFile, Properties props, int threads, String progressPrefix,
+            BackupProgress progress) throws Exception {
+        String driverURL = props.getProperty("driver.url");
+        List<String> deferred = new ArrayList<String>();
+        List<Connection> connections = new ArrayList<Connection>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountingInputStream compressed = new CountingInputStream(BackupRepository.openBackup(archiveFile), progress);
+        try {
+            Reader script = new InputStreamReader(Zip.getCodecOf(archiveFile).openArchive(compressed), fileEncoding);
+            Connection dbConn = DriverManager.getConnection(driverURL, props);
+            connections.add(dbConn);
+            prepareSession(dbConn);
+            for (int i = 0; i < threads; i++) {
+                Connection conn = DriverManager.getConnection(driverURL, props);
+                connections.add(conn);
+                prepareSession(conn);
+                conn.setAutoCommit(false);
+            }
+            BlockingQueue<Connection> idle = new ArrayBlockingQueue<Connection>(threads, false,
+                    connections.subList(1, connections.size()));
+            BatchLoader loader = new BatchLoader(executor, idle, threads * 2);
+
+            progress.setPhase(progressPrefix + "Restoring "
+                    + archiveFile.getName() + "...");
+            SqlScriptReader statements = new SqlScriptReader(script);
+            String tableName = null;
+            List<String> batch = new ArrayList<String>();
+            long batchChars = 0;
+            String sql;
+            while ((sql = statements.nextStatement()) != null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Restore cancelled");
+                }
+                String insertTable = getInsertTable(sql);
+                if (insertTable == null || !insertTable.equals(tableName) || batchChars >= BATCH_CHARS) {
+                    if (!batch.isEmpty()) {
+                        loader.load(tableName, batch);
+                        batch = new ArrayList<String>();
+                        batchChars = 0;
+                    }
+                }
+                if (insertTable != null) {
+                    if (!insertTable.equals(tableName)) {
+                        if (tableName != null) {
+                            progress.tableDone();
+                        }
+                        tableName = insertTable;
+                        progress.setPhase(progressPrefix + "Loading table " + tableName);
+                    }
+                    batch.add(sql);
+                    batchChars += sql.length();
+                } else if (isDeferred(sql)) {
+                    deferred.add(sql);
+                } else if (!isTransactionControl(sql)) {
+                    // schema statements run in script order, before the data that follows them
+                    execute(dbConn, sql);
+                }
+            }
+            if (!batch.isEmpty()) {
+                loader.load(tableName, batch);
+            }
+            loader.finish();
+            if (tableName != null) {
+                progress.tableDone();
+            }
+
+            progress.setPhase(progressPrefix
+                    + "Creating views and routines...");
+            for (String statement : deferred) {
+                createDeferred(dbConn, statement);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            compressed.close();
+            for (Connection conn : connections) {
+                try {
+                    conn.close();
+                }
+                catch (SQLException e) {
+                    log.warn("Unable to close restore connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets up a session the way mysqldump scripts do: without foreign key and unique checks, and
+     * keeping explicit zero values in auto-increment columns.
+     */
+    private static void prepareSession(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute("SET FOREIGN_KEY_CHECKS=0");
+            stmt.execute("SET UNIQUE_CHECKS=0");
+            stmt.execute("SET SESSION SQL_MODE='NO_AUTO_VALUE_ON_ZERO'");
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Returns the table an INSERT statement writes to, or null if the statement is no INSERT.
+     */
+    static String getInsertTable(String sql) {
+        if (!sql.regionMatches(true, 0, "INSERT INTO `", 0, 13)) {
+            return null;
+        }
+        int end = sql.indexOf('`', 13);
+        return end == -1 ? null : sql.substring(13, end);
+    }
+
+    /**
+     * Returns whether the statement creates a view or routine, which may refer to any table and is
+     * run once all tables are loaded.
+     */
+    private static boolean isDeferred(String sql) {
+        return sql.regionMatches(true, 0, "CREATE ", 0, 7) && !sql.regionMatches(true, 0, "CREATE TABLE", 0, 12);
+    }
+
+    /**
+     * Returns whether the statement controls transactions or index maintenance of a table's data,
+     * which the loader connections handle themselves.
+     */
+    private static boolean isTransactionControl(String sql) {
+        return sql.equalsIgnoreCase("COMMIT") || sql.regionMatches(true, 0, "SET autocommit", 0, 14)
+                || sql.regionMatches(true, 0, "/*!40000 ALTER TABLE", 0, 20);
+    }
+
+    /**
+     * Creates a view or routine. Views replace existing ones; failures are logged and do not fail
+     * the restore, as when dumping them.
+     */
+    private static void createDeferred(Connection dbConn, String sql) {
+        if (CREATE_VIEW.matcher(sql).find()) {
+            sql = "CREATE OR REPLACE " + sql.substring("CREATE ".length());
+        }
+        try {
+            execute(dbConn, sql);
+        }
+        catch (SQLException e) {
+            log.error("Unable to create view or routine: " + e.getMessage());
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute(sql);
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Runs batches of INSERT statements on the loader connections, with a bounded number of
+     * batches waiting so reading the archive never runs far ahead of loading it.
+     */
+    private static class BatchLoader {
+
+        private final ExecutorService executor;
+
+        private final BlockingQueue<Connection> idle;
+
+        private final Semaphore pending;
+
+        private final int maxPending;
+
+        private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        BatchLoader(ExecutorService executor, BlockingQueue<Connection> idle, int maxPending) {
+            this.executor = executor;
+            this.idle = idle;
+            this.maxPending = maxPending;
+            this.pending = new Semaphore(maxPending);
+        }
+
+        /**
+         * Queues a batch, failing if an earlier batch failed.
+         */
+        void load(final String tableName, final List<String> batch) throws Exception {
+            pending.acquire();
+            checkFailure();
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        Connection conn = idle.take();
+                        try {
+                            execute(conn, tableName, batch);
+                        }
+                        finally {
+                            idle.put(conn);
+                        }
+                    }
+                    catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally {
+                        pending.release();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Waits for all queued batches to be loaded.
+         */
+        void finish() throws Exception {
+            pending.acquire(maxPending);
+            pending.release(maxPending);
+            checkFailure();
+        }
+
+        private void checkFailure() throws Exception {
+            Exception e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        private static void execute(Connection conn, String tableName, List<String> batch) throws SQLException {
+            Statement stmt = conn.createStatement();
+            try {
+                for (String sql : batch) {
+                    stmt.addBatch(sql);
+                }
+                stmt.executeBatch();
+                conn.commit();
+            }
+            catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Unable to load data of table " + tableName + ": " + e.getMessage(), e);
+            }
+            finally {
+                stmt.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the compressed bytes read as progress through the archive.
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        private final BackupProgress progress;
+
+        CountingInputStream(InputStream in, BackupProgress progress) {
+            super(in);
+            this.progress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                progress.addBytes(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                progress.addBytes(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            progress.addBytes(skipped);
+            return skipped;
+        }
+    }
+}
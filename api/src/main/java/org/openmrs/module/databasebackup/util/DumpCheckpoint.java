@@ -0,0 +1,396 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The chunk files and checkpoint manifest of a backup job, kept in the hidden folder
+ * "&lt;folder&gt;/.&lt;filename&gt;.parts" until the archive is complete.
+ * <p>
+ * Table data is dumped in numbered chunks, each covering a range of the table's primary key. Every
+ * completed chunk is recorded in "checkpoint.properties" together with the last key it holds, so a
+ * job interrupted by a restart or a lost connection resumes after its last completed chunk instead
+ * of starting over. The next backup of the same mode picks up such an unfinished job and completes
+ * it under its own file name. Data dumped after a resume is read from a new snapshot, so a resumed
+ * backup is only consistent per chunk and is marked as such, see {@link #getInconsistency()}; jobs
+ * older than {@link #MAX_AGE_HOURS} are discarded rather than resumed.
+ * <p>
+ * The key of a large table may be split into ranges by the {@link BackupPlan}, dumped by several
+ * workers at once. Each range has chunks of its own, recorded under "&lt;table&gt;@&lt;range&gt;"
+ * from the second range on; the first range is recorded under the table name, as a table that is
+ * not split. The ranges of a table are recorded before its first chunk and kept when it resumes.
+ */
+class DumpCheckpoint {
+
+    protected final static Log log = LogFactory.getLog(DumpCheckpoint.class);
+
+    static final String CHECKPOINT_FILE = "checkpoint.properties";
+
+    static final int MAX_AGE_HOURS = 24;
+
+    private static final String FOLDER_SUFFIX = ".parts";
+
+    private static final String RANGE_SEPARATOR = "@";
+
+    private final File folder;
+
+    private final Properties checkpoint = new Properties();
+
+    private boolean resumed;
+
+    // why the data of the job was not all read from one snapshot, null if it was
+    private String inconsistency;
+
+    private DumpCheckpoint(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Opens the job of a backup, resuming the latest unfinished job of the same mode if there is
+     * one.
+     *
+     * @param backupFolder the backup folder
+     * @param filename the name of the dump file of the backup
+     * @param mode the backup mode, full or incremental
+     * @param startedAt database time the backup starts at, kept when a job is resumed
+     * @param resume whether an unfinished job may be resumed; if not, it is discarded
+     */
+    static DumpCheckpoint open(String backupFolder, String filename, String mode, String startedAt, boolean resume)
+            throws IOException {
+        DumpCheckpoint job = new DumpCheckpoint(new File(backupFolder, "." + filename + FOLDER_SUFFIX));
+        DumpCheckpoint unfinished = findUnfinished(backupFolder, mode);
+        if (unfinished != null && !resume) {
+            log.info("Discarding unfinished backup job " + unfinished.folder.getName()
+                    + ", its chunks were read from another snapshot");
+            unfinished.delete();
+            unfinished = null;
+        }
+        if (unfinished != null && !unfinished.folder.equals(job.folder)) {
+            if (job.folder.exists() || !unfinished.folder.renameTo(job.folder)) {
+                throw new IOException("Unable to resume backup job " + unfinished.folder.getAbsolutePath());
+            }
+            log.info("Resuming unfinished backup job " + unfinished.folder.getName() + " as " + job.folder.getName());
+        }
+        if (unfinished != null) {
+            job.checkpoint.putAll(unfinished.checkpoint);
+            job.resumed = true;
+            for (String key : job.checkpoint.stringPropertyNames()) {
+                if (key.startsWith("chunk.")) {
+                    job.inconsistency = "chunks read before the backup was interrupted are reused";
+                    break;
+                }
+            }
+        } else {
+            if (!job.folder.exists() && !job.folder.mkdirs()) {
+                throw new IOException("Unable to create folder " + job.folder.getAbsolutePath());
+            }
+            job.checkpoint.setProperty("job.mode", mode);
+            job.checkpoint.setProperty("job.startedAt", startedAt);
+            job.checkpoint.setProperty("job.created", String.valueOf(System.currentTimeMillis()));
+            job.save();
+        }
+        return job;
+    }
+
+    /**
+     * Returns the latest unfinished job of the given mode, discarding jobs too old to be resumed.
+     */
+    private static DumpCheckpoint findUnfinished(String backupFolder, String mode) throws IOException {
+        File[] folders = new File(backupFolder).listFiles();
+        DumpCheckpoint latest = null;
+        long maxAge = MAX_AGE_HOURS * 3600L * 1000L;
+        for (File jobFolder : folders == null ? new File[0] : folders) {
+            File checkpointFile = new File(jobFolder, CHECKPOINT_FILE);
+            if (!jobFolder.getName().startsWith(".") || !jobFolder.getName().endsWith(FOLDER_SUFFIX)
+                    || !checkpointFile.isFile()) {
+                continue;
+            }
+            DumpCheckpoint job = new DumpCheckpoint(jobFolder);
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                job.checkpoint.load(in);
+            }
+            finally {
+                in.close();
+            }
+            long created = Long.parseLong(job.checkpoint.getProperty("job.created", "0"));
+            if (System.currentTimeMillis() - created > maxAge) {
+                log.info("Discarding backup job " + jobFolder.getName() + ", too old to be resumed");
+                job.delete();
+            } else if (mode.equals(job.checkpoint.getProperty("job.mode")) && (latest == null
+                    || created > Long.parseLong(latest.checkpoint.getProperty("job.created")))) {
+                latest = job;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return whether the job was interrupted before and is being resumed
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Records that some of the data of the job was read from another snapshot than the rest.
+     *
+     * @param reason why, kept unless a reason was recorded before
+     */
+    synchronized void setInconsistent(String reason) {
+        if (inconsistency == null) {
+            inconsistency = reason;
+        }
+    }
+
+    /**
+     * @return why the data of the job was not all read from one snapshot, i.e. the backup is not
+     *         consistent as of a point in time, or null if it was
+     */
+    synchronized String getInconsistency() {
+        return inconsistency;
+    }
+
+    /**
+     * @return the database time the job started at
+     */
+    String getStartedAt() {
+        return checkpoint.getProperty("job.startedAt");
+    }
+
+    /**
+     * Splits the key of a table into ranges, unless the dump of the table has started already with
+     * other ranges.
+     *
+     * @param bounds the upper bound of every range but the last one, in ascending order; the rows
+     *            of a range have keys above the bound of the previous range, up to its own bound
+     */
+    synchronized void setKeyRanges(String tableName, List<String> bounds) throws IOException {
+        for (int range = 0; range < getRangeCount(tableName); range++) {
+            if (checkpoint.getProperty("table." + getRangeId(tableName, range) + ".chunks") != null) {
+                return;
+            }
+        }
+        if (!bounds.equals(getBounds(tableName))) {
+            if (bounds.isEmpty()) {
+                checkpoint.remove("table." + tableName + ".ranges");
+            } else {
+                checkpoint.setProperty("table." + tableName + ".ranges", String.join(",", bounds));
+            }
+            save();
+        }
+    }
+
+    /**
+     * @return the number of key ranges of a table, 1 unless it was split
+     */
+    synchronized int getRangeCount(String tableName) {
+        return getBounds(tableName).size() + 1;
+    }
+
+    /**
+     * Returns the next chunk of a range of a table to dump, or null if all its data has been
+     * dumped.
+     */
+    synchronized Chunk nextChunk(String tableName, int range) {
+        String rangeId = getRangeId(tableName, range);
+        if (Boolean.parseBoolean(checkpoint.getProperty("table." + rangeId + ".complete"))) {
+            return null;
+        }
+        List<String> bounds = getBounds(tableName);
+        int index = Integer.parseInt(checkpoint.getProperty("table." + rangeId + ".chunks", "0"));
+        String afterKey = checkpoint.getProperty("table." + rangeId + ".lastKey");
+        if (afterKey == null && range > 0) {
+            afterKey = bounds.get(range - 1);
+        }
+        return new Chunk(tableName, range, index, afterKey, range < bounds.size() ? bounds.get(range) : null,
+                getChunkFile(rangeId, index));
+    }
+
+    /**
+     * Records a completed chunk and saves the checkpoint.
+     */
+    synchronized void chunkDone(Chunk chunk) throws IOException {
+        String rangeId = getRangeId(chunk.tableName, chunk.range);
+        String table = "table." + rangeId;
+        checkpoint.setProperty(table + ".chunks", String.valueOf(chunk.index + 1));
+        if (chunk.lastKey != null) {
+            checkpoint.setProperty(table + ".lastKey", chunk.lastKey);
+        }
+        if (chunk.complete) {
+            checkpoint.setProperty(table + ".complete", "true");
+        }
+        checkpoint.setProperty("chunk." + rangeId + "." + chunk.index, (chunk.afterKey == null ? "" : chunk.afterKey)
+                + ".." + (chunk.lastKey == null ? "" : chunk.lastKey));
+        if (chunk.checksum != null) {
+            checkpoint.setProperty("chunk." + rangeId + "." + chunk.index + ".checksum", chunk.checksum.toString());
+        }
+        save();
+    }
+
+    /**
+     * Returns the chunk files of a table, in key order.
+     */
+    synchronized List<File> getChunkFiles(String tableName) {
+        List<File> files = new ArrayList<File>();
+        for (String rangeId : getRangeIds(tableName)) {
+            int chunks = Integer.parseInt(checkpoint.getProperty("table." + rangeId + ".chunks", "0"));
+            for (int i = 0; i < chunks; i++) {
+                files.add(getChunkFile(rangeId, i));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the row count and checksum of the data of a table, combined from those of its
+     * chunks, or null if a chunk has none because it was dumped by an older version.
+     */
+    synchronized BackupManifest.TableChecksum getTableChecksum(String tableName) {
+        BackupManifest.TableChecksum checksum = new BackupManifest.TableChecksum(0, 0, 0);
+        for (String rangeId : getRangeIds(tableName)) {
+            int chunks = Integer.parseInt(checkpoint.getProperty("table." + rangeId + ".chunks", "0"));
+            for (int i = 0; i < chunks; i++) {
+                String chunk = checkpoint.getProperty("chunk." + rangeId + "." + i + ".checksum");
+                if (chunk == null) {
+                    return null;
+                }
+                checksum = checksum.append(BackupManifest.TableChecksum.parse(chunk));
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Returns the columnar files of a table, in key order, see {@link Chunk#getColumnarFile()}.
+     */
+    synchronized List<File> getColumnarFiles(String tableName) {
+        List<File> files = new ArrayList<File>();
+        for (File chunkFile : getChunkFiles(tableName)) {
+            files.add(Chunk.getColumnarFile(chunkFile));
+        }
+        return files;
+    }
+
+    /**
+     * Removes the chunk files and the checkpoint, once the archive is complete.
+     */
+    void delete() {
+        File[] files = folder.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    private List<String> getBounds(String tableName) {
+        String bounds = checkpoint.getProperty("table." + tableName + ".ranges");
+        return bounds == null ? Collections.<String> emptyList() : Arrays.asList(bounds.split(","));
+    }
+
+    private List<String> getRangeIds(String tableName) {
+        List<String> rangeIds = new ArrayList<String>();
+        for (int range = 0; range < getRangeCount(tableName); range++) {
+            rangeIds.add(getRangeId(tableName, range));
+        }
+        return rangeIds;
+    }
+
+    /**
+     * @return the name the chunks of a key range are recorded under
+     */
+    private static String getRangeId(String tableName, int range) {
+        return range == 0 ? tableName : tableName + RANGE_SEPARATOR + range;
+    }
+
+    private File getChunkFile(String rangeId, int index) {
+        return new File(folder, String.format("%s_%05d.sql.gz", rangeId, index + 1));
+    }
+
+    private void save() throws IOException {
+        File file = new File(folder, CHECKPOINT_FILE);
+        File tmp = new File(folder, CHECKPOINT_FILE + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            checkpoint.store(out, "Backup job checkpoint: chunks completed per table");
+        }
+        finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * A range of a table's rows, dumped to its own file: the rows whose key follows
+     * {@link #afterKey}, up to a maximum number of rows and to {@link #untilKey}.
+     */
+    static class Chunk {
+
+        final String tableName;
+
+        // the key range of the table the chunk belongs to, 0 unless the table is split
+        final int range;
+
+        final int index;
+
+        // last key of the previous chunk of the range, or the bound of the previous range; null
+        // for the first chunk of the table
+        final String afterKey;
+
+        // the last key of the range, null for the last range
+        final String untilKey;
+
+        final File file;
+
+        // set once dumped: the last key in the chunk, and whether no rows follow it
+        String lastKey;
+
+        boolean complete;
+
+        // set once dumped: the rows in the chunk, and their count and checksum once written
+        long rows;
+
+        BackupManifest.TableChecksum checksum;
+
+        Chunk(String tableName, int range, int index, String afterKey, String untilKey, File file) {
+            this.tableName = tableName;
+            this.range = range;
+            this.index = index;
+            this.afterKey = afterKey;
+            this.untilKey = untilKey;
+            this.file = file;
+        }
+
+        Chunk(String tableName, int index, String afterKey, File file) {
+            this(tableName, 0, index, afterKey, null, file);
+        }
+
+        /**
+         * @return the file the rows of the chunk are written to for the columnar export, next to
+         *         the chunk file
+         */
+        File getColumnarFile() {
+            return getColumnarFile(file);
+        }
+
+        static File getColumnarFile(File chunkFile) {
+            String name = chunkFile.getName();
+            return new File(chunkFile.getParentFile(), name.substring(0, name.length() - ".sql.gz".length())
+                    + ColumnarWriter.FILE_EXTENSION);
+        }
+    }
+}
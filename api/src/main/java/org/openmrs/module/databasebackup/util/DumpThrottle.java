@@ -0,0 +1,288 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Slows the dump down so a backup taken during working hours leaves the database server to its
+ * users. Shared by all worker connections, which report every page of rows they dump.
+ * <ul>
+ * <li>"throttle.rowsPerSecond" and "throttle.kilobytesPerSecond" cap the rate of rows and of SQL
+ * dumped by all connections together.</li>
+ * <li>"throttle.maxThreadsRunning" and "throttle.maxReplicationLag" (seconds) define a busy server,
+ * checked every few seconds on a connection of its own: <code>Threads_running</code> not counting
+ * the dump's own connections, and the replication lag if the server dumped from is a replica. While
+ * the server is busy the workers pause, backing off up to {@link #MAX_BACKOFF_MILLIS} between
+ * checks, and the rates are halved; once it is idle again they recover step by step. A server
+ * that stays busy only slows the dump down, workers never pause for longer than
+ * {@link #MAX_PAUSE_MILLIS} at a time.</li>
+ * </ul>
+ * A worker streaming a table holds an open result set the server aborts after
+ * <code>net_write_timeout</code>, 60 seconds by default, without reads. Its pages are only slowed
+ * down, by at most {@link #MAX_STREAMING_WAIT_MILLIS} each, and never paused for a busy server; a
+ * busy server still lowers the rates they are kept to.
+ * <p>
+ * The time the workers spend waiting is recorded in the {@link BackupMetrics}.
+ */
+class DumpThrottle {
+
+    protected final static Log log = LogFactory.getLog(DumpThrottle.class);
+
+    static final DumpThrottle NONE = new DumpThrottle(new Properties(), 0, null);
+
+    static final long CHECK_INTERVAL_MILLIS = 2000;
+
+    static final long MAX_BACKOFF_MILLIS = 30000;
+
+    static final long MAX_PAUSE_MILLIS = 5 * 60 * 1000;
+
+    // longest wait between two pages of a streaming result set, well within net_write_timeout
+    static final long MAX_STREAMING_WAIT_MILLIS = 5000;
+
+    // lowest fraction of the configured rates the dump is slowed down to
+    private static final double MIN_SPEED = 0.05;
+
+    // unused rate that may be caught up on after the dump was slower than allowed, in nanoseconds
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Properties props;
+
+    private final long rowsPerSecond;
+
+    private final long bytesPerSecond;
+
+    private final long maxThreadsRunning;
+
+    private final long maxReplicationLag;
+
+    private final int ownConnections;
+
+    private final BackupMetrics metrics;
+
+    // fraction of the configured rates currently allowed
+    private double speed = 1;
+
+    // when the rows and bytes handed out so far are due at the allowed rates, in System.nanoTime()
+    private long rowsDue;
+
+    private long bytesDue;
+
+    private long lastCheck;
+
+    private boolean busy;
+
+    private Connection monitor;
+
+    private boolean replicationLagReadable = true;
+
+    /**
+     * @param props the dump properties, including the connection properties and "throttle.*"
+     * @param ownConnections the number of worker connections of the dump
+     * @param metrics receives the time spent waiting
+     */
+    DumpThrottle(Properties props, int ownConnections, BackupMetrics metrics) {
+        this.props = props;
+        this.rowsPerSecond = Long.parseLong(props.getProperty("throttle.rowsPerSecond", "0"));
+        this.bytesPerSecond = Long.parseLong(props.getProperty("throttle.kilobytesPerSecond", "0")) * 1024;
+        this.maxThreadsRunning = Long.parseLong(props.getProperty("throttle.maxThreadsRunning", "0"));
+        this.maxReplicationLag = Long.parseLong(props.getProperty("throttle.maxReplicationLag", "0"));
+        this.ownConnections = ownConnections;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return whether the dump is throttled at all
+     */
+    boolean isEnabled() {
+        return rowsPerSecond > 0 || bytesPerSecond > 0 || isWatchingLoad();
+    }
+
+    /**
+     * Reports a page of rows dumped, and waits as long as the server is busy or the page has to be
+     * spread out to keep to the rates.
+     *
+     * @throws InterruptedIOException if the backup is cancelled while waiting
+     */
+    void pageDumped(long rows, long bytes) throws InterruptedIOException {
+        pageDumped(rows, bytes, false);
+    }
+
+    /**
+     * Reports a page of rows read from a streaming result set, and waits as long as the page has to
+     * be spread out to keep to the rates, but no longer than {@link #MAX_STREAMING_WAIT_MILLIS}.
+     *
+     * @throws InterruptedIOException if the backup is cancelled while waiting
+     */
+    void pageStreamed(long rows, long bytes) throws InterruptedIOException {
+        pageDumped(rows, bytes, true);
+    }
+
+    private void pageDumped(long rows, long bytes, boolean streaming) throws InterruptedIOException {
+        if (!isEnabled()) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            if (isWatchingLoad() && streaming) {
+                // only lowers the rates
+                isBusy();
+            } else if (isWatchingLoad()) {
+                long backoff = CHECK_INTERVAL_MILLIS / 2;
+                long paused = 0;
+                while (paused < MAX_PAUSE_MILLIS && isBusy()) {
+                    Thread.sleep(backoff);
+                    paused += backoff;
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+            long wait = reserve(rows, bytes);
+            if (streaming) {
+                wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(MAX_STREAMING_WAIT_MILLIS));
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup cancelled");
+        }
+        finally {
+            metrics.addThrottleTime(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Closes the connection the server load is checked on.
+     */
+    synchronized void close() {
+        closeMonitor();
+    }
+
+    private boolean isWatchingLoad() {
+        return maxThreadsRunning > 0 || maxReplicationLag > 0;
+    }
+
+    /**
+     * Adds a page to the rows and bytes handed out.
+     *
+     * @return the nanoseconds to wait until the page is due
+     */
+    private synchronized long reserve(long rows, long bytes) {
+        long now = System.nanoTime();
+        long due = now;
+        if (rowsPerSecond > 0) {
+            rowsDue = Math.max(rowsDue, now - BURST_NANOS) + (long) (rows * 1e9 / (rowsPerSecond * speed));
+            due = Math.max(due, rowsDue);
+        }
+        if (bytesPerSecond > 0) {
+            bytesDue = Math.max(bytesDue, now - BURST_NANOS) + (long) (bytes * 1e9 / (bytesPerSecond * speed));
+            due = Math.max(due, bytesDue);
+        }
+        return due - now;
+    }
+
+    /**
+     * Returns whether the server is busy, checking its load if the last check is older than
+     * {@link #CHECK_INTERVAL_MILLIS}, and adjusts the speed.
+     */
+    private synchronized boolean isBusy() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck < CHECK_INTERVAL_MILLIS) {
+            return busy;
+        }
+        lastCheck = now;
+        boolean wasBusy = busy;
+        try {
+            busy = checkLoad();
+        }
+        catch (SQLException e) {
+            log.warn("Unable to check the database server load, dumping on: " + e.getMessage());
+            closeMonitor();
+            busy = false;
+        }
+        speed = busy ? Math.max(MIN_SPEED, speed / 2) : Math.min(1, speed + 0.1);
+        if (busy != wasBusy) {
+            log.info(busy ? "Database server busy, backup paused" : "Database server idle again, backup resumed at "
+                    + Math.round(speed * 100) + "% of its rate");
+        }
+        return busy;
+    }
+
+    private boolean checkLoad() throws SQLException {
+        if (monitor == null) {
+            monitor = DriverManager.getConnection(props.getProperty("driver.url"), props);
+        }
+        Statement stmt = monitor.createStatement();
+        try {
+            if (maxThreadsRunning > 0) {
+                ResultSet rs = stmt.executeQuery("SHOW GLOBAL STATUS LIKE 'Threads_running'");
+                // the workers of the dump and this check itself do not count
+                long running = rs.next() ? rs.getLong(2) - ownConnections - 1 : 0;
+                rs.close();
+                if (running > maxThreadsRunning) {
+                    return true;
+                }
+            }
+            if (maxReplicationLag > 0 && replicationLagReadable) {
+                Long lag = getReplicationLag(stmt);
+                return lag != null && lag > maxReplicationLag;
+            }
+            return false;
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Returns the replication lag of the server in seconds, or null if it is not a replica or its
+     * lag cannot be read, in which case it is not checked again.
+     */
+    private Long getReplicationLag(Statement stmt) {
+        // SHOW REPLICA STATUS since MySQL 8.0.22, SHOW SLAVE STATUS before
+        for (String[] query : new String[][] { { "SHOW REPLICA STATUS", "Seconds_Behind_Source" },
+                { "SHOW SLAVE STATUS", "Seconds_Behind_Master" } }) {
+            try {
+                ResultSet rs = stmt.executeQuery(query[0]);
+                try {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    long lag = rs.getLong(query[1]);
+                    return rs.wasNull() ? null : lag;
+                }
+                finally {
+                    rs.close();
+                }
+            }
+            catch (SQLException e) {
+                log.debug(query[0] + " failed: " + e.getMessage());
+            }
+        }
+        log.warn("Unable to read the replication lag, it is not checked during this backup");
+        replicationLagReadable = false;
+        return null;
+    }
+
+    private void closeMonitor() {
+        if (monitor != null) {
+            try {
+                monitor.close();
+            }
+            catch (SQLException e) {
+                log.warn("Unable to close the load check connection", e);
+            }
+            monitor = null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides what an incremental backup exports for each table, based on the OpenMRS audit columns
+ * and the high-water marks of the {@link BackupChain}.
+ * <ul>
+ * <li>Tables with audit columns only export rows created, changed, voided or retired since their
+ * high-water mark, as upserts.</li>
+ * <li>Tables without audit columns are copied in full, replacing their previous content.</li>
+ * <li>Tables created since the last backup are created if missing and copied in full.</li>
+ * </ul>
+ * The marks are compared with an overlap, so rows saved by transactions still running when the
+ * previous backup started are not missed; upserts make exporting a row twice harmless.
+ * <p>
+ * Rows deleted from a table with audit columns leave no trace in them, so an incremental backup
+ * does not remove them: a restored chain still holds the rows deleted since its full backup. Only
+ * the next full backup drops them. OpenMRS voids or retires rather than deletes most data, which
+ * changes "date_voided" or "date_retired" and is picked up.
+ */
+class IncrementalBackup {
+
+    static final String[] AUDIT_COLUMNS = { "date_created", "date_changed", "date_voided", "date_retired" };
+
+    static final int OVERLAP_MINUTES = 60;
+
+    private final BackupChain chain;
+
+    private final Map<String, List<String>> auditColumns;
+
+    private IncrementalBackup(BackupChain chain, Map<String, List<String>> auditColumns) {
+        this.chain = chain;
+        this.auditColumns = auditColumns;
+    }
+
+    /**
+     * Reads the audit columns of all tables in one query.
+     */
+    static IncrementalBackup prepare(Connection dbConn, BackupChain chain) throws SQLException {
+        StringBuilder columns = new StringBuilder();
+        for (String column : AUDIT_COLUMNS) {
+            columns.append(columns.length() == 0 ? "'" : ", '").append(column).append("'");
+        }
+        Map<String, List<String>> auditColumns = new HashMap<String, List<String>>();
+        Statement stmt = dbConn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT TABLE_NAME, COLUMN_NAME FROM information_schema.COLUMNS"
+                + " WHERE TABLE_SCHEMA = DATABASE() AND COLUMN_NAME IN (" + columns + ")");
+        while (rs.next()) {
+            String tableName = rs.getString(1);
+            List<String> tableColumns = auditColumns.get(tableName);
+            if (tableColumns == null) {
+                tableColumns = new ArrayList<String>();
+                auditColumns.put(tableName, tableColumns);
+            }
+            tableColumns.add(rs.getString(2));
+        }
+        rs.close();
+        stmt.close();
+        return new IncrementalBackup(chain, auditColumns);
+    }
+
+    /**
+     * Returns the current database time, used as high-water mark of the backup being taken.
+     */
+    static String getDatabaseTime(Connection dbConn) throws SQLException {
+        Statement stmt = dbConn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT DATE_FORMAT(NOW(), '%Y-%m-%d %H:%i:%s')");
+            rs.next();
+            return rs.getString(1);
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return whether the table has no data in the chain yet and must be created and copied
+     */
+    boolean isNewTable(String tableName) {
+        return chain.getWatermark(tableName) == null;
+    }
+
+    /**
+     * @return whether the table has no audit columns and must be copied in full
+     */
+    boolean isFullCopy(String tableName) {
+        return !isNewTable(tableName) && !auditColumns.containsKey(tableName);
+    }
+
+    /**
+     * Returns the condition selecting the rows of a table that changed since its high-water mark,
+     * or null if the whole table has to be exported. Deleted rows are not selected, see above.
+     */
+    String getChangedRowsCondition(String tableName) {
+        if (isNewTable(tableName) || isFullCopy(tableName)) {
+            return null;
+        }
+        String since = "'" + chain.getWatermark(tableName) + "' - INTERVAL " + OVERLAP_MINUTES + " MINUTE";
+        StringBuilder condition = new StringBuilder();
+        for (String column : auditColumns.get(tableName)) {
+            if (condition.length() > 0) {
+                condition.append(" OR ");
+            }
+            condition.append('`').append(column).append("` >= ").append(since);
+        }
+        return condition.toString();
+    }
+
+    /**
+     * @return the chain this backup extends
+     */
+    BackupChain getChain() {
+        return chain;
+    }
+}
@@ -0,0 +1,240 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the rows of a table as extended INSERT statements, each kept below a maximum size so it
+ * fits the <code>max_allowed_packet</code> of the server the dump is restored into.
+ * <p>
+ * Every row is first encoded into a reusable row buffer; the current statement is closed before a
+ * row that would take it over the limit. A row outgrowing the buffer, which takes large BLOB or
+ * TEXT values, is not held in memory: it becomes a statement of its own, written out while it is
+ * encoded. Optionally the data is wrapped in
+ * <code>DISABLE KEYS</code>/<code>ENABLE KEYS</code> and committed every few statements, which
+ * keeps restore speed predictable on large tables.
+ */
+class InsertStatementWriter {
+
+    protected final static Log log = LogFactory.getLog(InsertStatementWriter.class);
+
+    // room for the statement terminator and whatever the client adds around the statement
+    static final long PACKET_MARGIN = 1024;
+
+    private final SqlValueEncoder out;
+
+    private final String tableName;
+
+    private final TableDumpPlan plan;
+
+    private final long maxStatementBytes;
+
+    private final boolean disableKeys;
+
+    private final int commitEvery;
+
+    private final RowBuffer rowBuffer = new RowBuffer();
+
+    private final SqlValueEncoder rowEncoder = new SqlValueEncoder(rowBuffer, 8192);
+
+    private boolean started;
+
+    private long statementBytes;
+
+    private int statements;
+
+    /**
+     * @param out the dump output
+     * @param tableName the table the rows belong to
+     * @param plan the column writers of the table
+     * @param props dump properties; "insert.maxBytes", "insert.disableKeys" and
+     *            "insert.commitEvery" are used
+     */
+    InsertStatementWriter(SqlValueEncoder out, String tableName, TableDumpPlan plan, Properties props) {
+        this.out = out;
+        this.tableName = tableName;
+        this.plan = plan;
+        this.maxStatementBytes = Long.parseLong(props.getProperty("insert.maxBytes", "1048576"));
+        this.disableKeys = Boolean.parseBoolean(props.getProperty("insert.disableKeys", "false"));
+        this.commitEvery = Integer.parseInt(props.getProperty("insert.commitEvery", "0"));
+    }
+
+    /**
+     * Writes the current row of the result set, starting a new statement if needed.
+     */
+    void writeRow(ResultSet rs) throws SQLException, IOException {
+        rowBuffer.reset();
+        long before = rowEncoder.getByteCount();
+        plan.writeRow(rs, rowEncoder);
+        rowEncoder.flush();
+        long rowBytes = rowEncoder.getByteCount() - before;
+        if (rowBuffer.spilledChars > 0) {
+            // the row was written while it was encoded, it only has to be ended
+            out.addExtraBytes(rowBytes - rowBuffer.spilledChars);
+            statementBytes += rowBytes;
+            if (statementBytes > maxStatementBytes) {
+                warnRowTooLarge(rowBytes);
+            }
+            endStatement();
+            return;
+        }
+
+        if (!started) {
+            start();
+        }
+        if (statementBytes > 0 && statementBytes + 2 + rowBytes > maxStatementBytes) {
+            endStatement();
+        }
+        if (statementBytes == 0) {
+            if (plan.getInsertPrefix().length() + plan.getStatementSuffix().length() + rowBytes > maxStatementBytes) {
+                warnRowTooLarge(rowBytes);
+            }
+            out.write(plan.getInsertPrefix());
+            statementBytes = plan.getInsertPrefix().length() + plan.getStatementSuffix().length();
+        } else {
+            out.write(", ");
+            statementBytes += 2;
+        }
+        out.write(rowBuffer.chars, 0, rowBuffer.length);
+        statementBytes += rowBytes;
+    }
+
+    /**
+     * Closes the last statement and the key and transaction wrapping, if any rows were written.
+     */
+    void finish() throws IOException {
+        if (!started) {
+            return;
+        }
+        endStatement();
+        if (commitEvery > 0) {
+            out.write("COMMIT;\nSET autocommit=1;\n");
+        }
+        if (disableKeys) {
+            out.write("/*!40000 ALTER TABLE `" + tableName + "` ENABLE KEYS */;\n");
+        }
+    }
+
+    private void warnRowTooLarge(long rowBytes) {
+        log.warn("A row of " + tableName + " is " + rowBytes + " bytes long, more than the maximum statement size of "
+                + maxStatementBytes + " bytes; restoring it requires a larger max_allowed_packet");
+    }
+
+    /**
+     * Starts a statement of its own for the row in the row buffer, which has outgrown the buffer,
+     * and writes the row so far.
+     */
+    private void spillRow(char[] chars, int length) throws IOException {
+        if (!started) {
+            start();
+        }
+        endStatement();
+        out.write(plan.getInsertPrefix());
+        statementBytes = plan.getInsertPrefix().length() + plan.getStatementSuffix().length();
+        out.write(chars, 0, length);
+    }
+
+    private void start() throws IOException {
+        started = true;
+        if (disableKeys) {
+            out.write("/*!40000 ALTER TABLE `" + tableName + "` DISABLE KEYS */;\n");
+        }
+        if (commitEvery > 0) {
+            out.write("SET autocommit=0;\n");
+        }
+    }
+
+    private void endStatement() throws IOException {
+        if (statementBytes == 0) {
+            return;
+        }
+        out.write(plan.getStatementSuffix());
+        out.write(";\n");
+        statementBytes = 0;
+        statements++;
+        if (commitEvery > 0 && statements % commitEvery == 0) {
+            out.write("COMMIT;\n");
+        }
+    }
+
+    /**
+     * Growable char buffer holding the encoded current row, up to {@link #MAX_SIZE} chars; the rest
+     * of a longer row is written straight to the output.
+     */
+    private class RowBuffer extends Writer {
+
+        private static final int INITIAL_SIZE = 8192;
+
+        private static final int MAX_SIZE = 1024 * 1024;
+
+        private char[] chars = new char[INITIAL_SIZE];
+
+        private int length;
+
+        // the chars of the current row written to the output, if it outgrew the buffer
+        private long spilledChars;
+
+        void reset() {
+            length = 0;
+            spilledChars = 0;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (reserve(len)) {
+                System.arraycopy(cbuf, off, chars, length, len);
+                length += len;
+            } else {
+                out.write(cbuf, off, len);
+                spilledChars += len;
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (reserve(len)) {
+                str.getChars(off, off + len, chars, length);
+                length += len;
+            } else {
+                out.write(str, off, len);
+                spilledChars += len;
+            }
+        }
+
+        /**
+         * Makes room for len more chars, or spills the row if it would outgrow the buffer.
+         *
+         * @return whether the chars go into the buffer
+         */
+        private boolean reserve(int len) throws IOException {
+            if (spilledChars > 0) {
+                return false;
+            }
+            if (length + len > MAX_SIZE) {
+                spillRow(chars, length);
+                spilledChars = length;
+                length = 0;
+                return false;
+            }
+            if (length + len > chars.length) {
+                chars = Arrays.copyOf(chars, Math.min(MAX_SIZE, Math.max(chars.length * 2, length + len)));
+            }
+            return true;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.databasebackup.util.DumpCheckpoint.Chunk;
+
+/**
+ * Dumps table data over a pool of worker connections.
+ * <p>
+ * All workers open their transaction with <code>START TRANSACTION WITH CONSISTENT SNAPSHOT</code>
+ * while a global read lock is held on a coordinator connection, so every worker reads the
+ * database as of the same point in time. A single worker needs no lock, its snapshot is
+ * consistent on its own. Each table is spooled in gzip compressed chunks recorded
+ * in the job's {@link DumpCheckpoint}; once all chunks of a table are complete they are handed to a
+ * {@link TableListener} in table order, so the caller can copy them into the archive and the
+ * uncompressed data never touches the disk. The key ranges of a table split by the
+ * {@link BackupPlan} are dumped by several workers at once, the table is handed over once all of
+ * them are complete.
+ * <p>
+ * A chunk that fails is retried on a new connection, with its own snapshot, up to
+ * "dump.chunkRetries" times; after that the dump fails and can be resumed from the checkpoint. A
+ * retried chunk, like worker snapshots started without the global read lock, leaves the backup
+ * consistent per chunk only, which is recorded in the checkpoint. With "dump.requireConsistent" the
+ * dump fails instead.
+ * <p>
+ * The workers share a {@link DumpThrottle}, which slows them down as configured by the
+ * "throttle.*" properties.
+ * <p>
+ * Each worker only fetches and encodes rows; its chunk file is compressed and written on a spool
+ * thread of its own through a {@link PipelinedOutputStream}, so the database, the CPU and the disk
+ * are all kept busy, with a fixed amount of memory per worker.
+ */
+class ParallelDump {
+
+    protected final static Log log = LogFactory.getLog(ParallelDump.class);
+
+    private static final String fileEncoding = "UTF8";
+
+    private static final int SPOOL_BUFFER = 65536;
+
+    // seconds to wait before the first retry of a failed chunk, doubled for each further retry
+    private static final int RETRY_DELAY = 5;
+
+    private final Properties props;
+
+    private final int threads;
+
+    private final int retries;
+
+    private final boolean requireConsistent;
+
+    private final BackupProgress progress;
+
+    private final List<Connection> connections = Collections.synchronizedList(new ArrayList<Connection>());
+
+    /**
+     * @param props the dump properties, including "driver.url", "user", "password" and
+     *            "dump.chunkRetries" and "dump.requireConsistent"
+     * @param threads number of worker connections
+     * @param progress receives the rows and bytes dumped
+     */
+    ParallelDump(Properties props, int threads, BackupProgress progress) {
+        this.props = props;
+        this.progress = progress;
+        this.threads = Math.max(1, threads);
+        this.retries = Math.max(0, Integer.parseInt(props.getProperty("dump.chunkRetries", "3")));
+        this.requireConsistent = Boolean.parseBoolean(props.getProperty("dump.requireConsistent", "false"));
+    }
+
+    /**
+     * Dumps the data of the given tables, skipping the chunks the checkpoint records as complete.
+     *
+     * @param tables the tables to dump, in the order they should appear in the backup; the workers
+     *            take them up in this order
+     * @param checkpoint the job the chunks and the key ranges of the tables are recorded in
+     * @param listener receives the chunk files of each table in table order
+     */
+    void dumpTables(List<String> tables, final DumpCheckpoint checkpoint, TableListener listener) throws Exception {
+        openSnapshotConnections(checkpoint);
+        final BlockingQueue<Connection> idle = new ArrayBlockingQueue<Connection>(threads, false, connections);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // one thread per worker compressing and writing its chunk file
+        final ExecutorService spoolExecutor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "databasebackup-spool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final DumpThrottle throttle = new DumpThrottle(props, threads, progress.getMetrics());
+        if (throttle.isEnabled()) {
+            log.info("Dumping throttled to keep the database server responsive");
+        }
+        try {
+            // the key ranges of each table
+            List<List<Future<Void>>> ranges = new ArrayList<List<Future<Void>>>();
+            for (int i = 0; i < tables.size(); i++) {
+                final String tableName = tables.get(i);
+                List<Future<Void>> tableRanges = new ArrayList<Future<Void>>();
+                for (int r = 0; r < checkpoint.getRangeCount(tableName); r++) {
+                    final int range = r;
+                    tableRanges.add(executor.submit(new Callable<Void>() {
+
+                        @Override
+                        public Void call() throws Exception {
+                            Connection conn = idle.take();
+                            try {
+                                Chunk chunk;
+                                while ((chunk = checkpoint.nextChunk(tableName, range)) != null) {
+                                    if (Thread.currentThread().isInterrupted()) {
+                                        throw new InterruptedException("Backup cancelled");
+                                    }
+                                    conn = writeChunk(conn, chunk, checkpoint, throttle, spoolExecutor);
+                                    checkpoint.chunkDone(chunk);
+                                }
+                            }
+                            finally {
+                                idle.put(conn);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                ranges.add(tableRanges);
+            }
+
+            // hand out in table order so the output stays ordered
+            for (int i = 0; i < tables.size(); i++) {
+                try {
+                    for (Future<Void> range : ranges.get(i)) {
+                        range.get();
+                    }
+                    listener.tableDumped(i + 1, tables.get(i), checkpoint.getChunkFiles(tables.get(i)));
+                }
+                catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            spoolExecutor.shutdownNow();
+            throttle.close();
+            synchronized (connections) {
+                for (Connection conn : connections) {
+                    close(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a chunk, retrying on a new connection if it fails.
+     *
+     * @return the connection to use for the next chunk
+     */
+    private Connection writeChunk(Connection conn, Chunk chunk, DumpCheckpoint checkpoint, DumpThrottle throttle,
+            ExecutorService spoolExecutor) throws Exception {
+        for (int attempt = 0;; attempt++) {
+            try {
+                if (attempt > 0) {
+                    // the new connection no longer shares the snapshot of the others; the failed one
+                    // is only closed once it is replaced, so no closed connection is handed out again
+                    Connection reopened = openSnapshotConnection();
+                    close(conn);
+                    connections.remove(conn);
+                    conn = reopened;
+                    checkpoint.setInconsistent(describe(chunk) + " was retried on a new snapshot");
+                }
+                writeChunkFile(conn, chunk, props, progress, throttle, spoolExecutor);
+                return conn;
+            }
+            catch (SQLException | IOException e) {
+                if (attempt == retries) {
+                    throw new IOException("Unable to dump " + describe(chunk) + " after " + (attempt + 1)
+                            + " attempts: " + e.getMessage(), e);
+                }
+                if (requireConsistent) {
+                    throw new IOException("Unable to dump " + describe(chunk) + ": " + e.getMessage()
+                            + "; not retried as a new connection would read another snapshot", e);
+                }
+                log.warn("Dumping " + describe(chunk) + " failed (" + e.getMessage() + "), retrying");
+                Thread.sleep(RETRY_DELAY * 1000L << attempt);
+            }
+        }
+    }
+
+    private static String describe(Chunk chunk) {
+        return "chunk " + (chunk.index + 1) + (chunk.range > 0 ? " of key range " + (chunk.range + 1) : "")
+                + " of table " + chunk.tableName;
+    }
+
+    /**
+     * Opens the worker connections, each holding a transaction that started from the same
+     * snapshot. A single worker is opened without the global read lock, which would wait for all
+     * running queries and block writes meanwhile.
+     *
+     * @param checkpoint records that the snapshots may differ if the global read lock is not held
+     */
+    private void openSnapshotConnections(DumpCheckpoint checkpoint) throws SQLException {
+        if (threads == 1) {
+            openSnapshotConnection();
+            return;
+        }
+        String driverURL = props.getProperty("driver.url");
+        Connection coordinator = DriverManager.getConnection(driverURL, props);
+        boolean locked = false;
+        try {
+            Statement lock = coordinator.createStatement();
+            try {
+                // blocks writes for the few milliseconds it takes to start the worker transactions
+                lock.execute("FLUSH TABLES WITH READ LOCK");
+                locked = true;
+            }
+            catch (SQLException e) {
+                if (requireConsistent) {
+                    throw new SQLException("Unable to acquire global read lock, the worker snapshots would differ: "
+                            + e.getMessage(), e);
+                }
+                log.warn("Unable to acquire global read lock (" + e.getMessage()
+                        + "), worker snapshots may differ slightly");
+                checkpoint.setInconsistent("the worker snapshots were started without the global read lock");
+            }
+            finally {
+                lock.close();
+            }
+
+            for (int i = 0; i < threads; i++) {
+                openSnapshotConnection();
+            }
+        }
+        catch (SQLException e) {
+            for (Connection conn : connections) {
+                close(conn);
+            }
+            connections.clear();
+            throw e;
+        }
+        finally {
+            if (locked) {
+                Statement unlock = coordinator.createStatement();
+                unlock.execute("UNLOCK TABLES");
+                unlock.close();
+            }
+            close(coordinator);
+        }
+    }
+
+    /**
+     * Opens a worker connection holding a transaction started from a consistent snapshot.
+     */
+    private Connection openSnapshotConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(props.getProperty("driver.url"), props);
+        connections.add(conn);
+        Statement stmt = conn.createStatement();
+        stmt.execute("SET SESSION TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+        stmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+        stmt.close();
+        return conn;
+    }
+
+    /**
+     * Writes the rows of one chunk to its file.
+     */
+    private static void writeChunkFile(Connection conn, Chunk chunk, Properties props, BackupProgress progress,
+            DumpThrottle throttle, ExecutorService spoolExecutor) throws SQLException, IOException {
+        // a chunk file may be hard linked into the backup repository, it is never rewritten in place
+        chunk.file.delete();
+        // compressed and written on a spool thread while this worker fetches and encodes
+        ChunkOutputStream gzip = new ChunkOutputStream(PipelinedOutputStream.openFile(chunk.file));
+        SqlValueEncoder out = new SqlValueEncoder(new OutputStreamWriter(new PipelinedOutputStream(gzip, spoolExecutor,
+                progress.getMetrics()), fileEncoding), SPOOL_BUFFER);
+        chunk.rows = 0;
+        try {
+            DbDump.dumpTable(conn, out, chunk, props, progress, throttle);
+        }
+        finally {
+            out.close();
+        }
+        // the checksum of the plain SQL goes into the manifest of the backup
+        chunk.checksum = new BackupManifest.TableChecksum(chunk.rows, gzip.bytes, gzip.getCrc());
+    }
+
+    /**
+     * Opens a reader on a chunk file written by the workers.
+     */
+    static Reader openChunkFile(File chunkFile) throws IOException {
+        return new InputStreamReader(new GZIPInputStream(new FileInputStream(chunkFile), SPOOL_BUFFER), fileEncoding);
+    }
+
+    /**
+     * Gzip stream of a chunk file, keeping the CRC-32 and length of the SQL it compressed.
+     */
+    private static class ChunkOutputStream extends GZIPOutputStream {
+
+        long bytes;
+
+        ChunkOutputStream(OutputStream out) throws IOException {
+            super(out, SPOOL_BUFFER);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            super.finish();
+            // the deflater is released on close
+            bytes = def.getBytesRead();
+        }
+
+        long getCrc() {
+            return crc.getValue();
+        }
+    }
+
+    private static void close(Connection conn) {
+        try {
+            conn.close();
+        }
+        catch (SQLException e) {
+            log.warn("Unable to close worker connection", e);
+        }
+    }
+
+    /**
+     * Receives the chunk files of each table from the workers.
+     */
+    interface TableListener {
+
+        /**
+         * @param tableIndex 1-based position of the table in the dump
+         * @param tableName the table name
+         * @param chunkFiles the gzip compressed table data in key order, readable with
+         *            {@link ParallelDump#openChunkFile(File)}
+         */
+        void tableDumped(int tableIndex, String tableName, List<File> chunkFiles) throws IOException;
+    }
+}
@@ -0,0 +1,285 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream handing the bytes written to it over to another thread, which writes them on to a
+ * target stream, usually a compressing one. The writing thread, e.g. a worker encoding rows while
+ * its connection fetches, only copies bytes; compressing and writing to disk happen at the same
+ * time on the other thread.
+ * <p>
+ * The bytes travel in blocks of {@link #BLOCK_SIZE} bytes through a ring of {@link #BLOCKS}
+ * blocks: a full block is queued for the target and the writer continues in a free one. When all
+ * blocks are queued the writer waits for the target to catch up, so the memory used is fixed
+ * whatever the speed of either side. The time spent waiting is recorded in the metrics, if any.
+ * <p>
+ * Bytes are only handed over in whole blocks; {@link #flush()} does not cut a block short, the
+ * last block is written by {@link #close()}, which also closes the target.
+ */
+class PipelinedOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    static final int BLOCKS = 4;
+
+    // how often a waiting writer checks whether the target failed
+    private static final long POLL_MILLIS = 100;
+
+    private static final Block END = new Block(0);
+
+    private final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(BLOCKS);
+
+    private final BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(BLOCKS + 1);
+
+    private final Future<Void> target;
+
+    private final BackupMetrics metrics;
+
+    private Block block = new Block(BLOCK_SIZE);
+
+    private boolean closed;
+
+    /**
+     * @param out the target stream, written and closed on a thread of the executor
+     * @param executor runs the thread writing to the target, for as long as this stream is open
+     * @param metrics receives the time spent waiting for the target, or null
+     */
+    PipelinedOutputStream(final OutputStream out, ExecutorService executor, BackupMetrics metrics) {
+        this.metrics = metrics;
+        for (int i = 1; i < BLOCKS; i++) {
+            free.add(new Block(BLOCK_SIZE));
+        }
+        target = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    for (Block next = full.take(); next != END; next = full.take()) {
+                        out.write(next.bytes, 0, next.length);
+                        next.length = 0;
+                        free.put(next);
+                    }
+                }
+                finally {
+                    out.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (block.length == BLOCK_SIZE) {
+            handOver();
+        }
+        block.bytes[block.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (block.length == BLOCK_SIZE) {
+                handOver();
+            }
+            int count = Math.min(len, BLOCK_SIZE - block.length);
+            System.arraycopy(b, off, block.bytes, block.length, count);
+            block.length += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Only reports a failure of the target, the bytes are handed over in whole blocks.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (target.isDone() && !closed) {
+            throwFailure();
+        }
+    }
+
+    /**
+     * Hands over the last block and waits until the target has written and closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (block.length > 0) {
+            enqueue(block);
+        }
+        block = null;
+        enqueue(END);
+        throwFailure();
+    }
+
+    private void handOver() throws IOException {
+        enqueue(block);
+        long started = System.nanoTime();
+        try {
+            block = free.poll();
+            while (block == null) {
+                if (target.isDone()) {
+                    throwFailure();
+                }
+                block = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e) {
+            cancel();
+        }
+        finally {
+            addWait(started);
+        }
+    }
+
+    private void enqueue(Block next) throws IOException {
+        long started = System.nanoTime();
+        try {
+            while (!full.offer(next, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (target.isDone()) {
+                    throwFailure();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            cancel();
+        }
+        finally {
+            addWait(started);
+        }
+    }
+
+    private void addWait(long started) {
+        if (metrics != null) {
+            metrics.addSpoolWaitTime(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Waits for the target to finish and rethrows its failure, if any.
+     */
+    private void throwFailure() throws IOException {
+        try {
+            target.get();
+            if (!closed) {
+                throw new IOException("The output was closed");
+            }
+        }
+        catch (InterruptedException e) {
+            cancel();
+        }
+        catch (CancellationException e) {
+            closed = true;
+            throw new InterruptedIOException("Backup cancelled");
+        }
+        catch (ExecutionException e) {
+            closed = true;
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void cancel() throws InterruptedIOException {
+        closed = true;
+        target.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Backup cancelled");
+    }
+
+    /**
+     * Opens a file written through a direct buffer and its channel, in writes of
+     * {@link #BLOCK_SIZE} bytes. The direct buffers are pooled across files.
+     */
+    static OutputStream openFile(File file) throws IOException {
+        return new ChannelOutputStream(new FileOutputStream(file).getChannel());
+    }
+
+    private static class Block {
+
+        final byte[] bytes;
+
+        int length;
+
+        Block(int size) {
+            bytes = new byte[size];
+        }
+    }
+
+    private static class ChannelOutputStream extends OutputStream {
+
+        // direct buffers are costly to allocate and only freed by the garbage collector, so they are reused
+        private static final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(16);
+
+        private final FileChannel channel;
+
+        private ByteBuffer buffer;
+
+        ChannelOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buffer == null) {
+                buffer = buffers.poll();
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+                }
+            }
+            while (len > 0) {
+                int count = Math.min(len, buffer.remaining());
+                buffer.put(b, off, count);
+                off += count;
+                len -= count;
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (buffer != null) {
+                    drain();
+                    buffers.offer(buffer);
+                    buffer = null;
+                }
+            }
+            finally {
+                channel.close();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
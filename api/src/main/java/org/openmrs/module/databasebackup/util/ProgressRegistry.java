@@ -0,0 +1,44 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The progress of backup and restore jobs, by job name, as polled by the Backup Database page.
+ * Finished jobs are kept for {@link #FINISHED_TTL_MILLIS} so their outcome can still be read, then
+ * removed the next time a job starts or is looked up.
+ */
+public class ProgressRegistry {
+
+    // one hour
+    static final long FINISHED_TTL_MILLIS = 60 * 60 * 1000L;
+
+    private static final Map<String, BackupProgress> jobs = new ConcurrentHashMap<String, BackupProgress>();
+
+    /**
+     * Registers the progress of a job once it is queued, replacing any earlier job of the same
+     * name.
+     */
+    public static void register(BackupProgress progress) {
+        expire();
+        jobs.put(progress.getName(), progress);
+    }
+
+    /**
+     * Returns the progress of a job, or null if the job is unknown or expired.
+     */
+    public static BackupProgress get(String name) {
+        expire();
+        return name == null ? null : jobs.get(name);
+    }
+
+    private static void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<BackupProgress> it = jobs.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now, FINISHED_TTL_MILLIS)) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Which backups of the backup folder to keep, applied after each successful backup.
+ * <p>
+ * The newest backup of each of the last "retention.daily" days, "retention.weekly" weeks and
+ * "retention.monthly" months that have backups is kept; a backup kept by any of these rules is kept.
+ * With none of them set, backups are not removed for their age. Then, if "retention.maxMegabytes"
+ * is set, the oldest of the kept backups are removed until the bytes they stored fit in it. A
+ * repository backup only counts the objects it added, so the size of the repository is
+ * approximated. Backups of the current incremental chain and the backup just written are never
+ * removed.
+ * <p>
+ * Incremental backups are kept or removed with the full backup and the earlier incremental backups
+ * of their chain: an incremental backup is only kept together with the backups it builds on.
+ */
+public class RetentionPolicy {
+
+    private final int daily;
+
+    private final int weekly;
+
+    private final int monthly;
+
+    private final long maxBytes;
+
+    public RetentionPolicy(int daily, int weekly, int monthly, long maxBytes) {
+        this.daily = daily;
+        this.weekly = weekly;
+        this.monthly = monthly;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reads the policy from the "retention.daily", "retention.weekly", "retention.monthly" and
+     * "retention.maxMegabytes" properties, 0 or missing meaning no limit.
+     */
+    public static RetentionPolicy fromProperties(Properties props) {
+        return new RetentionPolicy(Integer.parseInt(props.getProperty("retention.daily", "0")), Integer.parseInt(props
+                .getProperty("retention.weekly", "0")), Integer.parseInt(props.getProperty("retention.monthly", "0")),
+                Long.parseLong(props.getProperty("retention.maxMegabytes", "0")) * 1024 * 1024);
+    }
+
+    /**
+     * @return whether the policy removes any backups at all
+     */
+    public boolean isEnabled() {
+        return daily > 0 || weekly > 0 || monthly > 0 || maxBytes > 0;
+    }
+
+    /**
+     * Returns the backups to remove.
+     * <p>
+     * An incremental backup cannot be restored without the full backup and the incremental backups
+     * before it, so a backup kept by the rules also keeps the backups of its chain it builds on, and
+     * the size limit keeps or removes these together. Backups recorded without mode are taken for
+     * full backups.
+     *
+     * @param backups the backups of the folder, in any order
+     * @param protectedNames names of backups that must be kept
+     * @return the backups to remove, newest first by creation time
+     */
+    public List<BackupCatalog.Entry> selectExpired(List<BackupCatalog.Entry> backups, Collection<String> protectedNames) {
+        backups = new ArrayList<BackupCatalog.Entry>(backups);
+        // backup names start with the facility code, which may have changed
+        Collections.sort(backups, new Comparator<BackupCatalog.Entry>() {
+
+            @Override
+            public int compare(BackupCatalog.Entry a, BackupCatalog.Entry b) {
+                return Long.compare(b.getCreatedAt(), a.getCreatedAt());
+            }
+        });
+        Set<String> kept = new HashSet<String>(protectedNames);
+        if (daily > 0 || weekly > 0 || monthly > 0) {
+            keepNewestPerPeriod(backups, "yyyy-MM-dd", daily, kept);
+            // week-based year and week of year, so the days around new year fall in one week
+            keepNewestPerPeriod(backups, "YYYY-ww", weekly, kept);
+            keepNewestPerPeriod(backups, "yyyy-MM", monthly, kept);
+        } else {
+            for (BackupCatalog.Entry backup : backups) {
+                kept.add(backup.getName());
+            }
+        }
+
+        // the kept part of each chain: its backups up to the newest one kept, newest chain first
+        List<List<BackupCatalog.Entry>> chains = getChains(backups);
+        List<List<BackupCatalog.Entry>> keptChains = new ArrayList<List<BackupCatalog.Entry>>();
+        Set<String> protectedChains = new HashSet<String>();
+        for (List<BackupCatalog.Entry> chain : chains) {
+            int end = 0;
+            for (int i = 0; i < chain.size(); i++) {
+                if (kept.contains(chain.get(i).getName())) {
+                    end = i + 1;
+                }
+                if (protectedNames.contains(chain.get(i).getName())) {
+                    protectedChains.add(chain.get(0).getName());
+                }
+            }
+            if (end > 0) {
+                keptChains.add(chain.subList(0, end));
+            }
+        }
+
+        Set<String> keep = new HashSet<String>(protectedNames);
+        long bytes = 0;
+        for (List<BackupCatalog.Entry> chain : keptChains) {
+            if (protectedChains.contains(chain.get(0).getName())) {
+                bytes += keepAll(chain, keep);
+            }
+        }
+        for (List<BackupCatalog.Entry> chain : keptChains) {
+            if (protectedChains.contains(chain.get(0).getName())) {
+                continue;
+            }
+            if (maxBytes > 0) {
+                bytes += getStoredBytes(chain);
+                if (bytes > maxBytes) {
+                    continue;
+                }
+            }
+            keepAll(chain, keep);
+        }
+
+        List<BackupCatalog.Entry> expired = new ArrayList<BackupCatalog.Entry>();
+        for (BackupCatalog.Entry backup : backups) {
+            if (!keep.contains(backup.getName())) {
+                expired.add(backup);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Splits backups into chains: a full backup followed by the incremental backups taken until the
+     * next full backup. Incremental backups older than any full backup form a chain of their own.
+     *
+     * @param backups the backups, newest first
+     * @return the chains, newest first, each oldest backup first
+     */
+    private static List<List<BackupCatalog.Entry>> getChains(List<BackupCatalog.Entry> backups) {
+        List<List<BackupCatalog.Entry>> chains = new ArrayList<List<BackupCatalog.Entry>>();
+        List<BackupCatalog.Entry> chain = null;
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            BackupCatalog.Entry backup = backups.get(i);
+            if (chain == null || !"incremental".equals(backup.getMode())) {
+                chain = new ArrayList<BackupCatalog.Entry>();
+                chains.add(0, chain);
+            }
+            chain.add(backup);
+        }
+        return chains;
+    }
+
+    /**
+     * Adds the names of backups to a set.
+     *
+     * @return the bytes the backups stored
+     */
+    private static long keepAll(List<BackupCatalog.Entry> chain, Set<String> keep) {
+        for (BackupCatalog.Entry backup : chain) {
+            keep.add(backup.getName());
+        }
+        return getStoredBytes(chain);
+    }
+
+    private static long getStoredBytes(List<BackupCatalog.Entry> chain) {
+        long bytes = 0;
+        for (BackupCatalog.Entry backup : chain) {
+            bytes += backup.getStoredBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Keeps the newest backup of each of the last periods that have backups.
+     *
+     * @param pattern formats a backup time to its period
+     * @param periods the number of periods to keep a backup of
+     */
+    private static void keepNewestPerPeriod(List<BackupCatalog.Entry> backups, String pattern, int periods,
+                                            Set<String> kept) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        Set<String> seen = new HashSet<String>();
+        for (BackupCatalog.Entry backup : backups) {
+            if (seen.size() >= periods) {
+                return;
+            }
+            if (seen.add(format.format(new Date(backup.getCreatedAt())))) {
+                kept.add(backup.getName());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "daily " + daily + ", weekly " + weekly + ", monthly " + monthly + ", max bytes " + maxBytes;
+    }
+}
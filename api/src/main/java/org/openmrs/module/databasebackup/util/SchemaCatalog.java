@@ -0,0 +1,469 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The schema of the database being backed up: its tables, views, stored routines and triggers,
+ * read from <code>information_schema</code> in a fixed number of bulk queries however many objects
+ * there are, instead of one round trip per object.
+ * <p>
+ * The CREATE statements only come from <code>SHOW CREATE</code>, one object at a time. They are
+ * kept in "schema-cache.properties" in the backup folder together with a fingerprint of each
+ * object, the SHA-256 of its rows in <code>information_schema</code> (TABLES, COLUMNS,
+ * STATISTICS, KEY_COLUMN_USAGE, TABLE_CONSTRAINTS, REFERENTIAL_CONSTRAINTS, VIEWS, ROUTINES and
+ * TRIGGERS) leaving out the statistics that change with the data, see {@link #VOLATILE_COLUMNS}.
+ * A statement is only fetched again once the fingerprint of its object changed. The fingerprint
+ * is read before the statement, so a change in between at worst fetches it once more next time.
+ * <p>
+ * The AUTO_INCREMENT table option of a cached CREATE TABLE is brought up to date from the TABLES
+ * row; MySQL 8 caches that value for "information_schema_stats_expiry" seconds, so it may lag
+ * behind. A restore only differs for keys freed by deleting the last rows of a table, as the
+ * counter follows the highest key restored anyway.
+ */
+class SchemaCatalog {
+
+    static final String CACHE_FILE = "schema-cache.properties";
+
+    // information_schema columns that change with the data rather than with the definition
+    static final Set<String> VOLATILE_COLUMNS = new HashSet<String>(Arrays.asList("TABLE_ROWS", "AVG_ROW_LENGTH",
+        "DATA_LENGTH", "MAX_DATA_LENGTH", "INDEX_LENGTH", "DATA_FREE", "AUTO_INCREMENT", "UPDATE_TIME", "CHECK_TIME",
+        "CHECKSUM", "CARDINALITY"));
+
+    private static final Set<String> INTEGRAL_TYPES = new HashSet<String>(Arrays.asList("tinyint", "smallint",
+        "mediumint", "int", "integer", "bigint"));
+
+    private final File cacheFile;
+
+    private final String source;
+
+    private final Properties cache = new Properties();
+
+    private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+
+    private final Map<String, SchemaObject> views = new LinkedHashMap<String, SchemaObject>();
+
+    private final Map<String, SchemaObject> routines = new LinkedHashMap<String, SchemaObject>();
+
+    private final Map<String, SchemaObject> triggers = new LinkedHashMap<String, SchemaObject>();
+
+    private int fetched;
+
+    private int cached;
+
+    private SchemaCatalog(File cacheFile, String source) {
+        this.cacheFile = cacheFile;
+        this.source = source;
+    }
+
+    /**
+     * Reads the schema of the current database of the connection.
+     *
+     * @param folder the backup folder holding the cache of CREATE statements
+     * @param source identifies the database, e.g. its JDBC url; the cache of another database is
+     *            not used
+     */
+    static SchemaCatalog load(Connection dbConn, String folder, String source) throws SQLException, IOException {
+        SchemaCatalog catalog = new SchemaCatalog(new File(folder, CACHE_FILE), source);
+        catalog.loadCache();
+        Statement stmt = dbConn.createStatement();
+        try {
+            catalog.read(stmt);
+        }
+        finally {
+            stmt.close();
+        }
+        return catalog;
+    }
+
+    private void read(Statement stmt) throws SQLException {
+        query(stmt, "TABLES", "TABLE_SCHEMA", " ORDER BY TABLE_NAME", (rs, definition) -> {
+            if ("BASE TABLE".equals(rs.getString("TABLE_TYPE"))) {
+                Table table = new Table(rs.getString("TABLE_NAME"));
+                table.rowEstimate = rs.getLong("TABLE_ROWS");
+                table.dataLength = rs.getLong("DATA_LENGTH");
+                table.indexLength = rs.getLong("INDEX_LENGTH");
+                long autoIncrement = rs.getLong("AUTO_INCREMENT");
+                table.autoIncrement = rs.wasNull() ? null : autoIncrement;
+                table.definition.add(definition);
+                tables.put(table.name, table);
+            }
+        });
+        query(stmt, "VIEWS", "TABLE_SCHEMA", " ORDER BY TABLE_NAME", (rs, definition) -> {
+            SchemaObject view = new SchemaObject("VIEW", rs.getString("TABLE_NAME"));
+            view.definition.add(definition);
+            views.put(view.name, view);
+        });
+        query(stmt, "COLUMNS", "TABLE_SCHEMA", "", (rs, definition) -> {
+            String tableName = rs.getString("TABLE_NAME");
+            Table table = tables.get(tableName);
+            if (table != null) {
+                table.definition.add(definition);
+                String dataType = rs.getString("DATA_TYPE").toLowerCase();
+                table.largeObjects |= dataType.endsWith("blob") || dataType.endsWith("text");
+                if (INTEGRAL_TYPES.contains(dataType)) {
+                    table.integralColumns.add(rs.getString("COLUMN_NAME"));
+                }
+            } else if (views.containsKey(tableName)) {
+                views.get(tableName).definition.add(definition);
+            }
+        });
+        query(stmt, "STATISTICS", "TABLE_SCHEMA", "", (rs, definition) -> addTableDefinition(rs, definition));
+        query(stmt, "KEY_COLUMN_USAGE", "TABLE_SCHEMA", " ORDER BY TABLE_NAME, CONSTRAINT_NAME, ORDINAL_POSITION", (rs,
+                definition) -> {
+            Table table = addTableDefinition(rs, definition);
+            if (table != null && "PRIMARY".equals(rs.getString("CONSTRAINT_NAME"))) {
+                table.primaryKey.add(rs.getString("COLUMN_NAME"));
+            }
+        });
+        query(stmt, "TABLE_CONSTRAINTS", "TABLE_SCHEMA", "", (rs, definition) -> addTableDefinition(rs, definition));
+        query(stmt, "REFERENTIAL_CONSTRAINTS", "CONSTRAINT_SCHEMA", "", (rs, definition) -> addTableDefinition(rs,
+            definition));
+        query(stmt, "ROUTINES", "ROUTINE_SCHEMA", " ORDER BY ROUTINE_TYPE DESC, ROUTINE_NAME", (rs, definition) -> {
+            // procedures first, as they used to be dumped
+            SchemaObject routine = new SchemaObject(rs.getString("ROUTINE_TYPE"), rs.getString("ROUTINE_NAME"));
+            routine.definition.add(definition);
+            routines.put(routine.getKey(), routine);
+        });
+        query(stmt, "TRIGGERS", "TRIGGER_SCHEMA", " ORDER BY EVENT_OBJECT_TABLE, ACTION_TIMING, EVENT_MANIPULATION",
+            (rs, definition) -> {
+                SchemaObject trigger = new SchemaObject("TRIGGER", rs.getString("TRIGGER_NAME"));
+                trigger.definition.add(definition);
+                triggers.put(trigger.name, trigger);
+            });
+    }
+
+    private Table addTableDefinition(ResultSet rs, String definition) throws SQLException {
+        Table table = tables.get(rs.getString("TABLE_NAME"));
+        if (table != null) {
+            table.definition.add(definition);
+        }
+        return table;
+    }
+
+    /**
+     * Runs a query on an information_schema table for the current database, passing every row
+     * together with its definition: the values of all its columns but the volatile ones.
+     */
+    private static void query(Statement stmt, String table, String schemaColumn, String orderBy, RowHandler handler)
+            throws SQLException {
+        ResultSet rs = stmt.executeQuery("SELECT * FROM information_schema." + table + " WHERE " + schemaColumn
+                + " = DATABASE()" + orderBy);
+        try {
+            ResultSetMetaData metaData = rs.getMetaData();
+            List<Integer> columns = new ArrayList<Integer>();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (!VOLATILE_COLUMNS.contains(metaData.getColumnLabel(i).toUpperCase())) {
+                    columns.add(i);
+                }
+            }
+            StringBuilder definition = new StringBuilder();
+            while (rs.next()) {
+                definition.setLength(0);
+                definition.append(table);
+                for (int column : columns) {
+                    definition.append('\u0000').append(rs.getString(column));
+                }
+                handler.row(rs, definition.toString());
+            }
+        }
+        finally {
+            rs.close();
+        }
+    }
+
+    private interface RowHandler {
+
+        void row(ResultSet rs, String definition) throws SQLException;
+    }
+
+    /**
+     * @return the base tables, by name
+     */
+    Collection<Table> getTables() {
+        return Collections.unmodifiableCollection(tables.values());
+    }
+
+    /**
+     * @return the table of the given name, or null if there is none
+     */
+    Table getTable(String tableName) {
+        return tables.get(tableName);
+    }
+
+    /**
+     * @return the views, by name
+     */
+    Collection<SchemaObject> getViews() {
+        return Collections.unmodifiableCollection(views.values());
+    }
+
+    /**
+     * @return the stored procedures followed by the stored functions
+     */
+    Collection<SchemaObject> getRoutines() {
+        return Collections.unmodifiableCollection(routines.values());
+    }
+
+    /**
+     * @return the triggers, by table
+     */
+    Collection<SchemaObject> getTriggers() {
+        return Collections.unmodifiableCollection(triggers.values());
+    }
+
+    /**
+     * Returns the CREATE statement of an object, from the cache if the object did not change since
+     * it was cached, else from <code>SHOW CREATE</code>.
+     *
+     * @return the statement, or null if the server does not show it, e.g. for lack of privileges
+     */
+    String getCreateStatement(Connection dbConn, SchemaObject object) throws SQLException {
+        String key = object.getKey();
+        String fingerprint = object.getFingerprint();
+        String createStatement = cache.getProperty(key + ".create");
+        if (createStatement != null && fingerprint.equals(cache.getProperty(key + ".fingerprint"))) {
+            cached++;
+            if (object instanceof Table) {
+                createStatement = ((Table) object).withAutoIncrement(createStatement);
+            }
+            return createStatement;
+        }
+        fetched++;
+        createStatement = showCreate(dbConn, object);
+        if (createStatement != null) {
+            cache.setProperty(key + ".fingerprint", fingerprint);
+            cache.setProperty(key + ".create", createStatement);
+        }
+        return createStatement;
+    }
+
+    private static String showCreate(Connection dbConn, SchemaObject object) throws SQLException {
+        String column = object.type.equals("TRIGGER") ? "SQL Original Statement" : "Create "
+                + object.type.charAt(0) + object.type.substring(1).toLowerCase();
+        Statement stmt = dbConn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SHOW CREATE " + object.type + " `" + object.name.replace("`", "``") + "`");
+            String createStatement = rs.next() ? rs.getString(column) : null;
+            rs.close();
+            return createStatement;
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return how many CREATE statements were fetched from the server and how many taken from the
+     *         cache
+     */
+    String getCacheStatistics() {
+        return fetched + " fetched, " + cached + " cached";
+    }
+
+    private void loadCache() throws IOException {
+        if (!cacheFile.isFile()) {
+            return;
+        }
+        InputStream in = new FileInputStream(cacheFile);
+        try {
+            cache.load(in);
+        }
+        finally {
+            in.close();
+        }
+        if (!source.equals(cache.getProperty("source"))) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Writes the cache back to the backup folder, replacing the previous one atomically. Objects
+     * that no longer exist are left out.
+     */
+    void saveCache() throws IOException {
+        Set<String> keys = new HashSet<String>();
+        for (Map<String, ? extends SchemaObject> objects : Arrays.asList(tables, views, routines, triggers)) {
+            for (SchemaObject object : objects.values()) {
+                keys.add(object.getKey());
+            }
+        }
+        Properties saved = new Properties();
+        saved.setProperty("source", source);
+        for (String name : cache.stringPropertyNames()) {
+            int dot = name.lastIndexOf('.');
+            if (dot > 0 && keys.contains(name.substring(0, dot))) {
+                saved.setProperty(name, cache.getProperty(name));
+            }
+        }
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            saved.store(out, "Schema cache: CREATE statements by fingerprint of their information_schema rows");
+        }
+        finally {
+            out.close();
+        }
+        if (cacheFile.exists() && !cacheFile.delete() || !tmp.renameTo(cacheFile)) {
+            throw new IOException("Unable to replace " + cacheFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * A table, view, stored routine or trigger, with its information_schema rows.
+     */
+    static class SchemaObject {
+
+        final String type;
+
+        final String name;
+
+        final List<String> definition = new ArrayList<String>();
+
+        SchemaObject(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the key of the object in the cache, e.g. "table.person"
+         */
+        String getKey() {
+            return type.toLowerCase() + "." + name;
+        }
+
+        /**
+         * Returns the SHA-256 of the definition rows, in hex. The rows are sorted first, so the
+         * order the server returns them in does not matter.
+         */
+        String getFingerprint() {
+            List<String> rows = new ArrayList<String>(definition);
+            Collections.sort(rows);
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            for (String row : rows) {
+                digest.update(row.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+    }
+
+    /**
+     * A base table, with its key and size as estimated by the server.
+     */
+    static class Table extends SchemaObject {
+
+        private static final Pattern AUTO_INCREMENT_OPTION = Pattern.compile("(\\) ENGINE=\\w+ AUTO_INCREMENT=)(\\d+)");
+
+        final List<String> primaryKey = new ArrayList<String>();
+
+        final Set<String> integralColumns = new HashSet<String>();
+
+        boolean largeObjects;
+
+        long rowEstimate;
+
+        long dataLength;
+
+        long indexLength;
+
+        Long autoIncrement;
+
+        Table(String name) {
+            super("TABLE", name);
+        }
+
+        /**
+         * @return the column to paginate on, or null if the table has no single-column primary key
+         */
+        String getKeysetColumn() {
+            return primaryKey.size() == 1 ? primaryKey.get(0) : null;
+        }
+
+        /**
+         * @return whether the column to paginate on is an integer, so its range can be split
+         */
+        boolean hasIntegralKey() {
+            String keyColumn = getKeysetColumn();
+            return keyColumn != null && integralColumns.contains(keyColumn);
+        }
+
+        /**
+         * @return whether the table has BLOB or TEXT columns
+         */
+        boolean hasLargeObjects() {
+            return largeObjects;
+        }
+
+        /**
+         * @return the number of rows as estimated by the server, exact for MyISAM only
+         */
+        long getRowEstimate() {
+            return rowEstimate;
+        }
+
+        /**
+         * @return the size of the data on disk, in bytes
+         */
+        long getDataBytes() {
+            return dataLength;
+        }
+
+        /**
+         * @return the size of the data and indexes on disk, in bytes
+         */
+        long getDiskBytes() {
+            return dataLength + indexLength;
+        }
+
+        /**
+         * Raises the AUTO_INCREMENT table option of a cached CREATE TABLE to the current one. It is
+         * never lowered, the cached statement may be more recent than the server's statistics.
+         */
+        String withAutoIncrement(String createTable) {
+            Matcher matcher = AUTO_INCREMENT_OPTION.matcher(createTable);
+            if (autoIncrement == null || !matcher.find() || Long.parseLong(matcher.group(2)) >= autoIncrement) {
+                return createTable;
+            }
+            return createTable.substring(0, matcher.start(2)) + autoIncrement + createTable.substring(matcher.end(2));
+        }
+    }
+}
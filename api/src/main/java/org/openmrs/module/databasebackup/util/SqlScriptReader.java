@@ -0,0 +1,206 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits an SQL script written by {@link DbDump} into statements, the way the <code>mysql</code>
+ * client does.
+ * <p>
+ * Delimiters inside quoted strings, quoted identifiers and comments are ignored, and
+ * <code>DELIMITER</code> lines change the statement delimiter, as used around stored routines.
+ * Line comments and plain block comments are dropped; MySQL conditional comments
+ * (<code>/*! ... *&#47;</code>) are kept since they carry statements. The script is read through a
+ * reusable buffer, the only allocation per statement being its string.
+ */
+class SqlScriptReader {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Reader in;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    private final StringBuilder statement = new StringBuilder(BUFFER_SIZE);
+
+    private String delimiter = ";";
+
+    /**
+     * @param in the script
+     */
+    SqlScriptReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next statement without its delimiter, or null at the end of the script.
+     */
+    String nextStatement() throws IOException {
+        statement.setLength(0);
+        int c;
+        while ((c = read()) != -1) {
+            if (statement.length() == 0 && Character.isWhitespace(c)) {
+                continue;
+            }
+            if (statement.length() == 0 && (c == 'D' || c == 'd')) {
+                readDelimiterCommand(c);
+                continue;
+            }
+            switch (c) {
+                case '\'':
+                case '"':
+                case '`':
+                    readQuoted((char) c);
+                    break;
+                case '-':
+                    if (peek() == '-') {
+                        skipLine();
+                    } else {
+                        statement.append('-');
+                    }
+                    break;
+                case '#':
+                    skipLine();
+                    break;
+                case '/':
+                    if (peek() == '*') {
+                        readBlockComment();
+                    } else {
+                        statement.append('/');
+                    }
+                    break;
+                default:
+                    statement.append((char) c);
+                    if (c == delimiter.charAt(delimiter.length() - 1) && endsWithDelimiter()) {
+                        statement.setLength(statement.length() - delimiter.length());
+                        String result = statement.toString().trim();
+                        if (!result.isEmpty()) {
+                            return result;
+                        }
+                        statement.setLength(0);
+                    }
+            }
+        }
+        String result = statement.toString().trim();
+        return result.isEmpty() ? null : result;
+    }
+
+    private boolean endsWithDelimiter() {
+        int start = statement.length() - delimiter.length();
+        if (start < 0) {
+            return false;
+        }
+        for (int i = 0; i < delimiter.length(); i++) {
+            if (statement.charAt(start + i) != delimiter.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a <code>DELIMITER</code> line at the start of a statement, or keeps what was read if
+     * the statement starts with another word.
+     */
+    private void readDelimiterCommand(int first) throws IOException {
+        statement.append((char) first);
+        String keyword = "DELIMITER";
+        for (int i = 1; i < keyword.length(); i++) {
+            int c = peek();
+            if (c == -1 || Character.toUpperCase((char) c) != keyword.charAt(i)) {
+                return;
+            }
+            statement.append((char) read());
+        }
+        if (peek() != ' ' && peek() != '\t') {
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = read()) != -1 && c != '\n') {
+            line.append((char) c);
+        }
+        String newDelimiter = line.toString().trim();
+        if (!newDelimiter.isEmpty()) {
+            delimiter = newDelimiter;
+        }
+        statement.setLength(0);
+    }
+
+    private void readQuoted(char quote) throws IOException {
+        statement.append(quote);
+        int c;
+        while ((c = read()) != -1) {
+            statement.append((char) c);
+            if (c == '\\' && quote != '`') {
+                c = read();
+                if (c == -1) {
+                    return;
+                }
+                statement.append((char) c);
+            } else if (c == quote) {
+                // a doubled quote stands for itself
+                if (peek() != quote) {
+                    return;
+                }
+                statement.append((char) read());
+            }
+        }
+    }
+
+    private void readBlockComment() throws IOException {
+        read();
+        boolean conditional = peek() == '!';
+        if (conditional) {
+            statement.append("/*");
+        }
+        int previous = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (conditional) {
+                statement.append((char) c);
+            }
+            if (previous == '*' && c == '/') {
+                return;
+            }
+            previous = c;
+        }
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != '\n') {
+        }
+        if (statement.length() > 0) {
+            statement.append('\n');
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+}
@@ -0,0 +1,344 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+
+/**
+ * Buffered writer encoding column values as MySQL literals in a single pass.
+ * <p>
+ * Strings are escaped straight into a reusable char buffer, copying runs of plain characters in
+ * bulk, so no intermediate strings, matchers or string buffers are created per value. Numbers are
+ * written unquoted, dates and times quoted without an escape scan, and binary values as hex
+ * literals. Large objects can be encoded from a stream, a few kilobytes at a time, so a value
+ * never has to be held in memory as a whole. Unlike {@link java.io.BufferedWriter} this writer is
+ * not synchronized; it is meant to be used by a single dump thread.
+ * <p>
+ * The writer keeps an estimate of the UTF-8 size of its output, see {@link #getByteCount()}.
+ */
+public class SqlValueEncoder extends Writer {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // how much of a streamed value is read at a time
+    private static final int STREAM_CHUNK = 8192;
+
+    private final Writer out;
+
+    private final char[] buffer;
+
+    private int position;
+
+    private long flushedChars;
+
+    private long extraBytes;
+
+    private byte[] streamBytes;
+
+    private char[] streamChars;
+
+    /**
+     * @param out the writer receiving the encoded output
+     * @param bufferSize size of the internal char buffer
+     */
+    public SqlValueEncoder(Writer out, int bufferSize) {
+        this.out = out;
+        this.buffer = new char[Math.max(64, bufferSize)];
+    }
+
+    /**
+     * Writes a value as an SQL literal, choosing the encoding from its Java type.
+     */
+    public void writeValue(Object value) throws IOException {
+        if (value == null) {
+            writeNull();
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof BigDecimal) {
+            writeDecimal((BigDecimal) value);
+        } else if (value instanceof Number) {
+            // BigInteger, Double and Float print as valid numeric literals
+            append(value.toString());
+        } else if (value instanceof Boolean) {
+            write(((Boolean) value) ? '1' : '0');
+        } else if (value instanceof byte[]) {
+            writeBytes((byte[]) value);
+        } else if (value instanceof java.util.Date) {
+            writeQuoted(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    public void writeNull() throws IOException {
+        append("NULL");
+    }
+
+    /**
+     * Writes a long without allocating its string representation.
+     */
+    public void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        // digits were written least significant first
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+    }
+
+    public void writeDecimal(BigDecimal value) throws IOException {
+        append(value.toPlainString());
+    }
+
+    /**
+     * Writes a value that is known not to need escaping, e.g. a date, between single quotes.
+     */
+    public void writeQuoted(String value) throws IOException {
+        write('\'');
+        append(value);
+        write('\'');
+    }
+
+    /**
+     * Writes a string literal between single quotes, escaping the characters MySQL requires.
+     */
+    public void writeString(String value) throws IOException {
+        write('\'');
+        int length = value.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // a surrogate pair is counted as 6 bytes instead of 4, which errs on the safe side
+                extraBytes += c >= 0x800 ? 2 : 1;
+                continue;
+            }
+            char escaped = escapeOf(c);
+            if (escaped != 0) {
+                append(value, runStart, i);
+                ensureCapacity(2);
+                buffer[position++] = '\\';
+                buffer[position++] = escaped;
+                runStart = i + 1;
+            }
+        }
+        append(value, runStart, length);
+        write('\'');
+    }
+
+    /**
+     * Writes a string literal read from a stream, escaping it chunk by chunk as
+     * {@link #writeString(String)} does. The reader is not closed.
+     */
+    public void writeString(Reader value) throws IOException {
+        if (streamChars == null) {
+            streamChars = new char[STREAM_CHUNK];
+        }
+        char[] chars = streamChars;
+        write('\'');
+        int count;
+        while ((count = value.read(chars)) != -1) {
+            int runStart = 0;
+            for (int i = 0; i < count; i++) {
+                char c = chars[i];
+                if (c >= 0x80) {
+                    extraBytes += c >= 0x800 ? 2 : 1;
+                    continue;
+                }
+                char escaped = escapeOf(c);
+                if (escaped != 0) {
+                    write(chars, runStart, i - runStart);
+                    ensureCapacity(2);
+                    buffer[position++] = '\\';
+                    buffer[position++] = escaped;
+                    runStart = i + 1;
+                }
+            }
+            write(chars, runStart, count - runStart);
+        }
+        write('\'');
+    }
+
+    /**
+     * Writes a binary value as a hex literal.
+     */
+    public void writeBytes(byte[] value) throws IOException {
+        if (value.length == 0) {
+            append("''");
+            return;
+        }
+        append("0x");
+        for (byte b : value) {
+            ensureCapacity(2);
+            buffer[position++] = HEX[(b >> 4) & 0xf];
+            buffer[position++] = HEX[b & 0xf];
+        }
+    }
+
+    /**
+     * Writes a binary value read from a stream as a hex literal, chunk by chunk. The stream is not
+     * closed.
+     */
+    public void writeBytes(InputStream value) throws IOException {
+        if (streamBytes == null) {
+            streamBytes = new byte[STREAM_CHUNK];
+        }
+        byte[] bytes = streamBytes;
+        int count = value.read(bytes);
+        if (count == -1) {
+            append("''");
+            return;
+        }
+        append("0x");
+        do {
+            for (int i = 0; i < count; i++) {
+                ensureCapacity(2);
+                buffer[position++] = HEX[(bytes[i] >> 4) & 0xf];
+                buffer[position++] = HEX[bytes[i] & 0xf];
+            }
+        } while ((count = value.read(bytes)) != -1);
+    }
+
+    /**
+     * Adds to the byte count the multi-byte characters of text that was encoded elsewhere and
+     * written to this writer as is.
+     */
+    void addExtraBytes(long bytes) {
+        extraBytes += bytes;
+    }
+
+    /**
+     * Returns the number of bytes written so far once encoded in UTF-8. Multi-byte characters are
+     * only counted inside string values, which is where row data can hold them; the estimate never
+     * falls short for those.
+     */
+    public long getByteCount() {
+        return flushedChars + position + extraBytes;
+    }
+
+    /**
+     * Returns the character following the backslash in the escape sequence of c, or 0 if c does
+     * not need escaping.
+     */
+    private static char escapeOf(char c) {
+        switch (c) {
+            case '\u0000':
+                return '0';
+            case '\'':
+                return '\'';
+            case '"':
+                return '"';
+            case '\b':
+                return 'b';
+            case '\n':
+                return 'n';
+            case '\r':
+                return 'r';
+            case '\t':
+                return 't';
+            case '\u001A':
+                return 'Z';
+            case '\\':
+                return '\\';
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Appends a string without any encoding.
+     */
+    public void append(String s) throws IOException {
+        append(s, 0, s.length());
+    }
+
+    private void append(String s, int start, int end) throws IOException {
+        int length = end - start;
+        if (length > buffer.length - position) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(s, start, length);
+                flushedChars += length;
+                return;
+            }
+        }
+        s.getChars(start, end, buffer, position);
+        position += length;
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (buffer.length - position < length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            flushedChars += position;
+            position = 0;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (char) c;
+    }
+
+    @Override
+    public void write(String s) throws IOException {
+        append(s, 0, s.length());
+    }
+
+    @Override
+    public void write(String s, int off, int len) throws IOException {
+        append(s, off, off + len);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (len > buffer.length - position) {
+            flushBuffer();
+            if (len > buffer.length) {
+                out.write(cbuf, off, len);
+                flushedChars += len;
+                return;
+            }
+        }
+        System.arraycopy(cbuf, off, buffer, position, len);
+        position += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+}
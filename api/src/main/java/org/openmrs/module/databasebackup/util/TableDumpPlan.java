@@ -0,0 +1,266 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * How the rows of one table are written, built once from the result set metadata of the table and
+ * reused for every page and row.
+ * <p>
+ * Each column gets a {@link ColumnWriter} chosen from its SQL type, reading the value with the
+ * matching primitive getter so numeric columns are never boxed. TINYINT columns are written as
+ * numbers even when the driver reports TINYINT(1) as BIT, so flags other than 0 and 1 survive;
+ * BIT columns are written as numbers too.
+ * BLOB and TEXT columns are read as streams and encoded as they are read.
+ */
+class TableDumpPlan {
+
+    private final String insertPrefix;
+
+    private final String statementSuffix;
+
+    private final ColumnWriter[] writers;
+
+    private TableDumpPlan(String insertPrefix, String statementSuffix, ColumnWriter[] writers) {
+        this.insertPrefix = insertPrefix;
+        this.statementSuffix = statementSuffix;
+        this.writers = writers;
+    }
+
+    /**
+     * Builds the plan of a table.
+     *
+     * @param tableName the table name
+     * @param metaData metadata of a <code>SELECT *</code> on the table
+     * @param upsert whether rows already present are updated instead of rejected, as needed by
+     *            incremental backups
+     */
+    static TableDumpPlan create(String tableName, ResultSetMetaData metaData, boolean upsert) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        StringBuilder insertPrefix = new StringBuilder("INSERT INTO `").append(tableName).append("` (");
+        StringBuilder statementSuffix = new StringBuilder(upsert ? " ON DUPLICATE KEY UPDATE " : "");
+        ColumnWriter[] writers = new ColumnWriter[columnCount];
+        for (int i = 1; i <= columnCount; i++) {
+            String columnName = metaData.getColumnName(i);
+            if (i > 1) {
+                insertPrefix.append(", ");
+            }
+            insertPrefix.append('`').append(columnName).append('`');
+            if (upsert) {
+                statementSuffix.append(i > 1 ? ", `" : "`").append(columnName).append("` = VALUES(`").append(columnName)
+                        .append("`)");
+            }
+            writers[i - 1] = writerFor(metaData, i);
+        }
+        insertPrefix.append(") VALUES ");
+        return new TableDumpPlan(insertPrefix.toString(), statementSuffix.toString(), writers);
+    }
+
+    /**
+     * @return the start of an INSERT statement for the table, up to and including VALUES
+     */
+    String getInsertPrefix() {
+        return insertPrefix;
+    }
+
+    /**
+     * @return what has to follow the last VALUES tuple of a statement, empty for plain inserts
+     */
+    String getStatementSuffix() {
+        return statementSuffix;
+    }
+
+    /**
+     * Writes the current row of the result set as a VALUES tuple.
+     */
+    void writeRow(ResultSet rs, SqlValueEncoder out) throws SQLException, IOException {
+        out.write('(');
+        for (int i = 0; i < writers.length; i++) {
+            if (i > 0) {
+                out.write(", ");
+            }
+            writers[i].write(rs, i + 1, out);
+        }
+        out.write(')');
+    }
+
+    /**
+     * Returns whether values of the given column type are read with getLong.
+     */
+    static boolean isIntegral(ResultSetMetaData metaData, int column) throws SQLException {
+        switch (metaData.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return true;
+            case Types.BIGINT:
+                return metaData.isSigned(column);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether a column of the given SQL type holds large objects, BLOB and TEXT columns in
+     * MySQL, whose values are streamed rather than read whole.
+     */
+    static boolean isLargeObject(int sqlType) {
+        switch (sqlType) {
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static ColumnWriter writerFor(ResultSetMetaData metaData, int column) throws SQLException {
+        if (isIntegral(metaData, column)) {
+            return LONG;
+        }
+        switch (metaData.getColumnType(column)) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                // TINYINT(1) and BIT(n) alike, whatever type name the driver gives them: a number
+                // restores into either, while a hex literal of the driver's bytes would not
+                return LONG;
+            case Types.BIGINT:
+                // unsigned BIGINT does not fit in a long
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                // the server's own text form round-trips exactly
+                return NUMBER_TEXT;
+            case Types.DATE:
+                // YEAR columns are reported as DATE but hold a plain number
+                return "YEAR".equalsIgnoreCase(metaData.getColumnTypeName(column)) ? LONG : TEMPORAL;
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                return TEMPORAL;
+            case Types.BINARY:
+            case Types.VARBINARY:
+                return BYTES;
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BYTES_STREAM;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+                return STRING;
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return STRING_STREAM;
+            default:
+                return OBJECT;
+        }
+    }
+
+    /**
+     * Writes the value of one column of the current row.
+     */
+    interface ColumnWriter {
+
+        void write(ResultSet rs, int column, SqlValueEncoder out) throws SQLException, IOException;
+    }
+
+    private static final ColumnWriter LONG = (rs, column, out) -> {
+        long value = rs.getLong(column);
+        if (rs.wasNull()) {
+            out.writeNull();
+        } else {
+            out.writeLong(value);
+        }
+    };
+
+    private static final ColumnWriter DECIMAL = (rs, column, out) -> {
+        BigDecimal value = rs.getBigDecimal(column);
+        if (value == null) {
+            out.writeNull();
+        } else {
+            out.writeDecimal(value);
+        }
+    };
+
+    private static final ColumnWriter NUMBER_TEXT = (rs, column, out) -> {
+        String value = rs.getString(column);
+        if (value == null) {
+            out.writeNull();
+        } else {
+            out.append(value);
+        }
+    };
+
+    private static final ColumnWriter TEMPORAL = (rs, column, out) -> {
+        // getString keeps the server's format, including zero dates
+        String value = rs.getString(column);
+        if (value == null) {
+            out.writeNull();
+        } else {
+            out.writeQuoted(value);
+        }
+    };
+
+    private static final ColumnWriter BYTES = (rs, column, out) -> {
+        byte[] value = rs.getBytes(column);
+        if (value == null) {
+            out.writeNull();
+        } else {
+            out.writeBytes(value);
+        }
+    };
+
+    private static final ColumnWriter STRING = (rs, column, out) -> {
+        String value = rs.getString(column);
+        if (value == null) {
+            out.writeNull();
+        } else {
+            out.writeString(value);
+        }
+    };
+
+    private static final ColumnWriter BYTES_STREAM = (rs, column, out) -> {
+        InputStream value = rs.getBinaryStream(column);
+        if (value == null) {
+            out.writeNull();
+            return;
+        }
+        try {
+            out.writeBytes(value);
+        }
+        finally {
+            value.close();
+        }
+    };
+
+    private static final ColumnWriter STRING_STREAM = (rs, column, out) -> {
+        Reader value = rs.getCharacterStream(column);
+        if (value == null) {
+            out.writeNull();
+            return;
+        }
+        try {
+            out.writeString(value);
+        }
+        finally {
+            value.close();
+        }
+    };
+
+    private static final ColumnWriter OBJECT = (rs, column, out) -> out.writeValue(rs.getObject(column));
+}
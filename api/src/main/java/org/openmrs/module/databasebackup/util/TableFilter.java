@@ -0,0 +1,154 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which tables a backup holds, and how much of their data.
+ * <ul>
+ * <li>"tables.included" and "tables.excluded" are comma separated table names or glob patterns
+ * (<code>*</code> and <code>?</code>, e.g. <code>hl7_in_*</code>), or "all" or "none". Tables named
+ * or matched in one field overrule "all" in the other; a table matched in both is excluded.</li>
+ * <li>"tables.schemaOnly" lists the included tables, e.g. large log tables, whose structure is
+ * backed up but not their data.</li>
+ * <li>"tables.where" holds <code>table: condition</code> pairs separated by semicolons or new
+ * lines; only the rows of a matching table that meet the SQL condition are backed up. The first
+ * matching pair applies.</li>
+ * </ul>
+ * Table names are matched case-insensitively. Plain names are looked up in a hash set, only glob
+ * patterns are tried one by one.
+ */
+class TableFilter {
+
+    private final TablePatterns included;
+
+    private final TablePatterns excluded;
+
+    private final TablePatterns schemaOnly;
+
+    private final Map<TablePatterns, String> conditions;
+
+    private TableFilter(TablePatterns included, TablePatterns excluded, TablePatterns schemaOnly,
+        Map<TablePatterns, String> conditions) {
+        this.included = included;
+        this.excluded = excluded;
+        this.schemaOnly = schemaOnly;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Reads the filter from the "tables.included", "tables.excluded", "tables.schemaOnly" and
+     * "tables.where" properties; by default every table is backed up in full.
+     */
+    static TableFilter fromProperties(Properties props) {
+        Map<TablePatterns, String> conditions = new LinkedHashMap<TablePatterns, String>();
+        for (String pair : props.getProperty("tables.where", "").split("[;\r\n]")) {
+            int colon = pair.indexOf(':');
+            if (colon > 0 && !pair.substring(colon + 1).trim().isEmpty()) {
+                conditions.put(TablePatterns.parse(pair.substring(0, colon)), pair.substring(colon + 1).trim());
+            }
+        }
+        return new TableFilter(TablePatterns.parse(props.getProperty("tables.included", "all")), TablePatterns
+                .parse(props.getProperty("tables.excluded", "none")), TablePatterns.parse(props.getProperty(
+            "tables.schemaOnly", "none")), conditions);
+    }
+
+    /**
+     * @return whether the table is part of the backup
+     */
+    boolean isIncluded(String tableName) {
+        if (excluded.matches(tableName)) {
+            return false;
+        }
+        if (included.matches(tableName)) {
+            return true;
+        }
+        return included.all && !excluded.all;
+    }
+
+    /**
+     * @return whether only the structure of an included table is backed up
+     */
+    boolean isSchemaOnly(String tableName) {
+        return schemaOnly.all || schemaOnly.matches(tableName);
+    }
+
+    /**
+     * @return the condition the backed up rows of a table must meet, or null for all rows
+     */
+    String getCondition(String tableName) {
+        for (Map.Entry<TablePatterns, String> condition : conditions.entrySet()) {
+            if (condition.getKey().all || condition.getKey().matches(tableName)) {
+                return condition.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A list of table names and glob patterns.
+     */
+    private static class TablePatterns {
+
+        // "all" or a lone "*"
+        boolean all;
+
+        final Set<String> names = new HashSet<String>();
+
+        final List<Pattern> globs = new ArrayList<Pattern>();
+
+        static TablePatterns parse(String spec) {
+            TablePatterns patterns = new TablePatterns();
+            for (String item : spec.split(",")) {
+                String name = item.trim().toLowerCase();
+                if (name.isEmpty() || "none".equals(name)) {
+                    continue;
+                }
+                if ("all".equals(name) || "*".equals(name)) {
+                    patterns.all = true;
+                } else if (name.indexOf('*') != -1 || name.indexOf('?') != -1) {
+                    patterns.globs.add(Pattern.compile(toRegex(name)));
+                } else {
+                    patterns.names.add(name);
+                }
+            }
+            return patterns;
+        }
+
+        /**
+         * @return whether a table is named or matched by a glob pattern, regardless of "all"
+         */
+        boolean matches(String tableName) {
+            String name = tableName.toLowerCase();
+            if (names.contains(name)) {
+                return true;
+            }
+            for (Pattern glob : globs) {
+                if (glob.matcher(name).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String toRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (String literal : glob.split("(?=[*?])|(?<=[*?])")) {
+                if ("*".equals(literal)) {
+                    regex.append(".*");
+                } else if ("?".equals(literal)) {
+                    regex.append('.');
+                } else if (!literal.isEmpty()) {
+                    regex.append(Pattern.quote(literal));
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
@@ -1,15 +1,114 @@
 package org.openmrs.module.databasebackup.util;
 
 import java.io.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.zip.*;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.databasebackup.util.compress.BackupArchive;
+import org.openmrs.module.databasebackup.util.compress.CompressionCodec;
+import org.openmrs.module.databasebackup.util.compress.GzipCodec;
+import org.openmrs.module.databasebackup.util.compress.Lz4Codec;
+import org.openmrs.module.databasebackup.util.compress.ParallelGzipCodec;
+import org.openmrs.module.databasebackup.util.compress.ZipCodec;
+import org.openmrs.module.databasebackup.util.compress.ZstdCodec;
+
 /**
- * Zip utility to compress a single file.
+ * Zip utility to compress a single file. The archive format is pluggable, see
+ * {@link CompressionCodec} and {@link #getCodec(String)}.
  * Author: Akor Uji <auji@ihvnigeria.org>
  */
 public class Zip {
 
-    static final int BUFFER = 2048;
+    protected final static Log log = LogFactory.getLog(Zip.class);
+
+    public static final int ARCHIVE_BUFFER = 65536;
+
+    public static final String DEFAULT_CODEC = "zip";
+
+    private static final Map<String, CompressionCodec> codecs = new LinkedHashMap<String, CompressionCodec>();
+
+    static {
+        for (CompressionCodec codec : new CompressionCodec[] { new ZipCodec(), new GzipCodec(), new ParallelGzipCodec(),
+                new ZstdCodec(), new Lz4Codec() }) {
+            codecs.put(codec.getName(), codec);
+        }
+    }
+
+    /**
+     * Returns the codec with the given name, falling back to zip for unknown names.
+     *
+     * @param name the codec name, i.e. zip, gzip, pgzip, zstd or lz4
+     */
+    public static CompressionCodec getCodec(String name) {
+        CompressionCodec codec = name == null ? null : codecs.get(name.trim().toLowerCase());
+        if (codec == null) {
+            if (name != null && !DEFAULT_CODEC.equals(name)) {
+                log.warn("Unknown compression codec " + name + ", using " + DEFAULT_CODEC);
+            }
+            codec = codecs.get(DEFAULT_CODEC);
+        }
+        return codec;
+    }
+
+    /**
+     * @return all available codecs
+     */
+    public static Collection<CompressionCodec> getCodecs() {
+        return Collections.unmodifiableCollection(codecs.values());
+    }
+
+    /**
+     * Returns the archive for a dump file, i.e. the file name with its .sql extension replaced by
+     * the extension of the codec.
+     *
+     * @param folder Folder where the archive resides
+     * @param filename File name of the dump (should include .sql)
+     * @param codec the codec the archive is written with
+     */
+    public static File getArchiveFile(String folder, String filename, CompressionCodec codec) {
+        String baseFilename = filename.endsWith(".sql") ? filename.substring(0, filename.length() - 4) : filename;
+        return new File(folder + baseFilename + codec.getFileExtension());
+    }
+
+    /**
+     * Finds the archive of a dump file whatever codec it was written with, or its manifest if it is
+     * stored in the {@link BackupRepository}.
+     *
+     * @param folder Folder where the archive resides
+     * @param filename File name of the dump (should include .sql)
+     * @return the archive, or null if there is none
+     */
+    public static File findArchiveFile(String folder, String filename) {
+        for (CompressionCodec codec : codecs.values()) {
+            File archiveFile = getArchiveFile(folder, filename, codec);
+            if (archiveFile.isFile()) {
+                return archiveFile;
+            }
+        }
+        File manifestFile = BackupRepository.getManifestFile(folder, filename);
+        return manifestFile.isFile() ? manifestFile : null;
+    }
+
+    /**
+     * Returns the codec that wrote the given archive, based on its extension. The objects of a
+     * repository backup are gzip members, read together as one gzip file.
+     */
+    public static CompressionCodec getCodecOf(File archiveFile) {
+        if (BackupRepository.isManifest(archiveFile)) {
+            return codecs.get("gzip");
+        }
+        for (CompressionCodec codec : codecs.values()) {
+            if (archiveFile.getName().endsWith(codec.getFileExtension())) {
+                return codec;
+            }
+        }
+        return codecs.get(DEFAULT_CODEC);
+    }
 
     /**
      * Compresses a given file that resides under path foldername filename.
@@ -18,51 +117,82 @@ public class Zip {
      * 
      * @param folder Folder where the original file resides
      * @param filename File name of the original uncompressed file (should include .sql)
+     * @throws IOException if the file cannot be read or compressed, see
+     *             {@link #compress(String, String, CompressionCodec, int)}
      */
-    public static void zip(String folder, String filename) {
-        try {
-            // Ensure filename doesn't already contain ".zip"
-            if (filename.endsWith(".zip")) {
-                System.out.println("File is already a zip file: " + filename);
-                return;
-            }
-
-            // Remove .sql extension if present
-            String baseFilename = filename.endsWith(".sql") ? filename.substring(0, filename.length() - 4) : filename;
-            String zipFilename = baseFilename + ".zip";
+    public static void zip(String folder, String filename) throws IOException {
+        compress(folder, filename, getCodec(DEFAULT_CODEC), Deflater.DEFAULT_COMPRESSION);
+    }
 
-            File sqlFile = new File(folder + filename);
-            if (!sqlFile.exists()) {
-                System.out.println("File not found: " + sqlFile.getAbsolutePath());
+    /**
+     * Compresses a given file that resides under path foldername filename with the given codec.
+     * The compressed file will be stored in the same folder with the extension of the codec, and
+     * the original file is deleted.
+     * 
+     * @param folder Folder where the original file resides
+     * @param filename File name of the original uncompressed file (should include .sql)
+     * @param codec the codec to compress with
+     * @param level the compression level
+     * @throws IOException if the file cannot be read or compressed; the incomplete archive is
+     *             deleted and the original file kept
+     */
+    public static void compress(String folder, String filename, CompressionCodec codec, int level) throws IOException {
+        // Ensure filename isn't already compressed
+        for (CompressionCodec existing : codecs.values()) {
+            if (filename.endsWith(existing.getFileExtension())) {
+                log.info("File is already compressed: " + filename);
                 return;
             }
+        }
 
-            FileOutputStream dest = new FileOutputStream(folder + zipFilename);
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
-            byte data[] = new byte[BUFFER];
-
-            System.out.println("Compressing: " + filename + " -> " + zipFilename);
-            FileInputStream fi = new FileInputStream(sqlFile);
-            BufferedInputStream origin = new BufferedInputStream(fi, BUFFER);
-            ZipEntry entry = new ZipEntry(filename); // Keep original .sql name inside ZIP
-            out.putNextEntry(entry);
+        File sqlFile = new File(folder + filename);
+        if (!sqlFile.exists()) {
+            throw new FileNotFoundException("File not found: " + sqlFile.getAbsolutePath());
+        }
 
-            int count;
-            while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                out.write(data, 0, count);
+        File archiveFile = getArchiveFile(folder, filename, codec);
+        log.info("Compressing: " + filename + " -> " + archiveFile.getName());
+        long started = System.currentTimeMillis();
+        boolean complete = false;
+        BackupArchive out = codec.createArchive(archiveFile, level);
+        try {
+            FileInputStream origin = new FileInputStream(sqlFile);
+            try {
+                out.putNextEntry(filename); // Keep original .sql name inside the archive
+                byte data[] = new byte[ARCHIVE_BUFFER];
+                int count;
+                while ((count = origin.read(data, 0, ARCHIVE_BUFFER)) != -1) {
+                    out.write(data, 0, count);
+                }
+            }
+            finally {
+                origin.close();
             }
-            origin.close();
+            out.closeEntry();
             out.close();
-
-            // Delete original .sql file after compression
-            if (sqlFile.delete()) {
-                System.out.println("Deleted original file: " + filename);
-            } else {
-                System.out.println("Failed to delete original file: " + filename);
+            complete = true;
+        }
+        finally {
+            if (!complete) {
+                // never leave a truncated archive behind that looks like a complete one
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    log.warn("Unable to close archive " + archiveFile, e);
+                }
+                archiveFile.delete();
             }
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - started);
+        log.info("Compressed " + sqlFile.length() + " bytes into " + archiveFile.length() + " bytes with "
+                + codec.getName() + " in " + millis + " ms, " + sqlFile.length() / millis + " KB/s");
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        // Delete original .sql file after compression
+        if (sqlFile.delete()) {
+            log.debug("Deleted original file: " + filename);
+        } else {
+            log.warn("Failed to delete original file: " + filename);
         }
     }
 }
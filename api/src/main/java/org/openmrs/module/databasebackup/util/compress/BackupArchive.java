@@ -0,0 +1,37 @@
+package org.openmrs.module.databasebackup.util.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream of a compressed backup. Formats holding a single stream (gzip, zstd, lz4) simply
+ * concatenate their entries; each entry of a dump is restorable on its own, so the concatenation is
+ * restorable too. Container formats override {@link #putNextEntry(String)} and {@link #closeEntry()}.
+ */
+public class BackupArchive extends FilterOutputStream {
+
+    public BackupArchive(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Starts a new entry, all data written until {@link #closeEntry()} belongs to it.
+     *
+     * @param name the entry name, relative to the archive root
+     */
+    public void putNextEntry(String name) throws IOException {
+    }
+
+    /**
+     * Completes the current entry.
+     */
+    public void closeEntry() throws IOException {
+        flush();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+}
@@ -0,0 +1,46 @@
+package org.openmrs.module.databasebackup.util.compress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A compression format backups can be written in. Codecs are looked up by name through
+ * {@link org.openmrs.module.databasebackup.util.Zip#getCodec(String)}.
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the name used to select this codec in the databasebackup.compression global property
+     */
+    String getName();
+
+    /**
+     * @return the extension of archives written by this codec, replacing the .sql extension of the
+     *         dump, e.g. ".zip" or ".sql.gz"
+     */
+    String getFileExtension();
+
+    /**
+     * @return the content type archives are served with
+     */
+    String getContentType();
+
+    /**
+     * Creates a new archive the dump can be streamed into.
+     *
+     * @param archiveFile the file to create
+     * @param level the compression level, 0 (fastest) to 9 (smallest); codecs with a different
+     *            scale map it onto their own
+     * @return the archive, positioned before its first entry
+     */
+    BackupArchive createArchive(File archiveFile, int level) throws IOException;
+
+    /**
+     * Opens an archive written by this codec for reading.
+     *
+     * @param in the archive content
+     * @return the content of all entries of the archive, in the order they were written
+     */
+    InputStream openArchive(InputStream in) throws IOException;
+}
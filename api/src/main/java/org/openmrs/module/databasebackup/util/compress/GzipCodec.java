@@ -0,0 +1,47 @@
+package org.openmrs.module.databasebackup.util.compress;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openmrs.module.databasebackup.util.Zip;
+
+/**
+ * Single-threaded gzip, readable by <code>gunzip</code> and <code>zcat</code>.
+ */
+public class GzipCodec implements CompressionCodec {
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".sql.gz";
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/gzip";
+    }
+
+    @Override
+    public BackupArchive createArchive(File archiveFile, final int level) throws IOException {
+        return new BackupArchive(new GZIPOutputStream(new FileOutputStream(archiveFile), Zip.ARCHIVE_BUFFER) {
+            
+            {
+                def.setLevel(level);
+            }
+        });
+    }
+
+    @Override
+    public InputStream openArchive(InputStream in) throws IOException {
+        // reads all members of a concatenated gzip file
+        return new GZIPInputStream(in, Zip.ARCHIVE_BUFFER);
+    }
+}
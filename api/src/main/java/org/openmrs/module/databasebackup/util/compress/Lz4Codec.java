@@ -0,0 +1,46 @@
+package org.openmrs.module.databasebackup.util.compress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.openmrs.module.databasebackup.util.Zip;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * LZ4 frame format, the fastest codec with the lowest ratio. The level is ignored.
+ */
+public class Lz4Codec implements CompressionCodec {
+
+    @Override
+    public String getName() {
+        return "lz4";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".sql.lz4";
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/x-lz4";
+    }
+
+    @Override
+    public BackupArchive createArchive(File archiveFile, int level) throws IOException {
+        return new BackupArchive(new LZ4FrameOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile),
+                Zip.ARCHIVE_BUFFER), LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB));
+    }
+
+    @Override
+    public InputStream openArchive(InputStream in) throws IOException {
+        // reads all frames, one per entry
+        return new LZ4FrameInputStream(new BufferedInputStream(in, Zip.ARCHIVE_BUFFER));
+    }
+}
@@ -0,0 +1,42 @@
+package org.openmrs.module.databasebackup.util.compress;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.openmrs.module.databasebackup.util.Zip;
+
+/**
+ * Gzip compressed on all available cores, see {@link ParallelGzipOutputStream}. The output is a
+ * regular gzip file.
+ */
+public class ParallelGzipCodec implements CompressionCodec {
+
+    @Override
+    public String getName() {
+        return "pgzip";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".sql.gz";
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/gzip";
+    }
+
+    @Override
+    public BackupArchive createArchive(File archiveFile, int level) throws IOException {
+        return new BackupArchive(new ParallelGzipOutputStream(new FileOutputStream(archiveFile), level, Runtime
+                .getRuntime().availableProcessors()));
+    }
+
+    @Override
+    public InputStream openArchive(InputStream in) throws IOException {
+        return new GZIPInputStream(in, Zip.ARCHIVE_BUFFER);
+    }
+}
@@ -0,0 +1,106 @@
+package org.openmrs.module.databasebackup.util.compress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.openmrs.module.databasebackup.util.Zip;
+
+/**
+ * Zip archives, the default. The only codec keeping per-table files as separate entries.
+ */
+public class ZipCodec implements CompressionCodec {
+
+    @Override
+    public String getName() {
+        return "zip";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".zip";
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/zip";
+    }
+
+    @Override
+    public BackupArchive createArchive(File archiveFile, int level) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile),
+                Zip.ARCHIVE_BUFFER));
+        zip.setLevel(level);
+        return new ZipArchive(zip);
+    }
+
+    @Override
+    public InputStream openArchive(InputStream in) throws IOException {
+        return new ZipEntriesInputStream(new ZipInputStream(new BufferedInputStream(in, Zip.ARCHIVE_BUFFER)));
+    }
+
+    private static class ZipArchive extends BackupArchive {
+
+        ZipArchive(ZipOutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void putNextEntry(String name) throws IOException {
+            ((ZipOutputStream) out).putNextEntry(new ZipEntry(name));
+        }
+
+        @Override
+        public void closeEntry() throws IOException {
+            ((ZipOutputStream) out).closeEntry();
+        }
+    }
+
+    /**
+     * Reads the entries of a zip archive one after the other, as if they were a single stream.
+     */
+    private static class ZipEntriesInputStream extends InputStream {
+
+        private final ZipInputStream zip;
+
+        private boolean inEntry;
+
+        ZipEntriesInputStream(ZipInputStream zip) {
+            this.zip = zip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                if (!inEntry) {
+                    if (zip.getNextEntry() == null) {
+                        return -1;
+                    }
+                    inEntry = true;
+                }
+                int count = zip.read(b, off, len);
+                if (count != -1) {
+                    return count;
+                }
+                inEntry = false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+}
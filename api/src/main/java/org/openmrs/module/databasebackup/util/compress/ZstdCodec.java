@@ -0,0 +1,48 @@
+package org.openmrs.module.databasebackup.util.compress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.openmrs.module.databasebackup.util.Zip;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Zstandard, compressing on all available cores. Much faster than deflate at a similar ratio.
+ */
+public class ZstdCodec implements CompressionCodec {
+
+    @Override
+    public String getName() {
+        return "zstd";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".sql.zst";
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/zstd";
+    }
+
+    @Override
+    public BackupArchive createArchive(File archiveFile, int level) throws IOException {
+        // zstd levels run from 1 to 19, 0-9 covers its useful fast range
+        ZstdOutputStream zstd = new ZstdOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile),
+                Zip.ARCHIVE_BUFFER), Math.max(1, level));
+        zstd.setWorkers(Runtime.getRuntime().availableProcessors());
+        return new BackupArchive(zstd);
+    }
+
+    @Override
+    public InputStream openArchive(InputStream in) throws IOException {
+        return new ZstdInputStream(new BufferedInputStream(in, Zip.ARCHIVE_BUFFER));
+    }
+}
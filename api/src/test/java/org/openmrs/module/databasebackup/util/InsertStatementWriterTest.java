@@ -0,0 +1,212 @@
+package org.openmrs.module.databasebackup.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class InsertStatementWriterTest {
+
+    private static final String PREFIX = "INSERT INTO `person` (`id`, `name`) VALUES ";
+
+    @Test
+    public void writeRow_shouldWriteRowsIntoOneStatement() throws Exception {
+        String sql = dump(new Properties(), false, row(1, "a"), row(2, "b"));
+        assertEquals(PREFIX + "(1, 'a'), (2, 'b');\n", sql);
+    }
+
+    @Test
+    public void finish_shouldWriteNothingWithoutRows() throws Exception {
+        assertEquals("", dump(new Properties(), false));
+    }
+
+    @Test
+    public void writeRow_shouldWriteNullValues() throws Exception {
+        assertEquals(PREFIX + "(NULL, NULL);\n", dump(new Properties(), false, row(null, null)));
+    }
+
+    @Test
+    public void writeRow_shouldStartANewStatementBeforeTheMaximumSize() throws Exception {
+        Properties props = new Properties();
+        // room for the prefix and two rows of 15 bytes, "(10, 'abcdefg')"
+        props.setProperty("insert.maxBytes", String.valueOf(PREFIX.length() + 15 + 2 + 15));
+        Object[][] rows = new Object[5][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = row(10 + i, "abcdefg");
+        }
+        String sql = dump(props, false, rows);
+        assertEquals(PREFIX + "(10, 'abcdefg'), (11, 'abcdefg');\n" + PREFIX + "(12, 'abcdefg'), (13, 'abcdefg');\n"
+                + PREFIX + "(14, 'abcdefg');\n", sql);
+        for (String statement : sql.split("\n")) {
+            assertTrue(statement, statement.length() - 1 <= Long.parseLong(props.getProperty("insert.maxBytes")));
+        }
+    }
+
+    @Test
+    public void writeRow_shouldCountTheUpsertSuffixInTheStatementSize() throws Exception {
+        String suffix = " ON DUPLICATE KEY UPDATE `id` = VALUES(`id`), `name` = VALUES(`name`)";
+        Properties props = new Properties();
+        props.setProperty("insert.maxBytes", String.valueOf(PREFIX.length() + suffix.length() + 15 + 2 + 15));
+        String sql = dump(props, true, row(10, "abcdefg"), row(11, "abcdefg"), row(12, "abcdefg"));
+        assertEquals(PREFIX + "(10, 'abcdefg'), (11, 'abcdefg')" + suffix + ";\n" + PREFIX + "(12, 'abcdefg')" + suffix
+                + ";\n", sql);
+    }
+
+    @Test
+    public void writeRow_shouldWriteARowLargerThanTheMaximumSizeAsAStatementOfItsOwn() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("insert.maxBytes", "100");
+        String sql = dump(props, false, row(1, "a"), row(2, repeat('x', 200)), row(3, "c"));
+        assertEquals(PREFIX + "(1, 'a');\n" + PREFIX + "(2, '" + repeat('x', 200) + "');\n" + PREFIX + "(3, 'c');\n",
+            sql);
+    }
+
+    @Test
+    public void writeRow_shouldSpillARowOutgrowingTheRowBuffer() throws Exception {
+        // more than the 1 MB row buffer, written out while it is encoded
+        String large = repeat('y', 1536 * 1024);
+        String sql = dump(new Properties(), false, row(1, "a"), row(2, large), row(3, "c"), row(4, "d"));
+        assertEquals(PREFIX + "(1, 'a');\n" + PREFIX + "(2, '" + large + "');\n" + PREFIX + "(3, 'c'), (4, 'd');\n",
+            sql);
+    }
+
+    @Test
+    public void writeRow_shouldEscapeAStreamedTextValueOutgrowingTheRowBuffer() throws Exception {
+        String large = repeat('\'', 600 * 1024);
+        StringWriter out = new StringWriter();
+        SqlValueEncoder encoder = new SqlValueEncoder(out, 8192);
+        InsertStatementWriter writer = new InsertStatementWriter(encoder, "note", plan("note", new String[] { "text" },
+            new int[] { Types.LONGVARCHAR }, false), new Properties());
+        writer.writeRow(resultSet(new Object[] { new StringReader(large) }));
+        writer.finish();
+        encoder.flush();
+        assertEquals("INSERT INTO `note` (`text`) VALUES ('" + large.replace("'", "\\'") + "');\n", out.toString());
+    }
+
+    @Test
+    public void finish_shouldWrapTheDataInDisableKeysAndCommits() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("insert.maxBytes", String.valueOf(PREFIX.length() + 8));
+        props.setProperty("insert.disableKeys", "true");
+        props.setProperty("insert.commitEvery", "2");
+        String sql = dump(props, false, row(1, "a"), row(2, "b"), row(3, "c"));
+        assertEquals("/*!40000 ALTER TABLE `person` DISABLE KEYS */;\nSET autocommit=0;\n" + PREFIX + "(1, 'a');\n"
+                + PREFIX + "(2, 'b');\nCOMMIT;\n" + PREFIX + "(3, 'c');\nCOMMIT;\nSET autocommit=1;\n"
+                + "/*!40000 ALTER TABLE `person` ENABLE KEYS */;\n", sql);
+    }
+
+    @Test
+    public void writeRow_shouldWriteBitAndBinaryColumnsAsRestorableLiterals() throws Exception {
+        StringWriter out = new StringWriter();
+        SqlValueEncoder encoder = new SqlValueEncoder(out, 8192);
+        InsertStatementWriter writer = new InsertStatementWriter(encoder, "t", plan("t", new String[] { "flag", "bits",
+                "data", "blob", "amount" }, new int[] { Types.BIT, Types.BIT, Types.VARBINARY, Types.BLOB,
+                Types.DECIMAL }, false), new Properties());
+        writer.writeRow(resultSet(new Object[] { 1L, 5L, new byte[] { 0, (byte) 0xff }, new byte[] { 0x10 },
+                new BigDecimal("1E+3") }));
+        writer.finish();
+        encoder.flush();
+        assertEquals("INSERT INTO `t` (`flag`, `bits`, `data`, `blob`, `amount`) VALUES (1, 5, 0x00ff, 0x10, 1000);\n",
+            out.toString());
+    }
+
+    private static Object[] row(Object id, Object name) {
+        return new Object[] { id == null ? null : ((Number) id).longValue(), name };
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Dumps rows of the table "person" (id INT, name VARCHAR) and returns the SQL.
+     */
+    private static String dump(Properties props, boolean upsert, Object[]... rows) throws Exception {
+        StringWriter out = new StringWriter();
+        SqlValueEncoder encoder = new SqlValueEncoder(out, 64);
+        InsertStatementWriter writer = new InsertStatementWriter(encoder, "person", plan("person", new String[] { "id",
+                "name" }, new int[] { Types.INTEGER, Types.VARCHAR }, upsert), props);
+        for (Object[] row : rows) {
+            writer.writeRow(resultSet(row));
+        }
+        writer.finish();
+        encoder.flush();
+        return out.toString();
+    }
+
+    private static TableDumpPlan plan(String tableName, final String[] names, final int[] types, boolean upsert)
+        throws Exception {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(ResultSetMetaData.class
+                .getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getColumnCount".equals(name)) {
+                    return names.length;
+                } else if ("getColumnName".equals(name) || "getColumnLabel".equals(name)) {
+                    return names[(Integer) args[0] - 1];
+                } else if ("getColumnType".equals(name)) {
+                    return types[(Integer) args[0] - 1];
+                } else if ("isSigned".equals(name)) {
+                    return true;
+                } else if ("getColumnTypeName".equals(name)) {
+                    return "";
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+        return TableDumpPlan.create(tableName, metaData, upsert);
+    }
+
+    /**
+     * Returns a result set positioned on a single row, holding Long, String, byte[], BigDecimal or
+     * Reader values.
+     */
+    private static ResultSet resultSet(final Object[] row) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+            new InvocationHandler() {
+
+                private boolean wasNull;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("wasNull".equals(name)) {
+                        return wasNull;
+                    }
+                    Object value = row[(Integer) args[0] - 1];
+                    wasNull = value == null;
+                    if ("getLong".equals(name)) {
+                        return value == null ? 0L : ((Number) value).longValue();
+                    } else if ("getString".equals(name)) {
+                        return value == null ? null : value.toString();
+                    } else if ("getBytes".equals(name)) {
+                        return value;
+                    } else if ("getBinaryStream".equals(name)) {
+                        return value == null ? null : new ByteArrayInputStream((byte[]) value);
+                    } else if ("getCharacterStream".equals(name)) {
+                        return value;
+                    } else if ("getBigDecimal".equals(name)) {
+                        return value;
+                    }
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+    }
+}
@@ -0,0 +1,133 @@
+package org.openmrs.module.databasebackup.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Retention of incremental chains, on a backup folder whose catalog holds two chains: F1 with the
+ * incremental backups I1 and I2, and the current chain F2 with I3, one backup a day.
+ */
+public class RetentionPolicyTest {
+
+    private static final List<String> CURRENT_CHAIN = Arrays.asList("F2.sql.gz", "I3.sql.gz");
+
+    private File folder;
+
+    private BackupCatalog catalog;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = File.createTempFile("backups", "");
+        folder.delete();
+        folder.mkdir();
+        Properties entries = new Properties();
+        addBackup(entries, "F1", 1, "full", 100);
+        addBackup(entries, "I1", 2, "incremental", 10);
+        addBackup(entries, "I2", 3, "incremental", 10);
+        addBackup(entries, "F2", 4, "full", 100);
+        addBackup(entries, "I3", 5, "incremental", 10);
+        OutputStream out = new FileOutputStream(new File(folder, BackupCatalog.CATALOG_FILE));
+        try {
+            entries.store(out, null);
+        }
+        finally {
+            out.close();
+        }
+        catalog = BackupCatalog.get(folder.getPath());
+    }
+
+    @After
+    public void deleteFolder() {
+        File[] files = folder.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void selectExpired_shouldExpireAnOldChainAsAWhole() {
+        assertEquals(Arrays.asList("I2.sql.gz", "I1.sql.gz", "F1.sql.gz"), selectExpired(new RetentionPolicy(1, 0, 0,
+                0)));
+    }
+
+    @Test
+    public void selectExpired_shouldKeepTheBackupsAKeptIncrementalBuildsOn() {
+        // the last three days keep I2, which needs F1 and I1
+        assertEquals(new ArrayList<String>(), selectExpired(new RetentionPolicy(3, 0, 0, 0)));
+    }
+
+    @Test
+    public void selectExpired_shouldExpireIncrementalsAfterTheNewestKeptBackupOfAChain() {
+        // I1 is kept, which needs F1 but not I2
+        assertEquals(Arrays.asList("I2.sql.gz"), names(new RetentionPolicy(1, 0, 0, 0).selectExpired(catalog
+                .getEntries(), Arrays.asList("I1.sql.gz"))));
+    }
+
+    @Test
+    public void selectExpired_shouldRemoveAChainThatDoesNotFitTheSizeLimitAsAWhole() {
+        // the current chain takes 110 bytes, the old one 120
+        assertEquals(Arrays.asList("I2.sql.gz", "I1.sql.gz", "F1.sql.gz"), selectExpired(new RetentionPolicy(0, 0, 0,
+                229)));
+        assertEquals(new ArrayList<String>(), selectExpired(new RetentionPolicy(0, 0, 0, 230)));
+    }
+
+    @Test
+    public void selectExpired_shouldNeverExpireTheCurrentChain() {
+        assertEquals(Arrays.asList("I2.sql.gz", "I1.sql.gz", "F1.sql.gz"), selectExpired(new RetentionPolicy(0, 0, 0,
+                1)));
+    }
+
+    @Test
+    public void prune_shouldDeleteTheExpiredArchives() throws IOException {
+        catalog.prune(new RetentionPolicy(1, 0, 0, 0), CURRENT_CHAIN);
+        assertFalse(new File(folder, "F1.sql.gz").exists());
+        assertFalse(new File(folder, "I2.sql.gz").exists());
+        assertTrue(new File(folder, "F2.sql.gz").exists());
+        assertTrue(new File(folder, "I3.sql.gz").exists());
+        assertEquals(Arrays.asList("I3.sql.gz", "F2.sql.gz"), names(catalog.getEntries()));
+    }
+
+    private List<String> selectExpired(RetentionPolicy policy) {
+        return names(policy.selectExpired(catalog.getEntries(), CURRENT_CHAIN));
+    }
+
+    private static List<String> names(List<BackupCatalog.Entry> entries) {
+        List<String> names = new ArrayList<String>();
+        for (BackupCatalog.Entry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Creates an empty archive and its catalog entry, taken at noon of a day in January.
+     */
+    private void addBackup(Properties entries, String name, int day, String mode, long storedBytes)
+        throws IOException {
+        String archiveName = name + ".sql.gz";
+        new File(folder, archiveName).createNewFile();
+        Calendar createdAt = Calendar.getInstance();
+        createdAt.clear();
+        createdAt.set(2026, Calendar.JANUARY, day, 12, 0);
+        String prefix = "backup." + archiveName + ".";
+        entries.setProperty(prefix + "createdAt", String.valueOf(createdAt.getTimeInMillis()));
+        entries.setProperty(prefix + "mode", mode);
+        entries.setProperty(prefix + "storedBytes", String.valueOf(storedBytes));
+    }
+}
@@ -0,0 +1,136 @@
+package org.openmrs.module.databasebackup.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class SqlValueEncoderTest {
+
+    private final StringWriter out = new StringWriter();
+
+    // the smallest buffer, so long values go through the buffer flushes
+    private final SqlValueEncoder encoder = new SqlValueEncoder(out, 64);
+
+    @Test
+    public void writeString_shouldEscapeTheCharactersMysqlRequires() throws Exception {
+        encoder.writeString("a'b\"c\\d\ne\rf\tg\u0000h\u001Ai\bj");
+        assertEquals("'a\\'b\\\"c\\\\d\\ne\\rf\\tg\\0h\\Zi\\bj'", encoded());
+    }
+
+    @Test
+    public void writeString_shouldKeepPlainAndNonAsciiCharacters() throws Exception {
+        encoder.writeString("\u00e9\u20ac plain %_");
+        assertEquals("'\u00e9\u20ac plain %_'", encoded());
+    }
+
+    @Test
+    public void writeString_shouldEscapeAStreamedValueAsAString() throws Exception {
+        // longer than the chunks the stream is read in, with escapes on both sides of a chunk boundary
+        String value = repeat("it's a \\ test\n", 2000);
+        encoder.writeString(value);
+        String expected = encoded();
+        StringWriter streamed = new StringWriter();
+        SqlValueEncoder streamEncoder = new SqlValueEncoder(streamed, 64);
+        streamEncoder.writeString(new StringReader(value));
+        streamEncoder.flush();
+        assertEquals(expected, streamed.toString());
+        assertEquals(encoder.getByteCount(), streamEncoder.getByteCount());
+    }
+
+    @Test
+    public void writeString_shouldWriteAnEmptyString() throws Exception {
+        encoder.writeString("");
+        encoder.writeString(new StringReader(""));
+        assertEquals("''''", encoded());
+    }
+
+    @Test
+    public void writeBytes_shouldWriteAHexLiteral() throws Exception {
+        encoder.writeBytes(new byte[] { 0, 1, (byte) 0xab, (byte) 0xff, 0x7f });
+        assertEquals("0x0001abff7f", encoded());
+    }
+
+    @Test
+    public void writeBytes_shouldWriteAnEmptyValueAsAnEmptyString() throws Exception {
+        encoder.writeBytes(new byte[0]);
+        encoder.write(',');
+        encoder.writeBytes(new ByteArrayInputStream(new byte[0]));
+        assertEquals("'',''", encoded());
+    }
+
+    @Test
+    public void writeBytes_shouldWriteAStreamedBlobAsTheSameHexLiteral() throws Exception {
+        byte[] value = new byte[20000];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        encoder.writeBytes(value);
+        String expected = encoded();
+        StringWriter streamed = new StringWriter();
+        SqlValueEncoder streamEncoder = new SqlValueEncoder(streamed, 64);
+        streamEncoder.writeBytes(new ByteArrayInputStream(value));
+        streamEncoder.flush();
+        assertEquals(expected, streamed.toString());
+        assertEquals(2 + 2 * value.length, expected.length());
+    }
+
+    @Test
+    public void writeValue_shouldWriteNullBitsAndNumbers() throws Exception {
+        encoder.writeValue(null);
+        encoder.write(',');
+        encoder.writeValue(Boolean.TRUE);
+        encoder.write(',');
+        encoder.writeValue(Boolean.FALSE);
+        encoder.write(',');
+        encoder.writeValue(42);
+        encoder.write(',');
+        encoder.writeValue(new BigDecimal("1E+3"));
+        encoder.write(',');
+        encoder.writeValue(1.5d);
+        encoder.write(',');
+        encoder.writeValue(new byte[] { 0x0f });
+        encoder.write(',');
+        encoder.writeValue("x'y");
+        assertEquals("NULL,1,0,42,1000,1.5,0x0f,'x\\'y'", encoded());
+    }
+
+    @Test
+    public void writeLong_shouldWriteTheLimitsOfALong() throws Exception {
+        encoder.writeLong(0);
+        encoder.write(',');
+        encoder.writeLong(-17);
+        encoder.write(',');
+        encoder.writeLong(Long.MAX_VALUE);
+        encoder.write(',');
+        encoder.writeLong(Long.MIN_VALUE);
+        assertEquals("0,-17," + Long.MAX_VALUE + "," + Long.MIN_VALUE, encoded());
+    }
+
+    @Test
+    public void getByteCount_shouldCountTheUtf8BytesOfStrings() throws Exception {
+        encoder.writeString("a\u00e9\u20ac");
+        // quotes, 1 byte for a, 2 for e acute and 3 for the euro sign
+        assertEquals(2 + 1 + 2 + 3, encoder.getByteCount());
+        encoder.flush();
+        assertEquals(out.toString().getBytes("UTF-8").length, encoder.getByteCount());
+    }
+
+    private String encoded() throws IOException {
+        encoder.flush();
+        return out.toString();
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(s);
+        }
+        return repeated.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.databasebackup.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TableFilterTest {
+
+    @Test
+    public void isIncluded_shouldIncludeAllTablesByDefault() {
+        TableFilter filter = filter(null, null);
+        assertTrue(filter.isIncluded("person"));
+        assertFalse(filter.isSchemaOnly("person"));
+        assertNull(filter.getCondition("person"));
+    }
+
+    @Test
+    public void isIncluded_shouldMatchGlobPatterns() {
+        TableFilter filter = filter("none", "hl7_in_*, obs, concept_?");
+        assertTrue(filter.isIncluded("hl7_in_queue"));
+        assertTrue(filter.isIncluded("hl7_in_"));
+        assertTrue(filter.isIncluded("concept_a"));
+        assertFalse(filter.isIncluded("concept_ab"));
+        assertFalse(filter.isIncluded("concept_"));
+        assertFalse(filter.isIncluded("hl7_out_queue"));
+        assertTrue(filter.isIncluded("obs"));
+        assertFalse(filter.isIncluded("obs_extra"));
+    }
+
+    @Test
+    public void isIncluded_shouldMatchNamesAndPatternsCaseInsensitively() {
+        TableFilter filter = filter("none", "HL7_IN_*, Obs");
+        assertTrue(filter.isIncluded("hl7_in_archive"));
+        assertTrue(filter.isIncluded("OBS"));
+    }
+
+    @Test
+    public void isIncluded_shouldMatchTheRestOfAPatternLiterally() {
+        TableFilter filter = filter("none", "a.b*, x[y]");
+        assertTrue(filter.isIncluded("a.bc"));
+        assertFalse(filter.isIncluded("axbc"));
+        assertTrue(filter.isIncluded("x[y]"));
+        assertFalse(filter.isIncluded("xy"));
+    }
+
+    @Test
+    public void isIncluded_shouldExcludeATableMatchedInBothFields() {
+        TableFilter filter = filter("hl7_in_error", "hl7_in_*");
+        assertTrue(filter.isIncluded("hl7_in_queue"));
+        assertFalse(filter.isIncluded("hl7_in_error"));
+        assertFalse(filter.isIncluded("person"));
+    }
+
+    @Test
+    public void isIncluded_shouldLetNamedTablesOverruleAll() {
+        TableFilter excludeAll = filter("all", "person*");
+        assertTrue(excludeAll.isIncluded("person_name"));
+        assertFalse(excludeAll.isIncluded("obs"));
+        TableFilter includeAll = filter("*_log", "all");
+        assertFalse(includeAll.isIncluded("access_log"));
+        assertTrue(includeAll.isIncluded("obs"));
+    }
+
+    @Test
+    public void isSchemaOnly_shouldMatchGlobPatterns() {
+        Properties props = new Properties();
+        props.setProperty("tables.schemaOnly", "*_archive, sync_record");
+        TableFilter filter = TableFilter.fromProperties(props);
+        assertTrue(filter.isSchemaOnly("hl7_in_archive"));
+        assertTrue(filter.isSchemaOnly("SYNC_RECORD"));
+        assertFalse(filter.isSchemaOnly("obs"));
+    }
+
+    @Test
+    public void getCondition_shouldReturnTheConditionOfTheFirstMatchingPair() {
+        Properties props = new Properties();
+        props.setProperty("tables.where", "obs: voided = 0; encounter*: date_created > '2020-01-01'\n*: 1 = 1;"
+                + "ignored:   ");
+        TableFilter filter = TableFilter.fromProperties(props);
+        assertEquals("voided = 0", filter.getCondition("obs"));
+        assertEquals("date_created > '2020-01-01'", filter.getCondition("encounter_type"));
+        assertEquals("1 = 1", filter.getCondition("person"));
+        assertEquals("1 = 1", filter.getCondition("ignored"));
+    }
+
+    private static TableFilter filter(String excluded, String included) {
+        Properties props = new Properties();
+        if (excluded != null) {
+            props.setProperty("tables.excluded", excluded);
+        }
+        if (included != null) {
+            props.setProperty("tables.included", included);
+        }
+        return TableFilter.fromProperties(props);
+    }
+}
@@ -0,0 +1,125 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.databasebackup.util.compress.BackupArchive;
+import org.openmrs.module.databasebackup.util.compress.CompressionCodec;
+
+/**
+ * Compressing a dump into an archive and reading it back, per codec and per size of the writes
+ * reaching the archive. The dump is generated once from synthetic <code>encounter</code> and
+ * <code>obs</code> data, so the input compresses like a real backup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    private static final int ENCOUNTERS = 5000;
+
+    private static final int OBS_PER_ENCOUNTER = 20;
+
+    @Param({ "zip", "gzip", "pgzip", "zstd", "lz4" })
+    public String codecName;
+
+    // Zip.ARCHIVE_BUFFER is 65536
+    @Param({ "8192", "65536", "1048576" })
+    public int bufferSize;
+
+    @Param({ "6" })
+    public int level;
+
+    private byte[] dump;
+
+    private CompressionCodec codec;
+
+    private File archiveFile;
+
+    private File compressedFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException, IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SqlValueEncoder out = new SqlValueEncoder(new OutputStreamWriter(bytes, "UTF-8"), 65536);
+        Connection conn = SyntheticData.openDatabase("compression", ENCOUNTERS, OBS_PER_ENCOUNTER);
+        try {
+            BackupProgress progress = new BackupProgress("compression");
+            SyntheticData.dumpTable(conn, out, "encounter", new Properties(), progress);
+            SyntheticData.dumpTable(conn, out, "obs", new Properties(), progress);
+        }
+        finally {
+            conn.close();
+        }
+        out.close();
+        dump = bytes.toByteArray();
+
+        codec = Zip.getCodec(codecName);
+        archiveFile = File.createTempFile("benchmark", codec.getFileExtension());
+        compressedFile = File.createTempFile("benchmark-input", codec.getFileExtension());
+        compress(compressedFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        archiveFile.delete();
+        compressedFile.delete();
+    }
+
+    @Benchmark
+    public long compress() throws IOException {
+        compress(archiveFile);
+        return archiveFile.length();
+    }
+
+    @Benchmark
+    public long decompress() throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        InputStream in = codec.openArchive(new FileInputStream(compressedFile));
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return total;
+    }
+
+    private void compress(File file) throws IOException {
+        BackupArchive archive = codec.createArchive(file, level);
+        archive.putNextEntry("benchmark.sql");
+        for (int offset = 0; offset < dump.length; offset += bufferSize) {
+            archive.write(dump, offset, Math.min(bufferSize, dump.length - offset));
+        }
+        archive.closeEntry();
+        archive.close();
+    }
+}
@@ -0,0 +1,89 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of <code>obs</code> rows into extended INSERT statements. The rows are read from
+ * the database once and replayed from memory, so only the column writers and statement splitting
+ * are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RowSerializationBenchmark {
+
+    private static final int OBS_PER_ENCOUNTER = 20;
+
+    @Param({ "10000" })
+    public int rows;
+
+    // the default maximum statement size, and a small one that splits statements often
+    @Param({ "1048576", "65536" })
+    public long maxStatementBytes;
+
+    @Param({ "false", "true" })
+    public boolean upsert;
+
+    private CachedRowSet obs;
+
+    private TableDumpPlan plan;
+
+    private Properties props;
+
+    @Setup
+    public void setUp() throws SQLException {
+        Connection conn = SyntheticData.openDatabase("rows", Math.max(1, rows / OBS_PER_ENCOUNTER), OBS_PER_ENCOUNTER);
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT * FROM `obs` ORDER BY `obs_id`");
+            obs = RowSetProvider.newFactory().createCachedRowSet();
+            obs.populate(rs);
+            rs.close();
+            stmt.close();
+        }
+        finally {
+            conn.close();
+        }
+        plan = TableDumpPlan.create("obs", obs.getMetaData(), upsert);
+        props = new Properties();
+        props.setProperty("insert.maxBytes", String.valueOf(maxStatementBytes));
+    }
+
+    @Benchmark
+    public long writeRows() throws SQLException, IOException {
+        SyntheticData.CountingWriter sink = new SyntheticData.CountingWriter();
+        SqlValueEncoder out = new SqlValueEncoder(sink, 65536);
+        InsertStatementWriter inserts = new InsertStatementWriter(out, "obs", plan, props);
+        obs.beforeFirst();
+        while (obs.next()) {
+            inserts.writeRow(obs);
+        }
+        inserts.finish();
+        out.flush();
+        return sink.count;
+    }
+}
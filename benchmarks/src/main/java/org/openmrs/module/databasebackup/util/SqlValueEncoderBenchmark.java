@@ -0,0 +1,100 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Escaping and encoding of single column values, the innermost loop of every dump.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SqlValueEncoderBenchmark {
+
+    private static final String PLAIN = "9a3e2cf1-6b1e-4a8e-b7f4-5c9d2e8a1f03";
+
+    private static final String ESCAPED = "Missed 2 appointments\nPatient's caregiver said \"traced\" C:\\scans";
+
+    private static final String UNICODE = "\u1ecc\u0300gb\u1eb9\u0301ni Ad\u00e9y\u1eb9m\u00ed, ward 3";
+
+    private static final String LONG_TEXT;
+
+    static {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 4096) {
+            text.append("Patient stable on TDF/3TC/DTG, viral load <40 copies/ml. ");
+        }
+        LONG_TEXT = text.toString();
+    }
+
+    private static final BigDecimal DECIMAL = new BigDecimal("1234.56");
+
+    private static final byte[] BYTES = new byte[256];
+
+    private SyntheticData.CountingWriter sink;
+
+    private SqlValueEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        sink = new SyntheticData.CountingWriter();
+        encoder = new SqlValueEncoder(sink, 65536);
+    }
+
+    @Benchmark
+    public SqlValueEncoder writePlainString() throws IOException {
+        encoder.writeString(PLAIN);
+        return encoder;
+    }
+
+    @Benchmark
+    public SqlValueEncoder writeEscapedString() throws IOException {
+        encoder.writeString(ESCAPED);
+        return encoder;
+    }
+
+    @Benchmark
+    public SqlValueEncoder writeUnicodeString() throws IOException {
+        encoder.writeString(UNICODE);
+        return encoder;
+    }
+
+    @Benchmark
+    public SqlValueEncoder writeLongString() throws IOException {
+        encoder.writeString(LONG_TEXT);
+        return encoder;
+    }
+
+    @Benchmark
+    public SqlValueEncoder writeLong() throws IOException {
+        encoder.writeLong(165432L);
+        return encoder;
+    }
+
+    @Benchmark
+    public SqlValueEncoder writeDecimal() throws IOException {
+        encoder.writeDecimal(DECIMAL);
+        return encoder;
+    }
+
+    @Benchmark
+    public SqlValueEncoder writeBytes() throws IOException {
+        encoder.writeBytes(BYTES);
+        return encoder;
+    }
+}
@@ -0,0 +1,164 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Seeds an in-memory H2 database in MySQL mode with synthetic <code>encounter</code> and
+ * <code>obs</code> tables shaped like those of OpenMRS, which hold most of the rows of a facility
+ * database. The data is generated from a fixed seed, so every run dumps the same bytes.
+ */
+class SyntheticData {
+
+    private static final long SEED = 42;
+
+    // 2015-01-01, the encounters span the following years
+    private static final long FIRST_ENCOUNTER = 1420070400000L;
+
+    private static final String[] TEXT_VALUES = { "Patient stable, continue current regimen",
+            "Viral load <40 copies/ml", "Referred to the \"adherence\" counsellor", "Patient's caregiver collected drugs",
+            "Missed 2 appointments\nTraced by phone", "\u1ecc\u0300gb\u1eb9\u0301ni Ad\u00e9y\u1eb9m\u00ed, ward 3",
+            "C:\\scans\\lab-results.pdf" };
+
+    /**
+     * Opens a new in-memory database holding the given number of encounters, each with the given
+     * number of observations. The database is dropped when the connection is closed.
+     */
+    static Connection openDatabase(String name, int encounters, int obsPerEncounter) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE");
+        Statement stmt = conn.createStatement();
+        stmt.execute("CREATE TABLE encounter (encounter_id INT NOT NULL AUTO_INCREMENT, encounter_type INT NOT NULL, "
+                + "patient_id INT NOT NULL, location_id INT, form_id INT, encounter_datetime DATETIME NOT NULL, "
+                + "creator INT NOT NULL, date_created DATETIME NOT NULL, voided TINYINT NOT NULL DEFAULT 0, voided_by INT, "
+                + "date_voided DATETIME, void_reason VARCHAR(255), changed_by INT, date_changed DATETIME, visit_id INT, "
+                + "uuid CHAR(38) NOT NULL, PRIMARY KEY (encounter_id))");
+        stmt.execute("CREATE TABLE obs (obs_id INT NOT NULL AUTO_INCREMENT, person_id INT NOT NULL, concept_id INT NOT NULL, "
+                + "encounter_id INT, order_id INT, obs_datetime DATETIME NOT NULL, location_id INT, obs_group_id INT, "
+                + "accession_number VARCHAR(255), value_group_id INT, value_coded INT, value_coded_name_id INT, "
+                + "value_drug INT, value_datetime DATETIME, value_numeric DOUBLE, value_modifier VARCHAR(2), "
+                + "value_text TEXT, value_complex VARCHAR(1000), comments VARCHAR(255), creator INT NOT NULL, "
+                + "date_created DATETIME NOT NULL, voided TINYINT NOT NULL DEFAULT 0, voided_by INT, date_voided DATETIME, "
+                + "void_reason VARCHAR(255), uuid CHAR(38) NOT NULL, previous_version INT, "
+                + "form_namespace_and_path VARCHAR(255), status VARCHAR(16) NOT NULL DEFAULT 'FINAL', "
+                + "interpretation VARCHAR(32), PRIMARY KEY (obs_id))");
+        stmt.close();
+
+        Random random = new Random(SEED);
+        conn.setAutoCommit(false);
+        PreparedStatement encounter = conn.prepareStatement("INSERT INTO encounter (encounter_type, patient_id, "
+                + "location_id, form_id, encounter_datetime, creator, date_created, uuid) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement obs = conn.prepareStatement("INSERT INTO obs (person_id, concept_id, encounter_id, "
+                + "obs_datetime, location_id, value_coded, value_numeric, value_text, creator, date_created, uuid) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        for (int e = 1; e <= encounters; e++) {
+            int patientId = 1 + random.nextInt(Math.max(1, encounters / 10));
+            Timestamp datetime = new Timestamp(FIRST_ENCOUNTER + (long) e * 600000L);
+            encounter.setInt(1, 1 + random.nextInt(20));
+            encounter.setInt(2, patientId);
+            encounter.setInt(3, 8);
+            encounter.setInt(4, 1 + random.nextInt(60));
+            encounter.setTimestamp(5, datetime);
+            encounter.setInt(6, 1);
+            encounter.setTimestamp(7, datetime);
+            encounter.setString(8, uuid(random));
+            encounter.addBatch();
+
+            for (int o = 0; o < obsPerEncounter; o++) {
+                obs.setInt(1, patientId);
+                obs.setInt(2, 1000 + random.nextInt(165000));
+                obs.setInt(3, e);
+                obs.setTimestamp(4, datetime);
+                obs.setInt(5, 8);
+                // four in ten coded, four in ten numeric, the rest free text
+                int kind = random.nextInt(10);
+                if (kind < 4) {
+                    obs.setInt(6, 1000 + random.nextInt(165000));
+                } else {
+                    obs.setNull(6, Types.INTEGER);
+                }
+                if (kind >= 4 && kind < 8) {
+                    obs.setDouble(7, Math.round(random.nextDouble() * 100000) / 100.0);
+                } else {
+                    obs.setNull(7, Types.DOUBLE);
+                }
+                obs.setString(8, kind >= 8 ? TEXT_VALUES[random.nextInt(TEXT_VALUES.length)] : null);
+                obs.setInt(9, 1);
+                obs.setTimestamp(10, datetime);
+                obs.setString(11, uuid(random));
+                obs.addBatch();
+            }
+            if (e % 1000 == 0) {
+                encounter.executeBatch();
+                obs.executeBatch();
+            }
+        }
+        encounter.executeBatch();
+        obs.executeBatch();
+        encounter.close();
+        obs.close();
+        conn.commit();
+        conn.setAutoCommit(true);
+        return conn;
+    }
+
+    /**
+     * Dumps all rows of a table the way a backup does, chunk by chunk.
+     */
+    static void dumpTable(Connection conn, SqlValueEncoder out, String tableName, Properties props,
+            BackupProgress progress) throws SQLException, IOException {
+        String afterKey = null;
+        for (int index = 0;; index++) {
+            DumpCheckpoint.Chunk chunk = new DumpCheckpoint.Chunk(tableName, index, afterKey, null);
+            DbDump.dumpTable(conn, out, chunk, props, progress);
+            if (chunk.complete) {
+                return;
+            }
+            afterKey = chunk.lastKey;
+        }
+    }
+
+    private static String uuid(Random random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    /**
+     * A writer that only counts what is written to it, so benchmarks measure encoding alone.
+     */
+    static class CountingWriter extends Writer {
+
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
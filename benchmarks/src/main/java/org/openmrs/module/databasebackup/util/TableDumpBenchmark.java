@@ -0,0 +1,90 @@
+package org.openmrs.module.databasebackup.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.databasebackup.util.compress.BackupArchive;
+import org.openmrs.module.databasebackup.util.compress.CompressionCodec;
+
+/**
+ * Dumping the <code>encounter</code> and <code>obs</code> tables of an in-memory H2 database in
+ * MySQL mode into a compressed archive: keyset pagination, chunking, row serialization and
+ * compression together, as a backup runs them for each table.
+ * <p>
+ * H2 is faster than a MySQL server over the network, so this overstates what a facility will see,
+ * but a drop in the score between two builds is a regression in the module.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TableDumpBenchmark {
+
+    @Param({ "5000" })
+    public int encounters;
+
+    @Param({ "20" })
+    public int obsPerEncounter;
+
+    @Param({ "gzip", "zstd" })
+    public String codecName;
+
+    @Param({ "100000" })
+    public int chunkRows;
+
+    private Connection conn;
+
+    private CompressionCodec codec;
+
+    private File archiveFile;
+
+    private Properties props;
+
+    @Setup
+    public void setUp() throws SQLException, IOException {
+        conn = SyntheticData.openDatabase("dump", encounters, obsPerEncounter);
+        codec = Zip.getCodec(codecName);
+        archiveFile = File.createTempFile("benchmark", codec.getFileExtension());
+        props = new Properties();
+        props.setProperty("dump.chunkRows", String.valueOf(chunkRows));
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        conn.close();
+        archiveFile.delete();
+    }
+
+    @Benchmark
+    public long dump() throws SQLException, IOException {
+        BackupProgress progress = new BackupProgress("benchmark");
+        BackupArchive archive = codec.createArchive(archiveFile, 6);
+        archive.putNextEntry("benchmark.sql");
+        SqlValueEncoder out = new SqlValueEncoder(new OutputStreamWriter(archive, "UTF-8"), 65536);
+        SyntheticData.dumpTable(conn, out, "encounter", props, progress);
+        SyntheticData.dumpTable(conn, out, "obs", props, progress);
+        out.flush();
+        archive.closeEntry();
+        archive.close();
+        return progress.snapshot().getRows();
+    }
+}
@@ -14,10 +14,15 @@
 package org.openmrs.module.databasebackup.web.controller;
 
 import org.openmrs.api.context.Context;
+import java.io.File;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -25,7 +30,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.databasebackup.BackupJobExecutor;
 import org.openmrs.module.databasebackup.DatabaseBackupTask;
+import org.openmrs.module.databasebackup.util.BackupProgress;
+import org.openmrs.module.databasebackup.util.BackupCatalog;
+import org.openmrs.module.databasebackup.util.ProgressRegistry;
 import org.springframework.validation.BindException;
 import org.springframework.validation.Errors;
 import org.springframework.web.servlet.ModelAndView;
@@ -41,9 +50,6 @@ public class BackupFormController extends SimpleFormController {
 	
 	/** Logger for this class and subclasses */
 	protected final Log log = LogFactory.getLog(getClass());
-
-	// holds progress information of current dump thread
-	private static Map<String,String> progressInfo = new HashMap<String,String>();
 	
 	/**
 	 * Returns any extra data in a key-->value pair kind of way
@@ -53,8 +59,10 @@ public class BackupFormController extends SimpleFormController {
 	 */
 	@Override
 	protected Map<String, Object> referenceData(HttpServletRequest request, Object obj, Errors err) throws Exception {
-		// this method doesn't return any extra data right now, just an empty map
-		return new HashMap<String, Object>();
+		// the backups that can be downloaded and restored
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("backups", getCatalog(DatabaseBackupTask.getAbsoluteBackupFolderPath()));
+		return data;
 	}
 	
 	/**
@@ -80,16 +88,56 @@ public class BackupFormController extends SimpleFormController {
 
 	    // If the user clicked the backup execution button
 	    if ("backup".equals(request.getParameter("act"))) {
-	        new DatabaseBackupTask().handleBackup(facilityDatimCode, fileId, true, BackupFormController.class, null, null);
+	        String requestedFileId = fileId;
+	        // A backup already queued or running is followed instead of starting another one
+	        fileId = new DatabaseBackupTask().handleBackup(facilityDatimCode, fileId, true, BackupFormController.class, null, null);
 	        
-	        // Generate the download URL for the backup file
-	        String downloadUrl = "/module/databasebackup/download.form?fileId=" + fileId;
-		
-		
-		// Remove .sql extension before appending .zip
-		String baseFileId = fileId.replace(".sql", "");	
-	        message = "<strong>Database is now being exported to file: " + folder + baseFileId + ".zip"
-		   + ".</strong><br/>This might take a few minutes, please be patient. You will be notified upon completion.";
+		if (fileId == null) {
+		    message = "<strong>The backup could not be started.</strong><br/>Too many backup jobs are waiting, or the backup folder "
+			+ folder + " could not be created.";
+		} else {
+		    // Archive name depends on the configured compression codec, or repository mode
+		    File archiveFile = DatabaseBackupTask.getArchiveFile(folder, fileId);
+		    message = (fileId.equals(requestedFileId) ? "<strong>Database is now being exported to file: "
+			: "<strong>A backup is already running, exporting to file: ") + archiveFile.getPath()
+			+ ".</strong><br/>This might take a few minutes, please be patient. You will be notified upon completion.";
+		}
+	    } else if ("cancel".equals(request.getParameter("act"))) {
+	        fileId = request.getParameter("fileId");
+	        message = BackupJobExecutor.getInstance().cancel(fileId) ? "<strong>Cancelling " + fileId + "...</strong>"
+	            : "<strong>No backup or restore of " + fileId + " is running.</strong>";
+	    } else if ("restore".equals(request.getParameter("act"))) {
+	        // Only archives listed in the backup folder can be restored
+	        String restoreFile = request.getParameter("restoreFile");
+	        if (restoreFile != null && getBackups(folder).contains(restoreFile)) {
+	            fileId = new DatabaseBackupTask().handleRestore(restoreFile, true, BackupFormController.class);
+	            if (fileId == null) {
+	                message = "<strong>The restore could not be started.</strong><br/>Too many backup jobs are waiting.";
+	            } else {
+	                message = (fileId.equals(restoreFile) ? "<strong>Database is now being restored from file: "
+	                    : "<strong>A restore is already running, from file: ") + folder + fileId
+	                    + ".</strong><br/>This might take a while, please be patient. You will be notified upon completion.";
+	            }
+	        } else {
+	            fileId = null;
+	            message = "<strong>Backup file not found: " + restoreFile + ".</strong>";
+	        }
+	    } else if ("verify".equals(request.getParameter("act"))) {
+	        // Checks the archive against its manifest, without restoring it
+	        String verifyFile = request.getParameter("verifyFile");
+	        if (verifyFile != null && getBackups(folder).contains(verifyFile)) {
+	            fileId = new DatabaseBackupTask().handleVerify(verifyFile);
+	            message = fileId == null ? "<strong>The verification could not be started.</strong><br/>Too many backup jobs are waiting."
+	                : "<strong>Verifying backup file: " + folder + verifyFile + ".</strong>";
+	        } else {
+	            fileId = null;
+	            message = "<strong>Backup file not found: " + verifyFile + ".</strong>";
+	        }
+	    } else if ("plan".equals(request.getParameter("act"))) {
+	        // Estimates the backup without dumping anything
+	        fileId = new DatabaseBackupTask().handlePlan(fileId);
+	        message = fileId == null ? "<strong>The backup could not be planned.</strong><br/>Too many backup jobs are waiting."
+	            : "<strong>Planning a backup with the current settings.</strong>";
 	    } else {
 	        message = "<strong>Could not find or create the path to the backup folder: " + folder + ".</strong><br/>Please check or ask your system administrator for help.";
 	    }
@@ -101,8 +149,36 @@ public class BackupFormController extends SimpleFormController {
 	    return mv;
 	}
 
+	/**
+	 * Returns the backups of the backup folder, newest first, as recorded in its catalog.
+	 */
+	private List<BackupCatalog.Entry> getCatalog(String folder) {
+		try {
+			return BackupCatalog.get(folder).getEntries();
+		} catch (IOException e) {
+			log.error("Unable to read the backup catalog of " + folder, e);
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Returns the names of the backup archives in the backup folder, newest first.
+	 */
+	private List<String> getBackups(String folder) {
+		List<String> backups = new ArrayList<String>();
+		for (BackupCatalog.Entry entry : getCatalog(folder)) {
+			backups.add(entry.getName());
+		}
+		return backups;
+	}
+
+	/**
+	 * Returns the progress message of a backup, restore or verification job, polled by the Backup Database page
+	 * through DWR.
+	 */
 	public String getProgress(String filename) {
-	    return BackupFormController.getProgressInfo().get(filename)==null?"":(String)BackupFormController.getProgressInfo().get(filename);
+		BackupProgress progress = ProgressRegistry.get(filename);
+		return progress == null ? "" : progress.snapshot().getMessage();
 	}
 
 	/**
@@ -116,18 +192,4 @@ public class BackupFormController extends SimpleFormController {
 	protected String formBackingObject(HttpServletRequest request) throws Exception {
 		return "";
 	}
-
-	/**
-	 * @return the progressInfo
-	 */
-	public static Map<String,String> getProgressInfo() {
-		return progressInfo;
-	}
-	
-	/**
-	 * @param progressInfo the progressInfo to set
-	 */
-	public static void setProgressInfo(Map<String,String> progressInfo) {
-		BackupFormController.progressInfo = progressInfo;
-	}
 }
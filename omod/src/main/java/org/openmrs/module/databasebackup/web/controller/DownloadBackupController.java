@@ -4,17 +4,30 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.databasebackup.DatabaseBackupTask;
+import org.openmrs.module.databasebackup.util.BackupRepository;
+import org.openmrs.module.databasebackup.util.Zip;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 /**
  * Controller to handle downloading of database backup files.
  * This controller backs the /web/module/backupForm.jsp page. This controller is tied to that jsp
  * page in the /metadata/moduleApplicationContext.xml file
+ * <p>
+ * Downloads can be resumed: a single byte range can be requested with the Range header, guarded by
+ * If-Range, and the archive is identified by an ETag and Last-Modified date. The body is handed to
+ * the container's sendfile support when it has one (Tomcat's NIO and APR connectors), which frees
+ * the request thread; otherwise it is transferred from the file channel. A backup stored in the
+ * backup repository is served as the .sql.gz file its objects make up together.
  * Author: Akor Uji <auji@ihvnigeria.org>
  */
 @Controller
@@ -22,41 +35,207 @@ public class DownloadBackupController {
 
     private final Log log = LogFactory.getLog(getClass());
 
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // bytes per transferTo call, so a slow client never makes one call block for long
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
     @RequestMapping("/module/databasebackup/download.form")
-    public void downloadBackup(@RequestParam("fileId") String fileId, HttpServletResponse response) {
+    public void downloadBackup(@RequestParam("fileId") String fileId, HttpServletRequest request,
+            HttpServletResponse response) {
         if (!Context.isAuthenticated()) {
             log.warn("Unauthorized access attempt to download backup file: " + fileId);
             return;
         }
 
-        
+
 	String backupFolderPath = DatabaseBackupTask.getAbsoluteBackupFolderPath(); // Retrieve backup folder
-	String baseFileId = fileId.replace(".sql", ""); // Ensure correct filename
-	File backupFile = new File(backupFolderPath, baseFileId + ".zip");
+	File backupFile = Zip.findArchiveFile(backupFolderPath, fileId); // Whatever codec it was written with
 
-        if (!backupFile.exists() || !backupFile.isFile()) {
-            log.error("Requested backup file does not exist: " + backupFile.getAbsolutePath());
+        if (backupFile == null) {
+            log.error("Requested backup file does not exist: " + backupFolderPath + fileId);
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
 
-        response.setContentType("application/zip");
-        response.setHeader("Content-Disposition", "attachment; filename=\"" + backupFile.getName() + "\"");
-        response.setContentLength((int) backupFile.length());
+        List<File> parts;
+        try {
+            parts = BackupRepository.getParts(backupFile);
+        } catch (IOException e) {
+            log.error("Unable to read backup " + backupFile, e);
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        long length = 0;
+        for (File part : parts) {
+            length += part.length();
+        }
+        // HTTP dates have a resolution of one second
+        long lastModified = backupFile.lastModified() / 1000 * 1000;
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
 
-        try (InputStream inputStream = new FileInputStream(backupFile);
-             OutputStream outputStream = response.getOutputStream()) {
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null && isRangeCurrent(request, etag, lastModified)) {
+            long[] requested = parseRange(range, length);
+            if (requested == null) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(416); // Requested Range Not Satisfiable
+                return;
+            }
+            if (requested.length == 2) {
+                start = requested[0];
+                end = requested[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        response.setContentType(Zip.getCodecOf(backupFile).getContentType());
+        String downloadName = BackupRepository.isManifest(backupFile) ? Zip.getArchiveFile("", fileId,
+            Zip.getCodecOf(backupFile)).getName() : backupFile.getName();
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + downloadName + "\"");
+        // setContentLength takes an int, which overflows for backups over 2 GB
+        response.setHeader("Content-Length", String.valueOf(end - start + 1));
+
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+
+        try {
+            if (parts.size() == 1 && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+                // the connector writes the file once the request returns, without a request thread
+                request.setAttribute(SENDFILE_FILENAME, parts.get(0).getCanonicalPath());
+                request.setAttribute(SENDFILE_START, start);
+                request.setAttribute(SENDFILE_END, end + 1);
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("Unable to hand " + backupFile + " to sendfile, copying it instead: " + e);
+        }
+
+        try (OutputStream outputStream = response.getOutputStream()) {
+
+            WritableByteChannel out = Channels.newChannel(outputStream);
+            // offset of the current part in the download
+            long offset = 0;
+            for (File part : parts) {
+                long partEnd = Math.min(end, offset + part.length() - 1);
+                if (partEnd >= start) {
+                    try (FileChannel channel = new FileInputStream(part).getChannel()) {
+                        long position = Math.max(start, offset);
+                        while (position <= partEnd) {
+                            position += channel.transferTo(position - offset, Math.min(TRANSFER_CHUNK, partEnd - position + 1),
+                                out);
+                        }
+                    }
+                }
+                offset += part.length();
+                if (offset > end) {
+                    break;
+                }
             }
             outputStream.flush();
 
         } catch (IOException e) {
-            log.error("Error while downloading backup file: " + fileId, e);
-            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            // most often the client went away, it can resume from where it stopped
+            log.warn("Download of backup file " + fileId + " interrupted: " + e);
+        }
+    }
+
+    /**
+     * Returns whether the client's copy is current, per If-None-Match or else If-Modified-Since.
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return "*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag);
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * Returns whether the Range header applies: the If-Range header, if any, must name the
+     * current ETag or Last-Modified date, otherwise the archive changed and is sent whole.
+     */
+    private static boolean isRangeCurrent(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")) {
+            return etag.equals(ifRange.trim());
+        }
+        return getDateHeader(request, "If-Range") == lastModified;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a Range header of a single byte range: "bytes=first-last", "bytes=first-" or
+     * "bytes=-suffixLength".
+     *
+     * @return the first and last byte of the range; an empty array if the header is malformed or
+     *         asks for several ranges, in which case the whole file is sent; or null if the range
+     *         lies beyond the end of the file
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return new long[0];
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return new long[0];
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start) {
+                    return start >= length ? null : new long[0];
+                }
+            }
+            if (start >= length) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return new long[0];
         }
     }
 }
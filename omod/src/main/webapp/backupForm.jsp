@@ -14,6 +14,13 @@ window.onload = function() {
     checkBackupCompletion();
 };
 
+function hideCancelForm() {
+    var cancelForm = document.getElementById("cancelForm");
+    if (cancelForm) {
+        cancelForm.style.display = "none";
+    }
+}
+
 function checkBackupCompletion() {
     var filename = '${fileId}';
     
@@ -26,8 +33,18 @@ function checkBackupCompletion() {
             if (data.toLowerCase().includes("backup complete")) {
                 document.getElementById("downloadLink").style.display = "block"; // Show download link
                 document.getElementById("runBackupLink").style.display = "block"; // Show "Run another database backup"
+                hideCancelForm();
                 return; // Stop checking after completion
             }
+            // A restore, verification or plan has nothing to download, a failed or cancelled job neither
+            if (data.toLowerCase().includes("restore complete") || data.toLowerCase().includes("backup is valid")
+                    || data.toLowerCase().includes("backup plan:")
+                    || data.toLowerCase().includes("backup is invalid") || data.toLowerCase().includes("failed")
+                    || data.toLowerCase().includes("cancelled")) {
+                document.getElementById("runBackupLink").style.display = "block";
+                hideCancelForm();
+                return;
+            }
         }
         setTimeout(checkBackupCompletion, 2000); // Retry every 2 seconds
     });
@@ -62,6 +79,14 @@ function checkBackupCompletion() {
         </div>
     </c:if>
     
+    <c:if test="${not empty fileId}">
+        <form id="cancelForm" method="post">
+            <input type="hidden" name="act" value="cancel">
+            <input type="hidden" name="fileId" value="${fileId}">
+            <input type="submit" value="Cancel">
+        </form>
+    </c:if>
+
     <br/>
     <a id="runBackupLink" href="backup.form" style="display: none;">Run another database backup</a>
 </c:if>
@@ -77,6 +102,64 @@ function checkBackupCompletion() {
         <input type="hidden" id="act" name="act" value="backup">
         <input type="submit" value="Execute database backup now">
     </form>
+
+    <br/>
+    <form method="post">
+        <input type="hidden" name="act" value="plan">
+        <input type="submit" value="Estimate database backup (dry run)">
+    </form>
+
+    <c:if test="${not empty backups}">
+        <br/>
+        <form method="post" onsubmit="return confirm('Restoring replaces the data of the database with the content of the backup. Continue?');">
+            <input type="hidden" name="act" value="restore">
+            <select name="restoreFile">
+                <c:forEach var="backup" items="${backups}">
+                    <option value="${backup.name}">${backup.name}</option>
+                </c:forEach>
+            </select>
+            <input type="submit" value="Restore database from backup">
+        </form>
+
+        <br/>
+        <form method="post">
+            <input type="hidden" name="act" value="verify">
+            <select name="verifyFile">
+                <c:forEach var="backup" items="${backups}">
+                    <option value="${backup.name}">${backup.name}</option>
+                </c:forEach>
+            </select>
+            <input type="submit" value="Verify backup">
+        </form>
+
+        <br/>
+        <table cellpadding="4">
+            <tr>
+                <th>Backup</th>
+                <th>Created</th>
+                <th>Mode</th>
+                <th>Size (MB)</th>
+                <th>Duration (s)</th>
+                <th>Tables</th>
+                <th>Rows</th>
+                <th>SHA-256</th>
+            </tr>
+            <c:forEach var="backup" items="${backups}">
+                <tr>
+                    <td>
+                        <a href="${pageContext.request.contextPath}/module/databasebackup/download.form?fileId=${backup.fileId}">${backup.name}</a>
+                    </td>
+                    <td><openmrs:formatDate date="${backup.createdDate}" type="long"/></td>
+                    <td>${backup.mode}</td>
+                    <td><fmt:formatNumber value="${backup.size / 1048576}" maxFractionDigits="1"/></td>
+                    <td><c:if test="${backup.millis > 0}"><fmt:formatNumber value="${backup.millis / 1000}" maxFractionDigits="0"/></c:if></td>
+                    <td><c:if test="${backup.tables > 0}">${backup.tables}</c:if></td>
+                    <td><c:if test="${backup.tables > 0}">${backup.rows}</c:if></td>
+                    <td><code title="${backup.checksum}">${fn:substring(backup.checksum, 0, 12)}</code></td>
+                </tr>
+            </c:forEach>
+        </table>
+    </c:if>
 </c:if>
 
 <%@ include file="/WEB-INF/template/footer.jsp"%>
@@ -0,0 +1,54 @@
+package org.openmrs.module.databasebackup.web.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DownloadBackupControllerTest {
+
+    private static final long LENGTH = 1000;
+
+    private static final long[] WHOLE_FILE = new long[0];
+
+    @Test
+    public void parseRange_shouldParseAClosedRange() {
+        assertArrayEquals(new long[] { 0, 99 }, DownloadBackupController.parseRange("bytes=0-99", LENGTH));
+        assertArrayEquals(new long[] { 500, 500 }, DownloadBackupController.parseRange("bytes=500-500", LENGTH));
+    }
+
+    @Test
+    public void parseRange_shouldEndAnOpenEndedRangeAtTheEndOfTheFile() {
+        assertArrayEquals(new long[] { 100, 999 }, DownloadBackupController.parseRange("bytes=100-", LENGTH));
+        assertArrayEquals(new long[] { 999, 999 }, DownloadBackupController.parseRange("bytes=999-", LENGTH));
+    }
+
+    @Test
+    public void parseRange_shouldCutARangeAtTheEndOfTheFile() {
+        assertArrayEquals(new long[] { 900, 999 }, DownloadBackupController.parseRange("bytes=900-5000", LENGTH));
+    }
+
+    @Test
+    public void parseRange_shouldParseASuffixRange() {
+        assertArrayEquals(new long[] { 900, 999 }, DownloadBackupController.parseRange("bytes=-100", LENGTH));
+        // a suffix longer than the file asks for all of it
+        assertArrayEquals(new long[] { 0, 999 }, DownloadBackupController.parseRange("bytes=-5000", LENGTH));
+    }
+
+    @Test
+    public void parseRange_shouldRejectUnsatisfiableRanges() {
+        assertNull(DownloadBackupController.parseRange("bytes=1000-", LENGTH));
+        assertNull(DownloadBackupController.parseRange("bytes=1500-2000", LENGTH));
+        assertNull(DownloadBackupController.parseRange("bytes=-0", LENGTH));
+        assertNull(DownloadBackupController.parseRange("bytes=0-", 0));
+    }
+
+    @Test
+    public void parseRange_shouldSendTheWholeFileForRangesItDoesNotServe() {
+        assertArrayEquals(WHOLE_FILE, DownloadBackupController.parseRange("items=0-99", LENGTH));
+        assertArrayEquals(WHOLE_FILE, DownloadBackupController.parseRange("bytes=0-99,200-299", LENGTH));
+        assertArrayEquals(WHOLE_FILE, DownloadBackupController.parseRange("bytes=100", LENGTH));
+        assertArrayEquals(WHOLE_FILE, DownloadBackupController.parseRange("bytes=a-b", LENGTH));
+        assertArrayEquals(WHOLE_FILE, DownloadBackupController.parseRange("bytes=500-100", LENGTH));
+    }
+}